@@ -0,0 +1,377 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+import jNetworking.jNetworkInterface.LogLocation;
+import jNetworking.jNetworkInterface.Response;
+import jNetworking.jNetworkInterface.jNetworkInterface;
+import jNetworking.jNetworkInterface.jNetworkInterfaceServer;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks stream flow control and reset against a local server. Frames are
+ * written by hand, so the server is checked without the client's stream code.
+ * Exits with status 1 if any check fails.
+ */
+public class jNetworkInterfaceStreamTest {
+    /**
+     * Port the test server listens on.
+     */
+    private static final int PORT = 8081;
+    /**
+     * Default stream window.
+     */
+    private static final int WINDOW = 65536;
+    /**
+     * Data frame type.
+     */
+    private static final int TYPE_DATA = 0;
+    /**
+     * Window credit frame type.
+     */
+    private static final int TYPE_WINDOW = 1;
+    /**
+     * Reset frame type.
+     */
+    private static final int TYPE_RESET = 2;
+    /**
+     * Flag on the last data frame of a stream.
+     */
+    private static final int FLAG_END = 1;
+    /**
+     * Number of failed checks.
+     */
+    private static int failures;
+
+    /**
+     * Main function
+     * @param args Command arguments
+     * @throws Exception If the server cannot be reached
+     */
+    public static void main(String[] args) throws Exception {
+        File log = File.createTempFile("jNetworkInterfaceStreamTest", ".log");
+        File commands = File.createTempFile("jNetworkInterfaceStreamTest", ".yaml");
+        log.deleteOnExit();
+        commands.deleteOnExit();
+        Files.write(commands.toPath(), "echo: Echo\n".getBytes(StandardCharsets.UTF_8));
+        LogLocation.setLocation(log.getPath());
+        // Spawn the server
+        jNetworkInterfaceServer server = new jNetworkInterfaceServer(PORT, 16, false);
+        server.setCommandsFile(commands.getPath());
+        server.reloadCommands();
+        new Thread(server).start();
+        while (server.getStartupTime() < 0)
+            Thread.sleep(10);
+        try {
+            checkLargeBodies();
+            checkSmallWindow();
+            checkRefusedWithSmallWindow(server);
+            checkReset(server);
+        } finally {
+            server.shutdown();
+        }
+        System.out.println(failures == 0 ? "All stream checks passed." : failures + " stream check(s) failed.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Bodies many windows long, sent both ways by several threads at once.
+     * @throws Exception If a thread fails
+     */
+    private static void checkLargeBodies() throws Exception {
+        jNetworkInterface client = new jNetworkInterface("127.0.0.1", PORT, false);
+        client.setMultiplexed(true);
+        byte[] body = new byte[16 * WINDOW];
+        new Random(1).nextBytes(body);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> echoes = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+                echoes.add(pool.submit(() -> Arrays.equals(body, client.sendObject("echo", body, byte[].class))));
+            boolean same = true;
+            for (Future<Boolean> echo : echoes)
+                same &= echo.get();
+            check("large bodies come back intact", same);
+        } finally {
+            pool.shutdownNow();
+            client.closeConnection();
+        }
+    }
+
+    /**
+     * The server sends no more than the client's window until it hands back
+     * credit.
+     * @throws IOException If the connection fails
+     */
+    private static void checkSmallWindow() throws IOException {
+        try (RawConnection raw = new RawConnection(16)) {
+            raw.request(1, "version");
+            raw.drain(500);
+            check("server waits for window credit", raw.getReceived(1) == 16 && !raw.isEnded(1));
+            raw.credit(1, WINDOW);
+            Response response = raw.readResponse(1);
+            check("server resumes after window credit", response != null && response.isSuccess());
+        }
+    }
+
+    /**
+     * Refused streams are answered without stalling the connection, even
+     * when the answer does not fit the client's window.
+     * @param server Test server
+     * @throws IOException If the connection fails
+     */
+    private static void checkRefusedWithSmallWindow(jNetworkInterfaceServer server) throws IOException {
+        try (RawConnection raw = new RawConnection(1)) {
+            server.setRateLimit(0.01, 1);
+            for (int id = 1; id <= 5; id += 2)
+                raw.request(id, "ping");
+            raw.drain(200);
+            boolean answered = true;
+            boolean limited = false;
+            for (int id = 1; id <= 5; id += 2) {
+                // Credit goes unread if the frame reader is stuck writing a refusal.
+                raw.credit(id, WINDOW);
+                Response response = raw.readResponse(id);
+                answered &= response != null;
+                limited |= response != null && response.getStatus() == Response.STATUS_RATE_LIMITED;
+            }
+            check("refused streams do not stall the connection", answered && limited);
+        } finally {
+            server.setRateLimit(0, 1);
+        }
+    }
+
+    /**
+     * A reset stream's command is cancelled and the connection keeps
+     * serving other streams.
+     * @param server Test server
+     * @throws Exception If the connection fails
+     */
+    private static void checkReset(jNetworkInterfaceServer server) throws Exception {
+        try (RawConnection raw = new RawConnection(WINDOW)) {
+            int idle = server.getInFlight();
+            raw.request(1, "test");
+            Thread.sleep(200);
+            raw.reset(1);
+            raw.request(3, "ping");
+            Response ping = raw.readResponse(3);
+            check("streams are served after a reset", ping != null && ping.isSuccess());
+            long deadline = System.currentTimeMillis() + 3000;
+            while (server.getInFlight() > idle && System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+            check("reset cancels the stream's command", server.getInFlight() <= idle);
+        }
+    }
+
+    /**
+     * Report a check.
+     * @param name What was checked
+     * @param passed Check result
+     */
+    private static void check(String name, boolean passed) {
+        System.out.println((passed ? "PASS " : "FAIL ") + name);
+        if (!passed)
+            failures++;
+    }
+
+    /**
+     * Connection switched to streams, read and written frame by frame.
+     */
+    private static class RawConnection implements Closeable {
+        /**
+         * Connection.
+         */
+        private final Socket socket;
+        /**
+         * Connection input.
+         */
+        private final DataInputStream in;
+        /**
+         * Connection output.
+         */
+        private final DataOutputStream out;
+        /**
+         * Data received on each stream.
+         */
+        private final Map<Integer, ByteArrayOutputStream> received = new HashMap<>();
+        /**
+         * Streams the server ended or reset.
+         */
+        private final Set<Integer> ended = new HashSet<>();
+        /**
+         * Streams the server reset.
+         */
+        private final Set<Integer> resets = new HashSet<>();
+
+        /**
+         * Class constructor. Connects and switches to streams.
+         * @param window Window the server may fill on each stream
+         * @throws IOException If the server refuses streams
+         */
+        RawConnection(int window) throws IOException {
+            socket = new Socket("127.0.0.1", PORT);
+            socket.setSoTimeout(5000);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.write(("mux window=" + window + " envelope=1\nEND COMMAND\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            Response response = Response.read(in);
+            if (response == null || !response.isSuccess())
+                throw new IOException("Server refused streams: " + response);
+        }
+
+        /**
+         * Open a stream with a command.
+         * @param id Stream id, odd and increasing
+         * @param command Command
+         * @throws IOException If the write fails
+         */
+        void request(int id, String command) throws IOException {
+            String request = command + " envelope=1\nEND COMMAND\n";
+            write(id, TYPE_DATA, FLAG_END, request.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Hand credit back for a stream.
+         * @param id Stream id
+         * @param bytes Credit
+         * @throws IOException If the write fails
+         */
+        void credit(int id, int bytes) throws IOException {
+            write(id, TYPE_WINDOW, 0, new byte[]{(byte) (bytes >>> 24), (byte) (bytes >>> 16),
+                    (byte) (bytes >>> 8), (byte) bytes});
+        }
+
+        /**
+         * Reset a stream.
+         * @param id Stream id
+         * @throws IOException If the write fails
+         */
+        void reset(int id) throws IOException {
+            write(id, TYPE_RESET, 0, new byte[0]);
+        }
+
+        /**
+         * Read frames until nothing arrives for a while.
+         * @param quiet Time in MS without frames before returning
+         * @throws IOException If the connection fails
+         */
+        void drain(int quiet) throws IOException {
+            socket.setSoTimeout(quiet);
+            try {
+                while (true)
+                    readFrame();
+            } catch (SocketTimeoutException ex) {
+                // Nothing more for now.
+            } finally {
+                socket.setSoTimeout(5000);
+            }
+        }
+
+        /**
+         * @param id Stream id
+         * @return Data bytes received on the stream
+         */
+        int getReceived(int id) {
+            ByteArrayOutputStream body = received.get(id);
+            return body == null ? 0 : body.size();
+        }
+
+        /**
+         * @param id Stream id
+         * @return True if the server ended or reset the stream
+         */
+        boolean isEnded(int id) {
+            return ended.contains(id);
+        }
+
+        /**
+         * Read frames until a stream ends and parse its response.
+         * @param id Stream id
+         * @return Response, null if the stream was reset or stalled
+         * @throws IOException If the connection fails
+         */
+        Response readResponse(int id) throws IOException {
+            try {
+                while (!ended.contains(id))
+                    readFrame();
+            } catch (SocketTimeoutException ex) {
+                return null;
+            }
+            if (resets.contains(id))
+                return null;
+            return Response.read(new ByteArrayInputStream(received.get(id).toByteArray()));
+        }
+
+        /**
+         * Read one frame and file it under its stream.
+         * @throws IOException If the connection fails
+         */
+        private void readFrame() throws IOException {
+            int id = in.readInt();
+            int type = in.readByte();
+            int flags = in.readByte();
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            if (type == TYPE_DATA) {
+                received.computeIfAbsent(id, key -> new ByteArrayOutputStream()).write(payload);
+                if ((flags & FLAG_END) != 0)
+                    ended.add(id);
+            } else if (type == TYPE_RESET) {
+                resets.add(id);
+                ended.add(id);
+            }
+        }
+
+        /**
+         * Write one frame.
+         * @param id Stream id
+         * @param type Frame type
+         * @param flags Frame flags
+         * @param payload Payload
+         * @throws IOException If the write fails
+         */
+        private void write(int id, int type, int flags, byte[] payload) throws IOException {
+            out.writeInt(id);
+            out.writeByte(type);
+            out.writeByte(flags);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
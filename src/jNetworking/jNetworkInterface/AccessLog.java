@@ -0,0 +1,446 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compact binary log of every request the server answers. Records are handed
+ * to a background thread through a bounded queue and dropped, not waited on,
+ * when it is full. AccessLogReplay sends a captured log back to a server.
+ * <p>
+ * The file starts with the magic JNAL and a format version, followed by
+ * records of: arrival timestamp, client address, command, data line count, data
+ * bytes, body bytes, queue and execution time in nanoseconds, status and
+ * response body bytes.
+ */
+public class AccessLog {
+    /**
+     * File magic.
+     */
+    private static final int MAGIC = 0x4A4E414C;
+    /**
+     * File format version.
+     */
+    private static final int VERSION = 1;
+    /**
+     * Records the queue holds before new ones are dropped.
+     */
+    private static final int QUEUE_SIZE = 65536;
+    /**
+     * Time in MS the writer waits for a record before checking for close.
+     */
+    private static final long POLL = 100;
+    /**
+     * Log file.
+     */
+    private final String path;
+    /**
+     * Records waiting to be written.
+     */
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    /**
+     * Records dropped because the queue was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * Writer thread.
+     */
+    private final Thread writer;
+    /**
+     * Log stream, writer thread only.
+     */
+    private final DataOutputStream out;
+    /**
+     * Set once the log is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Class constructor. Appends to the file if it already holds a log.
+     * @param path Log file
+     * @throws IOException If the file cannot be opened
+     */
+    public AccessLog(String path) throws IOException {
+        this.path = path;
+        File file = new File(path);
+        boolean fresh = file.length() == 0;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024));
+        if (fresh) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+        }
+        writer = new Thread(this::work, "AccessLog-" + file.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a record. Never blocks.
+     * @param record Record
+     * @return False if the record was dropped
+     */
+    public boolean record(Record record) {
+        if (closed || !queue.offer(record)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of records dropped because the queue was full.
+     * @return Dropped records
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Get the log file.
+     * @return Path
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Write queued records and close the file.
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writer thread loop. Flushes whenever the queue runs dry.
+     */
+    private void work() {
+        try {
+            while (true) {
+                Record record;
+                try {
+                    record = queue.poll(POLL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    record = null;
+                }
+                if (record != null)
+                    record.write(out);
+                if (queue.isEmpty()) {
+                    out.flush();
+                    if (closed)
+                        break;
+                }
+            }
+        } catch (IOException ex) {
+            System.out.println("Could not write access log " + path + ".");
+        } finally {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                // Nothing left to do.
+            }
+        }
+    }
+
+    /**
+     * Open a log for reading.
+     * @param path Log file
+     * @return Reader
+     * @throws IOException If the file is not an access log
+     */
+    public static Reader open(String path) throws IOException {
+        return new Reader(new DataInputStream(new BufferedInputStream(new FileInputStream(path))));
+    }
+
+    /**
+     * One logged request.
+     */
+    public static class Record {
+        /**
+         * Time the request arrived, MS since the epoch.
+         */
+        private final long timestamp;
+        /**
+         * Client address bytes.
+         */
+        private final byte[] client;
+        /**
+         * Command, as sent for unknown commands.
+         */
+        private final String command;
+        /**
+         * Data line count and total bytes.
+         */
+        private final int dataLines;
+        private final int dataBytes;
+        /**
+         * Body bytes.
+         */
+        private final int bodyBytes;
+        /**
+         * Time between the request being read and the command starting.
+         */
+        private final long queueNanos;
+        /**
+         * Time the command ran.
+         */
+        private final long execNanos;
+        /**
+         * Response status.
+         */
+        private final int status;
+        /**
+         * Response body bytes.
+         */
+        private final int responseBytes;
+
+        /**
+         * Class constructor.
+         * @param timestamp Time arrived, MS since the epoch
+         * @param client Client address
+         * @param command Command
+         * @param dataLines Data line count
+         * @param dataBytes Data bytes
+         * @param bodyBytes Body bytes
+         * @param queueNanos Queue time
+         * @param execNanos Execution time
+         * @param status Response status
+         * @param responseBytes Response body bytes
+         */
+        public Record(long timestamp, InetAddress client, String command, int dataLines, int dataBytes,
+                      int bodyBytes, long queueNanos, long execNanos, int status, int responseBytes) {
+            this(timestamp, client == null ? new byte[0] : client.getAddress(), command, dataLines, dataBytes,
+                    bodyBytes, queueNanos, execNanos, status, responseBytes);
+        }
+
+        /**
+         * Class constructor with raw address bytes.
+         */
+        private Record(long timestamp, byte[] client, String command, int dataLines, int dataBytes,
+                       int bodyBytes, long queueNanos, long execNanos, int status, int responseBytes) {
+            this.timestamp = timestamp;
+            this.client = client;
+            this.command = command;
+            this.dataLines = dataLines;
+            this.dataBytes = dataBytes;
+            this.bodyBytes = bodyBytes;
+            this.queueNanos = queueNanos;
+            this.execNanos = execNanos;
+            this.status = status;
+            this.responseBytes = responseBytes;
+        }
+
+        /**
+         * Write the record.
+         * @param out Log stream
+         * @throws IOException
+         */
+        private void write(DataOutputStream out) throws IOException {
+            byte[] name = command.getBytes(StandardCharsets.UTF_8);
+            out.writeLong(timestamp);
+            out.writeByte(client.length);
+            out.write(client);
+            out.writeShort(Math.min(name.length, 0xFFFF));
+            out.write(name, 0, Math.min(name.length, 0xFFFF));
+            out.writeInt(dataLines);
+            out.writeInt(dataBytes);
+            out.writeInt(bodyBytes);
+            out.writeLong(queueNanos);
+            out.writeLong(execNanos);
+            out.writeShort(status);
+            out.writeInt(responseBytes);
+        }
+
+        /**
+         * Read a record.
+         * @param in Log stream
+         * @return Record or null at the end of the log
+         * @throws IOException If the record is cut short
+         */
+        private static Record read(DataInputStream in) throws IOException {
+            long timestamp;
+            try {
+                timestamp = in.readLong();
+            } catch (EOFException ex) {
+                return null;
+            }
+            byte[] client = new byte[in.readUnsignedByte()];
+            in.readFully(client);
+            byte[] name = new byte[in.readUnsignedShort()];
+            in.readFully(name);
+            return new Record(timestamp, client, new String(name, StandardCharsets.UTF_8), in.readInt(),
+                    in.readInt(), in.readInt(), in.readLong(), in.readLong(), in.readUnsignedShort(), in.readInt());
+        }
+
+        /**
+         * Get the time the request was answered.
+         * @return MS since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Get the client address.
+         * @return Address or null if it was not recorded
+         */
+        public InetAddress getClient() {
+            try {
+                return client.length == 0 ? null : InetAddress.getByAddress(client);
+            } catch (UnknownHostException ex) {
+                return null;
+            }
+        }
+
+        /**
+         * Get the command.
+         * @return Command
+         */
+        public String getCommand() {
+            return command;
+        }
+
+        /**
+         * Get the data line count.
+         * @return Lines
+         */
+        public int getDataLines() {
+            return dataLines;
+        }
+
+        /**
+         * Get the data size.
+         * @return Bytes over all lines
+         */
+        public int getDataBytes() {
+            return dataBytes;
+        }
+
+        /**
+         * Get the body size.
+         * @return Bytes
+         */
+        public int getBodyBytes() {
+            return bodyBytes;
+        }
+
+        /**
+         * Get the time between the request being read and the command
+         * starting.
+         * @return Nanoseconds
+         */
+        public long getQueueNanos() {
+            return queueNanos;
+        }
+
+        /**
+         * Get the time the command ran.
+         * @return Nanoseconds
+         */
+        public long getExecNanos() {
+            return execNanos;
+        }
+
+        /**
+         * Get the response status.
+         * @return Status
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Get the response body size.
+         * @return Bytes
+         */
+        public int getResponseBytes() {
+            return responseBytes;
+        }
+
+        @Override
+        public String toString() {
+            return timestamp + " " + getClient() + " " + command + " lines=" + dataLines + " data=" + dataBytes +
+                    " body=" + bodyBytes + " queue=" + queueNanos / 1000 + "us exec=" + execNanos / 1000 +
+                    "us status=" + status + " response=" + responseBytes;
+        }
+    }
+
+    /**
+     * Sequential reader over a log file.
+     */
+    public static class Reader implements Closeable {
+        /**
+         * Log stream.
+         */
+        private final DataInputStream in;
+
+        /**
+         * Class constructor. Checks the file header.
+         * @param in Log stream
+         * @throws IOException If the stream is not an access log
+         */
+        private Reader(DataInputStream in) throws IOException {
+            this.in = in;
+            try {
+                if (in.readInt() != MAGIC)
+                    throw new IOException("Not an access log.");
+                int version = in.readUnsignedShort();
+                if (version != VERSION)
+                    throw new IOException("Unsupported access log version " + version + ".");
+            } catch (IOException ex) {
+                in.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * Read the next record.
+         * @return Record or null at the end of the log
+         * @throws IOException If the log is damaged
+         */
+        public Record next() throws IOException {
+            return Record.read(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the requests in an access log to a server, paced like the original
+ * traffic or scaled. The log only holds sizes, so data lines and bodies are
+ * filled with placeholder bytes of the recorded size; bodies are sent as a
+ * byte array with the binary codec.
+ * <p>
+ * Usage: AccessLogReplay log host port [speed] [threads]. A speed of 2 replays
+ * twice as fast, 0 sends as fast as possible.
+ * <p>
+ * Records are written as requests finish but stamped with their arrival, so a
+ * few records are held back and sent in arrival order.
+ */
+public class AccessLogReplay {
+    /**
+     * Default number of sending threads.
+     */
+    public static final int THREADS = 16;
+    /**
+     * Records held back to put them in arrival order.
+     */
+    public static final int REORDER = 1024;
+    /**
+     * Server hostname.
+     */
+    private final String hostname;
+    /**
+     * Server port.
+     */
+    private final int port;
+    /**
+     * Use SSL.
+     */
+    private final boolean ssl;
+    /**
+     * Replay speed, 0 for no pacing.
+     */
+    private double speed = 1;
+    /**
+     * Sending threads.
+     */
+    private int threads = THREADS;
+
+    /**
+     * Class constructor.
+     * @param hostname Server hostname
+     * @param port Server port
+     * @param ssl Use SSL
+     */
+    public AccessLogReplay(String hostname, int port, boolean ssl) {
+        this.hostname = hostname;
+        this.port = port;
+        this.ssl = ssl;
+    }
+
+    /**
+     * Set the replay speed.
+     * @param speed Multiple of the original rate, 0 for no pacing
+     */
+    public void setSpeed(double speed) {
+        this.speed = Math.max(0, speed);
+    }
+
+    /**
+     * Set the number of sending threads.
+     * @param threads Threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Replay a log and wait for every request to finish.
+     * @param path Access log
+     * @return Summary of statuses and latencies
+     * @throws IOException If the log cannot be read
+     */
+    public String replay(String path) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<jNetworkInterface> opened = Collections.synchronizedList(new ArrayList<>());
+        ThreadLocal<jNetworkInterface> clients = ThreadLocal.withInitial(() -> {
+            jNetworkInterface client = new jNetworkInterface(hostname, port, ssl);
+            client.setKeepAlive(true);
+            opened.add(client);
+            return client;
+        });
+        Map<Integer, AtomicLong> statuses = new ConcurrentSkipListMap<>();
+        AtomicLong failures = new AtomicLong();
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        long sent = 0;
+        long start = System.nanoTime();
+        try (AccessLog.Reader reader = AccessLog.open(path)) {
+            PriorityQueue<AccessLog.Record> pending =
+                    new PriorityQueue<>(Comparator.comparingLong(AccessLog.Record::getTimestamp));
+            boolean more = true;
+            long first = -1;
+            while (more || !pending.isEmpty()) {
+                if (more) {
+                    AccessLog.Record next = reader.next();
+                    if (next != null)
+                        pending.add(next);
+                    else
+                        more = false;
+                    if (more && pending.size() < REORDER)
+                        continue;
+                }
+                AccessLog.Record record = pending.poll();
+                if (record == null)
+                    break;
+                if (first < 0)
+                    first = record.getTimestamp();
+                if (speed > 0) {
+                    long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(record.getTimestamp() - first) / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+                Request request = toRequest(record);
+                pool.execute(() -> {
+                    long begin = System.nanoTime();
+                    try {
+                        Response response = clients.get().sendRequest(request);
+                        latencies.add(System.nanoTime() - begin);
+                        statuses.computeIfAbsent(response.getStatus(), s -> new AtomicLong()).incrementAndGet();
+                    } catch (RuntimeException ex) {
+                        failures.incrementAndGet();
+                    }
+                });
+                sent++;
+            }
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(1, TimeUnit.HOURS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            for (jNetworkInterface client : opened)
+                client.setKeepAlive(false);
+        }
+        long elapsed = System.nanoTime() - start;
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        return "sent=" + sent + " failures=" + failures + " statuses=" + statuses +
+                " p50=" + percentile(sorted, 0.5) + "ms p95=" + percentile(sorted, 0.95) +
+                "ms p99=" + percentile(sorted, 0.99) + "ms elapsed=" + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms";
+    }
+
+    /**
+     * Build a request with placeholder data of the recorded sizes.
+     * @param record Logged request
+     * @return Request
+     */
+    private static Request toRequest(AccessLog.Record record) {
+        ArrayList<String> data = new ArrayList<>(record.getDataLines());
+        int lines = record.getDataLines();
+        for (int i = 0; i < lines; i++) {
+            int length = record.getDataBytes() / lines + (i < record.getDataBytes() % lines ? 1 : 0);
+            char[] line = new char[length];
+            Arrays.fill(line, 'x');
+            data.add(new String(line));
+        }
+        Request request = new Request(record.getCommand(), data);
+        if (record.getBodyBytes() > 0) {
+            try {
+                request.setObject(new byte[record.getBodyBytes()]);
+            } catch (IOException ex) {
+                // Byte arrays always encode.
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Get a latency percentile.
+     * @param sorted Sorted latencies in nanoseconds
+     * @param fraction Percentile as a fraction
+     * @return Latency in MS, -1 if there are none
+     */
+    private static double percentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty())
+            return -1;
+        int index = (int) Math.min(sorted.size() - 1, Math.ceil(fraction * sorted.size()) - 1);
+        return Math.round(sorted.get(Math.max(0, index)) / 10000.0) / 100.0;
+    }
+
+    /**
+     * Replay a log from the command line.
+     * @param args log host port [speed] [threads]
+     * @throws IOException If the log cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: AccessLogReplay log host port [speed] [threads]");
+            return;
+        }
+        AccessLogReplay replay = new AccessLogReplay(args[1], Integer.parseInt(args[2]), false);
+        if (args.length > 3)
+            replay.setSpeed(Double.parseDouble(args[3]));
+        if (args.length > 4)
+            replay.setThreads(Integer.parseInt(args[4]));
+        System.out.println(replay.replay(args[0]));
+        System.exit(0);
+    }
+}
@@ -0,0 +1,510 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact tagged binary codec. Integers are zig-zag varints, strings UTF-8
+ * with a varint length. Supports null, booleans, numbers, strings, byte
+ * arrays, lists, maps and Encodable objects. Encoding reuses a per-thread
+ * buffer so the only allocation is the returned array.
+ */
+public class BinaryCodec implements Codec {
+    /**
+     * Codec name.
+     */
+    public static final String NAME = "binary";
+    /**
+     * Value tags.
+     */
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_DOUBLE = 5;
+    private static final int TAG_FLOAT = 6;
+    private static final int TAG_STRING = 7;
+    private static final int TAG_BYTES = 8;
+    private static final int TAG_LIST = 9;
+    private static final int TAG_MAP = 10;
+    private static final int TAG_ENCODABLE = 11;
+    /**
+     * Largest buffer kept for reuse, bigger ones are dropped after use.
+     */
+    private static final int MAX_RETAINED = 64 * 1024;
+    /**
+     * Per-thread output buffer.
+     */
+    private static final ThreadLocal<Output> outputs = ThreadLocal.withInitial(Output::new);
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean supports(Object value) {
+        if (value == null || value instanceof Boolean || value instanceof Integer || value instanceof Short
+                || value instanceof Byte || value instanceof Long || value instanceof Double
+                || value instanceof Float || value instanceof String || value instanceof byte[]
+                || value instanceof Encodable)
+            return true;
+        if (value instanceof Collection) {
+            for (Object item : (Collection<?>) value)
+                if (!supports(item))
+                    return false;
+            return true;
+        }
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+                if (!supports(entry.getKey()) || !supports(entry.getValue()))
+                    return false;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        Output out = outputs.get();
+        out.size = 0;
+        try {
+            out.writeObject(value);
+            return Arrays.copyOf(out.buffer, out.size);
+        } finally {
+            if (out.buffer.length > MAX_RETAINED)
+                outputs.remove();
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] data, Class<T> type) throws IOException {
+        Input in = new Input(data);
+        Object value = in.readObject();
+        if (in.position != data.length)
+            throw new IOException("Trailing bytes after value.");
+        if (value == null)
+            return null;
+        Class<?> boxed = box(type);
+        if (!boxed.isInstance(value))
+            throw new IOException("Expected " + type.getName() + " but got " + value.getClass().getName() + ".");
+        @SuppressWarnings("unchecked")
+        T result = (T) value;
+        return result;
+    }
+
+    /**
+     * Map a primitive type to its wrapper.
+     * @param type Type
+     * @return Wrapper or the type itself
+     */
+    private static Class<?> box(Class<?> type) {
+        if (!type.isPrimitive())
+            return type;
+        if (type == int.class) return Integer.class;
+        if (type == long.class) return Long.class;
+        if (type == double.class) return Double.class;
+        if (type == float.class) return Float.class;
+        if (type == boolean.class) return Boolean.class;
+        return type;
+    }
+
+    /**
+     * Growable output buffer.
+     */
+    public static class Output {
+        /**
+         * Bytes written.
+         */
+        private byte[] buffer = new byte[256];
+        /**
+         * Write position.
+         */
+        private int size;
+
+        /**
+         * Make room for more bytes.
+         * @param count Bytes needed
+         */
+        private void ensure(int count) {
+            if (size + count > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + count));
+        }
+
+        /**
+         * Write an unsigned varint.
+         * @param value Value
+         */
+        private void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        /**
+         * Write raw bytes.
+         * @param bytes Bytes
+         */
+        private void writeRaw(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        /**
+         * Write an int.
+         * @param value Value
+         */
+        public void writeInt(int value) {
+            writeVarLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+        }
+
+        /**
+         * Write a long.
+         * @param value Value
+         */
+        public void writeLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        /**
+         * Write a double.
+         * @param value Value
+         */
+        public void writeDouble(double value) {
+            long bits = Double.doubleToLongBits(value);
+            ensure(8);
+            for (int i = 7; i >= 0; i--)
+                buffer[size++] = (byte) (bits >>> (i * 8));
+        }
+
+        /**
+         * Write a boolean.
+         * @param value Value
+         */
+        public void writeBoolean(boolean value) {
+            ensure(1);
+            buffer[size++] = (byte) (value ? 1 : 0);
+        }
+
+        /**
+         * Write a string, null allowed.
+         * @param value Value
+         */
+        public void writeString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1L);
+            writeRaw(bytes);
+        }
+
+        /**
+         * Write a byte array, null allowed.
+         * @param value Value
+         */
+        public void writeBytes(byte[] value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            writeVarLong(value.length + 1L);
+            writeRaw(value);
+        }
+
+        /**
+         * Write any supported value with its tag.
+         * @param value Value
+         * @throws IOException If the value is not supported
+         */
+        public void writeObject(Object value) throws IOException {
+            ensure(1);
+            if (value == null) {
+                buffer[size++] = TAG_NULL;
+            } else if (value instanceof Boolean) {
+                buffer[size++] = (byte) ((Boolean) value ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                buffer[size++] = TAG_INT;
+                writeInt(((Number) value).intValue());
+            } else if (value instanceof Long) {
+                buffer[size++] = TAG_LONG;
+                writeLong((Long) value);
+            } else if (value instanceof Double) {
+                buffer[size++] = TAG_DOUBLE;
+                writeDouble((Double) value);
+            } else if (value instanceof Float) {
+                buffer[size++] = TAG_FLOAT;
+                writeInt(Float.floatToIntBits((Float) value));
+            } else if (value instanceof String) {
+                buffer[size++] = TAG_STRING;
+                writeString((String) value);
+            } else if (value instanceof byte[]) {
+                buffer[size++] = TAG_BYTES;
+                writeBytes((byte[]) value);
+            } else if (value instanceof Collection) {
+                buffer[size++] = TAG_LIST;
+                Collection<?> items = (Collection<?>) value;
+                writeVarLong(items.size());
+                for (Object item : items)
+                    writeObject(item);
+            } else if (value instanceof Map) {
+                buffer[size++] = TAG_MAP;
+                Map<?, ?> map = (Map<?, ?>) value;
+                writeVarLong(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeObject(entry.getKey());
+                    writeObject(entry.getValue());
+                }
+            } else if (value instanceof Encodable) {
+                buffer[size++] = TAG_ENCODABLE;
+                writeString(value.getClass().getName());
+                ((Encodable) value).write(this);
+            } else {
+                throw new IOException("Binary codec cannot encode " + value.getClass().getName() + ".");
+            }
+        }
+    }
+
+    /**
+     * Input over an encoded array.
+     */
+    public static class Input {
+        /**
+         * Encoded bytes.
+         */
+        private final byte[] buffer;
+        /**
+         * Read position.
+         */
+        private int position;
+
+        /**
+         * Create an input.
+         * @param buffer Encoded bytes
+         */
+        private Input(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Read one byte.
+         * @return Byte value
+         * @throws IOException If the data is truncated
+         */
+        private int readByte() throws IOException {
+            if (position >= buffer.length)
+                throw new IOException("Truncated binary data.");
+            return buffer[position++] & 0xFF;
+        }
+
+        /**
+         * Read an unsigned varint.
+         * @return Value
+         * @throws IOException If the data is truncated or malformed
+         */
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Malformed varint.");
+        }
+
+        /**
+         * Read a length prefix, 0 meaning null.
+         * @return Length or -1 for null
+         * @throws IOException If the length runs past the data
+         */
+        private int readLength() throws IOException {
+            long length = readVarLong() - 1;
+            if (length < -1 || length > buffer.length - position)
+                throw new IOException("Truncated binary data.");
+            return (int) length;
+        }
+
+        /**
+         * Read an int.
+         * @return Value
+         * @throws IOException
+         */
+        public int readInt() throws IOException {
+            long raw = readVarLong();
+            return (int) (raw >>> 1) ^ -(int) (raw & 1);
+        }
+
+        /**
+         * Read a long.
+         * @return Value
+         * @throws IOException
+         */
+        public long readLong() throws IOException {
+            long raw = readVarLong();
+            return (raw >>> 1) ^ -(raw & 1);
+        }
+
+        /**
+         * Read a double.
+         * @return Value
+         * @throws IOException
+         */
+        public double readDouble() throws IOException {
+            long bits = 0;
+            for (int i = 0; i < 8; i++)
+                bits = (bits << 8) | readByte();
+            return Double.longBitsToDouble(bits);
+        }
+
+        /**
+         * Read a boolean.
+         * @return Value
+         * @throws IOException
+         */
+        public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        /**
+         * Read a string.
+         * @return Value or null
+         * @throws IOException
+         */
+        public String readString() throws IOException {
+            int length = readLength();
+            if (length < 0)
+                return null;
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        /**
+         * Read a byte array.
+         * @return Value or null
+         * @throws IOException
+         */
+        public byte[] readBytes() throws IOException {
+            int length = readLength();
+            if (length < 0)
+                return null;
+            byte[] value = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return value;
+        }
+
+        /**
+         * Read any tagged value.
+         * @return Value
+         * @throws IOException If the tag is unknown or the data malformed
+         */
+        public Object readObject() throws IOException {
+            int tag = readByte();
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_FALSE:
+                    return false;
+                case TAG_TRUE:
+                    return true;
+                case TAG_INT:
+                    return readInt();
+                case TAG_LONG:
+                    return readLong();
+                case TAG_DOUBLE:
+                    return readDouble();
+                case TAG_FLOAT:
+                    return Float.intBitsToFloat(readInt());
+                case TAG_STRING:
+                    return readString();
+                case TAG_BYTES:
+                    return readBytes();
+                case TAG_LIST: {
+                    int count = readCount();
+                    List<Object> items = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++)
+                        items.add(readObject());
+                    return items;
+                }
+                case TAG_MAP: {
+                    int count = readCount();
+                    Map<Object, Object> map = new LinkedHashMap<>(count * 2);
+                    for (int i = 0; i < count; i++)
+                        map.put(readObject(), readObject());
+                    return map;
+                }
+                case TAG_ENCODABLE:
+                    return readEncodable();
+                default:
+                    throw new IOException("Unknown binary tag " + tag + ".");
+            }
+        }
+
+        /**
+         * Read an element count, bounded by the bytes left.
+         * @return Count
+         * @throws IOException If the count cannot fit in the data
+         */
+        private int readCount() throws IOException {
+            long count = readVarLong();
+            if (count < 0 || count > buffer.length - position)
+                throw new IOException("Truncated binary data.");
+            return (int) count;
+        }
+
+        /**
+         * Read an Encodable object. Only classes implementing Encodable are
+         * instantiated.
+         * @return Object
+         * @throws IOException If the class is unknown or not Encodable
+         */
+        private Object readEncodable() throws IOException {
+            String className = readString();
+            try {
+                ClassLoader loader = Thread.currentThread().getContextClassLoader();
+                Class<?> type = Class.forName(className, false,
+                        loader != null ? loader : BinaryCodec.class.getClassLoader());
+                if (!Encodable.class.isAssignableFrom(type) || Modifier.isAbstract(type.getModifiers()))
+                    throw new IOException(className + " is not Encodable.");
+                Encodable value = (Encodable) type.getConstructor().newInstance();
+                value.read(this);
+                return value;
+            } catch (ReflectiveOperationException ex) {
+                throw new IOException("Cannot create " + className + ".", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of reusable byte buffers in power-of-four size classes from 512 bytes
+ * to 128 KB. Each thread keeps a few released buffers of every class to itself
+ * before handing them back to the shared pool, so acquire and release do not
+ * contend in the steady state. Requests larger than the biggest class get an
+ * unpooled buffer.
+ * <p>
+ * With leak detection on, every acquire records its call site and buffers
+ * that are garbage collected without being released are logged.
+ */
+public class BufferPool {
+    /**
+     * Smallest size class.
+     */
+    public static final int MIN_SIZE = 512;
+    /**
+     * Largest size class.
+     */
+    public static final int MAX_SIZE = 128 * 1024;
+    /**
+     * Number of size classes.
+     */
+    private static final int CLASSES = 5;
+    /**
+     * Buffers per class each thread keeps.
+     */
+    private static final int THREAD_CACHE = 8;
+    /**
+     * Buffers per class the shared pool keeps.
+     */
+    private static final int SHARED_LIMIT = 256;
+    /**
+     * Pool used by clients and servers unless given another.
+     */
+    private static final BufferPool defaultPool =
+            new BufferPool(false, Boolean.getBoolean("jNetworkInterface.leakDetection"));
+    /**
+     * Allocate direct buffers.
+     */
+    private final boolean direct;
+    /**
+     * Record acquire sites and report leaks.
+     */
+    private volatile boolean leakDetection;
+    /**
+     * Shared free buffers per class.
+     */
+    @SuppressWarnings("unchecked")
+    private final ConcurrentLinkedQueue<Handle>[] shared =
+            (ConcurrentLinkedQueue<Handle>[]) new ConcurrentLinkedQueue<?>[CLASSES];
+    /**
+     * Shared free buffer counts per class.
+     */
+    private final AtomicInteger[] sharedCounts = new AtomicInteger[CLASSES];
+    /**
+     * Per-thread free buffers.
+     */
+    private final ThreadLocal<Handle[][]> caches = ThreadLocal.withInitial(() -> new Handle[CLASSES][THREAD_CACHE]);
+    /**
+     * Per-thread free buffer counts.
+     */
+    private final ThreadLocal<int[]> cacheCounts = ThreadLocal.withInitial(() -> new int[CLASSES]);
+    /**
+     * Leak records of buffers in use, only filled with leak detection on.
+     */
+    private final Set<LeakRecord> tracked = ConcurrentHashMap.newKeySet();
+    /**
+     * Collected handles that may have leaked.
+     */
+    private final ReferenceQueue<Handle> collected = new ReferenceQueue<>();
+    /**
+     * Usage counters.
+     */
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder leaked = new LongAdder();
+    /**
+     * Logger for leak reports, created on the first leak.
+     */
+    private ServerLogger logger;
+
+    /**
+     * Class constructor.
+     * @param direct Allocate direct buffers
+     * @param leakDetection Record acquire sites and report leaks
+     */
+    public BufferPool(boolean direct, boolean leakDetection) {
+        this.direct = direct;
+        this.leakDetection = leakDetection;
+        for (int i = 0; i < CLASSES; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+            sharedCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Get the shared pool.
+     * @return Default pool of heap buffers
+     */
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Turn leak detection on or off. Buffers acquired while it was off are
+     * not tracked.
+     * @param leakDetection Leak detection status
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * Determine if the pool allocates direct buffers.
+     * @return Direct status
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Acquire a cleared buffer with at least the given capacity.
+     * @param size Capacity needed
+     * @return Buffer, release it when done
+     */
+    public Handle acquire(int size) {
+        acquired.increment();
+        if (leakDetection)
+            reportLeaks();
+        int sizeClass = sizeClass(size);
+        Handle handle = null;
+        if (sizeClass >= 0) {
+            int[] counts = cacheCounts.get();
+            if (counts[sizeClass] > 0) {
+                Handle[] cache = caches.get()[sizeClass];
+                handle = cache[--counts[sizeClass]];
+                cache[counts[sizeClass]] = null;
+            } else {
+                handle = shared[sizeClass].poll();
+                if (handle != null)
+                    sharedCounts[sizeClass].decrementAndGet();
+            }
+        }
+        if (handle == null) {
+            allocated.increment();
+            int capacity = sizeClass >= 0 ? MIN_SIZE << (2 * sizeClass) : size;
+            handle = new Handle(this, direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity),
+                    sizeClass);
+        }
+        handle.buffer.clear();
+        handle.inUse = true;
+        if (leakDetection)
+            handle.leak = new LeakRecord(handle, collected, tracked);
+        return handle;
+    }
+
+    /**
+     * Return a buffer to the pool.
+     * @param handle Buffer
+     */
+    private void release(Handle handle) {
+        if (!handle.inUse)
+            throw new IllegalStateException("Buffer released twice.");
+        handle.inUse = false;
+        released.increment();
+        if (handle.leak != null) {
+            tracked.remove(handle.leak);
+            handle.leak.clear();
+            handle.leak = null;
+        }
+        int sizeClass = handle.sizeClass;
+        if (sizeClass < 0) {
+            dropped.increment();
+            return;
+        }
+        int[] counts = cacheCounts.get();
+        if (counts[sizeClass] < THREAD_CACHE) {
+            caches.get()[sizeClass][counts[sizeClass]++] = handle;
+        } else if (sharedCounts[sizeClass].incrementAndGet() <= SHARED_LIMIT) {
+            shared[sizeClass].offer(handle);
+        } else {
+            sharedCounts[sizeClass].decrementAndGet();
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Log buffers that were garbage collected without being released.
+     */
+    private synchronized void reportLeaks() {
+        Reference<? extends Handle> ref;
+        while ((ref = collected.poll()) != null) {
+            LeakRecord record = (LeakRecord) ref;
+            if (!tracked.remove(record))
+                continue;
+            leaked.increment();
+            if (logger == null)
+                logger = LogLocation.getLocation() != null ?
+                        new ServerLogger(LogLocation.getLocation(), ServerLogger.LOG_ALL) : new ServerLogger();
+            StringBuilder site = new StringBuilder("Buffer was never released. Acquired at:");
+            for (StackTraceElement element : record.site.getStackTrace())
+                site.append("\n\tat ").append(element);
+            logger.write(site.toString(), ServerLogger.LOG_ERROR);
+        }
+    }
+
+    /**
+     * Find the size class for a capacity.
+     * @param size Capacity needed
+     * @return Size class or -1 if too large to pool
+     */
+    private static int sizeClass(int size) {
+        int capacity = MIN_SIZE;
+        for (int i = 0; i < CLASSES; i++, capacity <<= 2)
+            if (size <= capacity)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Get the number of buffers handed out and not yet released.
+     * @return Buffers in use
+     */
+    public long getInUse() {
+        return acquired.sum() - released.sum() - leaked.sum();
+    }
+
+    /**
+     * Get the number of buffers created because none were free.
+     * @return Allocations
+     */
+    public long getAllocated() {
+        return allocated.sum();
+    }
+
+    /**
+     * Get the number of buffers held for reuse.
+     * @return Free buffers
+     */
+    public long getPooled() {
+        return allocated.sum() - dropped.sum() - leaked.sum() - getInUse();
+    }
+
+    /**
+     * Get the number of buffers found leaked.
+     * @return Leaked buffers
+     */
+    public long getLeaked() {
+        return leaked.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "inUse=" + getInUse() + " pooled=" + getPooled() + " allocated=" + getAllocated() +
+                " leaked=" + getLeaked();
+    }
+
+    /**
+     * A pooled buffer. Release it exactly once and stop using it after.
+     */
+    public static class Handle implements AutoCloseable {
+        /**
+         * Owning pool.
+         */
+        private final BufferPool pool;
+        /**
+         * Buffer.
+         */
+        private final ByteBuffer buffer;
+        /**
+         * Size class or -1 if unpooled.
+         */
+        private final int sizeClass;
+        /**
+         * Handed out and not released.
+         */
+        private boolean inUse;
+        /**
+         * Leak record while in use with leak detection on.
+         */
+        private LeakRecord leak;
+
+        /**
+         * Class constructor.
+         * @param pool Owning pool
+         * @param buffer Buffer
+         * @param sizeClass Size class or -1
+         */
+        private Handle(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+            this.pool = pool;
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+        }
+
+        /**
+         * Get the buffer.
+         * @return Buffer
+         */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /**
+         * Return the buffer to its pool.
+         */
+        public void release() {
+            pool.release(this);
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+
+    /**
+     * Weak reference to a handle in use, remembering where it was acquired.
+     */
+    private static class LeakRecord extends WeakReference<Handle> {
+        /**
+         * Acquire site.
+         */
+        private final Throwable site = new Throwable();
+
+        /**
+         * Class constructor. Registers the record as tracked.
+         * @param handle Handle
+         * @param queue Queue collected handles go to
+         * @param tracked Tracked records
+         */
+        private LeakRecord(Handle handle, ReferenceQueue<Handle> queue, Set<LeakRecord> tracked) {
+            super(handle, queue);
+            tracked.add(this);
+        }
+    }
+}
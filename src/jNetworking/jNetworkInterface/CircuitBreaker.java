@@ -0,0 +1,379 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker for one server. Tracks the outcome of the last calls in a
+ * sliding window and opens when too many of them fail or are slow, so the
+ * client fails fast instead of adding load to a struggling server. After the
+ * open duration a few trial calls are let through (half-open); if they all
+ * succeed the breaker closes again.
+ * <p>
+ * Server errors, timeouts and rate limit responses count as failures. Paused
+ * and capacity responses open the breaker straight away, since the server
+ * said it cannot take the call; the breaker holds calls back until it
+ * recovers. A rate limit is usually short and per client, so it only trips
+ * the breaker once enough of the window is limited.
+ */
+public class CircuitBreaker {
+    /**
+     * Breaker state.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Receives state transitions. Called while the breaker is locked, so
+     * listeners should return quickly.
+     */
+    public interface Listener {
+        /**
+         * The breaker changed state.
+         * @param breaker Circuit breaker
+         * @param from Previous state
+         * @param to New state
+         * @param reason Why it changed
+         */
+        void onStateChange(CircuitBreaker breaker, State from, State to, String reason);
+    }
+
+    /**
+     * Outcome of a call that succeeded.
+     */
+    private static final byte SUCCESS = 0;
+    /**
+     * Outcome of a call that succeeded slowly.
+     */
+    private static final byte SLOW = 1;
+    /**
+     * Outcome of a call that failed.
+     */
+    private static final byte FAILURE = 2;
+    /**
+     * Breaker name used in messages.
+     */
+    private final String name;
+    /**
+     * State listeners.
+     */
+    private final List<Listener> listeners;
+    /**
+     * Current state.
+     */
+    private State state;
+    /**
+     * Outcomes of recent calls.
+     */
+    private byte[] window;
+    /**
+     * Number of outcomes recorded in the window.
+     */
+    private int recorded;
+    /**
+     * Next slot in the window.
+     */
+    private int next;
+    /**
+     * Calls required before the rates are checked.
+     */
+    private int minimumCalls;
+    /**
+     * Failure percentage that opens the breaker.
+     */
+    private double failureRateThreshold;
+    /**
+     * Slow call percentage that opens the breaker.
+     */
+    private double slowCallRateThreshold;
+    /**
+     * Calls longer than this in nanoseconds are slow.
+     */
+    private long slowCallDuration;
+    /**
+     * Time to stay open in nanoseconds.
+     */
+    private long openDuration;
+    /**
+     * Time in nanoseconds the breaker opened.
+     */
+    private long openedAt;
+    /**
+     * Trial calls let through while half-open.
+     */
+    private int halfOpenCalls;
+    /**
+     * Trial calls handed out.
+     */
+    private int halfOpenIssued;
+    /**
+     * Trial calls that succeeded.
+     */
+    private int halfOpenSucceeded;
+
+    /**
+     * Class constructor with defaults: a window of 20 calls, opening at 50%
+     * failures or 80% calls slower than 2 seconds after 10 calls, staying open
+     * for 5 seconds and trying 3 calls half-open.
+     * @param name Breaker name
+     */
+    public CircuitBreaker(String name) {
+        this.name = name;
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.state = State.CLOSED;
+        this.window = new byte[20];
+        this.minimumCalls = 10;
+        this.failureRateThreshold = 50;
+        this.slowCallRateThreshold = 80;
+        this.slowCallDuration = TimeUnit.SECONDS.toNanos(2);
+        this.openDuration = TimeUnit.SECONDS.toNanos(5);
+        this.halfOpenCalls = 3;
+    }
+
+    /**
+     * Set the sliding window.
+     * @param size Number of calls in the window
+     * @param minimumCalls Calls required before the rates are checked
+     */
+    public synchronized void setWindow(int size, int minimumCalls) {
+        if (size < 1)
+            return;
+        window = new byte[size];
+        recorded = 0;
+        next = 0;
+        this.minimumCalls = Math.max(1, Math.min(size, minimumCalls));
+    }
+
+    /**
+     * Set the failure percentage that opens the breaker.
+     * @param percent Failure rate from 1 to 100
+     */
+    public synchronized void setFailureRateThreshold(double percent) {
+        failureRateThreshold = percent;
+    }
+
+    /**
+     * Set what counts as a slow call and the slow percentage that opens the
+     * breaker.
+     * @param duration Slow call duration in MS
+     * @param percent Slow call rate from 1 to 100
+     */
+    public synchronized void setSlowCallThreshold(long duration, double percent) {
+        slowCallDuration = TimeUnit.MILLISECONDS.toNanos(duration);
+        slowCallRateThreshold = percent;
+    }
+
+    /**
+     * Set how long the breaker stays open.
+     * @param duration Open duration in MS
+     */
+    public synchronized void setOpenDuration(long duration) {
+        openDuration = TimeUnit.MILLISECONDS.toNanos(duration);
+    }
+
+    /**
+     * Set the number of trial calls while half-open.
+     * @param calls Trial calls
+     */
+    public synchronized void setHalfOpenCalls(int calls) {
+        halfOpenCalls = Math.max(1, calls);
+    }
+
+    /**
+     * Add a state listener.
+     * @param listener Listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a state listener.
+     * @param listener Listener
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Get the breaker name.
+     * @return Name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the current state.
+     * @return State
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Determine if a call would be let through, without taking a permit.
+     * @return Permitted status
+     */
+    public synchronized boolean isCallPermitted() {
+        switch (state) {
+            case OPEN:
+                return System.nanoTime() - openedAt >= openDuration;
+            case HALF_OPEN:
+                return halfOpenIssued < halfOpenCalls;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Take permission to make a call. Every permitted call must be followed
+     * by onResponse() or onError().
+     * @return True if the call may go ahead
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < openDuration)
+                return false;
+            transition(State.HALF_OPEN, "open duration elapsed");
+        }
+        if (state == State.HALF_OPEN) {
+            if (halfOpenIssued >= halfOpenCalls)
+                return false;
+            halfOpenIssued++;
+        }
+        return true;
+    }
+
+    /**
+     * Record a call that got a response. Server error, timeout and rate
+     * limit statuses count as failures, paused and capacity statuses open the
+     * breaker.
+     * @param nanos Call duration in nanoseconds
+     * @param response Server response
+     */
+    public synchronized void onResponse(long nanos, Response response) {
+        switch (response.getStatus()) {
+            case Response.STATUS_PAUSED:
+                trip("server is paused");
+                break;
+            case Response.STATUS_CAPACITY:
+                trip("server is at capacity");
+                break;
+            case Response.STATUS_RATE_LIMITED:
+                record(FAILURE, "server is rate limiting");
+                break;
+            case Response.STATUS_TIMEOUT:
+                record(FAILURE, "command timed out");
+                break;
+            default:
+                if (response.getStatus() >= Response.STATUS_ERROR)
+                    record(FAILURE, "failure rate exceeded");
+                else
+                    record(nanos >= slowCallDuration ? SLOW : SUCCESS, "slow call rate exceeded");
+        }
+    }
+
+    /**
+     * Record a call that failed without a response.
+     * @param nanos Call duration in nanoseconds
+     */
+    public synchronized void onError(long nanos) {
+        record(FAILURE, "failure rate exceeded");
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + " " + state;
+    }
+
+    /**
+     * Record an outcome and open or close the breaker as needed. Caller holds
+     * the lock.
+     * @param outcome Call outcome
+     * @param reason Reason to give if the breaker opens
+     */
+    private void record(byte outcome, String reason) {
+        if (state == State.HALF_OPEN) {
+            if (outcome != SUCCESS) {
+                trip(reason + " while half-open");
+                return;
+            }
+            if (++halfOpenSucceeded >= halfOpenCalls) {
+                recorded = 0;
+                next = 0;
+                transition(State.CLOSED, "trial calls succeeded");
+            }
+            return;
+        }
+        if (state == State.OPEN)
+            return;
+        window[next] = outcome;
+        next = (next + 1) % window.length;
+        recorded = Math.min(recorded + 1, window.length);
+        if (recorded < minimumCalls)
+            return;
+        int failed = 0;
+        int slow = 0;
+        for (int i = 0; i < recorded; i++) {
+            if (window[i] == FAILURE)
+                failed++;
+            else if (window[i] == SLOW)
+                slow++;
+        }
+        if (failed * 100.0 / recorded >= failureRateThreshold)
+            trip("failure rate exceeded");
+        else if (slow * 100.0 / recorded >= slowCallRateThreshold)
+            trip("slow call rate exceeded");
+    }
+
+    /**
+     * Open the breaker. Caller holds the lock.
+     * @param reason Why it opened
+     */
+    private void trip(String reason) {
+        openedAt = System.nanoTime();
+        if (state != State.OPEN)
+            transition(State.OPEN, reason);
+    }
+
+    /**
+     * Change state and notify listeners. Caller holds the lock.
+     * @param to New state
+     * @param reason Why it changed
+     */
+    private void transition(State to, String reason) {
+        State from = state;
+        state = to;
+        halfOpenIssued = 0;
+        halfOpenSucceeded = 0;
+        for (Listener listener : listeners)
+            listener.onStateChange(this, from, to, reason);
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.IOException;
+
+/**
+ * Encodes command inputs and outputs to bytes and back. Codecs are looked up
+ * by name through Codecs, the name travels with the request and response so
+ * both sides agree on the encoding.
+ */
+public interface Codec {
+    /**
+     * Get the codec name.
+     * @return Lower case name
+     */
+    String getName();
+
+    /**
+     * Determine if the codec can encode a value.
+     * @param value Value
+     * @return Support status
+     */
+    boolean supports(Object value);
+
+    /**
+     * Encode a value.
+     * @param value Value, may be null
+     * @return Encoded bytes
+     * @throws IOException If the value cannot be encoded
+     */
+    byte[] encode(Object value) throws IOException;
+
+    /**
+     * Decode a value.
+     * @param data Encoded bytes
+     * @param type Expected type
+     * @param <T> Expected type
+     * @return Value, may be null
+     * @throws IOException If the bytes cannot be decoded to the type
+     */
+    <T> T decode(byte[] data, Class<T> type) throws IOException;
+}
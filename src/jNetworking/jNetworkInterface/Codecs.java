@@ -0,0 +1,79 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of codecs by name. BinaryCodec and SerializableCodec are always
+ * registered.
+ */
+public class Codecs {
+    /**
+     * Registered codecs.
+     */
+    private static final Map<String, Codec> codecs = new ConcurrentHashMap<>();
+
+    static {
+        register(new BinaryCodec());
+        register(new SerializableCodec());
+    }
+
+    /**
+     * Default constructor hidden.
+     */
+    private Codecs() {
+        return;
+    }
+
+    /**
+     * Register a codec, replacing any with the same name.
+     * @param codec Codec
+     */
+    public static void register(Codec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    /**
+     * Look up a codec.
+     * @param name Codec name
+     * @return Codec or null
+     */
+    public static Codec get(String name) {
+        return name == null ? null : codecs.get(name.toLowerCase().trim());
+    }
+
+    /**
+     * Pick a codec for a value: the binary codec if it can encode the value,
+     * Java serialization otherwise.
+     * @param value Value
+     * @return Codec
+     */
+    public static Codec forValue(Object value) {
+        Codec binary = codecs.get(BinaryCodec.NAME);
+        return binary.supports(value) ? binary : codecs.get(SerializableCodec.NAME);
+    }
+}
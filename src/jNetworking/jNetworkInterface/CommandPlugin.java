@@ -0,0 +1,55 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.util.Map;
+
+/**
+ * Service interface for jars in the server's plugin directory. Each jar lists
+ * its implementations in META-INF/services/jNetworking.jNetworkInterface.CommandPlugin
+ * and is loaded in its own class loader, so it can be replaced while the
+ * server runs.
+ */
+public interface CommandPlugin {
+    /**
+     * Get the commands the plugin provides. Settings such as priority and
+     * timeout can be given in a commands file without a class.
+     * @return Command classes by lower case name, each a Command or TypedCommand
+     */
+    Map<String, Class<?>> getCommands();
+
+    /**
+     * Called once after the plugin is loaded and its command classes are
+     * initialized, to exercise hot paths before the first request arrives.
+     */
+    default void warmUp() {
+    }
+
+    /**
+     * Called when the plugin is unloaded.
+     */
+    default void close() {
+    }
+}
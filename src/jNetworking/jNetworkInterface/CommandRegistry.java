@@ -0,0 +1,405 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import com.esotericsoftware.yamlbeans.YamlException;
+import com.esotericsoftware.yamlbeans.YamlReader;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Registry of the commands the server can run, loaded from commands.yaml and
+ * optionally a file that adds to or overrides it. A registry does not change
+ * once built; the server swaps in a new one to reload commands.
+ * <p>
+ * A command maps either straight to a class name or to a map of settings:
+ * <pre>
+ * ping: Ping
+ * test:
+ *   class: Test
+ *   priority: bulk
+ *   timeout: 10000
+ * </pre>
+ * The timeout is the longest the command may run in MS before it is
+ * cancelled. Clients can ask for a shorter one per request.
+ * Built-in commands can be listed without a class to change their settings.
+ */
+public class CommandRegistry {
+    /**
+     * Priority class for cheap control and health check commands.
+     */
+    public static final String PRIORITY_CONTROL = "control";
+    /**
+     * Default priority class.
+     */
+    public static final String PRIORITY_NORMAL = "normal";
+    /**
+     * Priority class for slow or heavy commands.
+     */
+    public static final String PRIORITY_BULK = "bulk";
+    /**
+     * Package the command classes live in.
+     */
+    public static final String COMMAND_PACKAGE = "jNetworking.jNetworkInterface.Commands.";
+    /**
+     * Commands answered by the server itself.
+     */
+    private static final String[] BUILT_INS = {"stats", "diagnostics", "version", "pause", "unpause",
+            "config", "reload", "plugins"};
+    /**
+     * Built-ins that change the server, answered only for admin clients.
+     */
+    private static final String[] ADMIN = {"config", "reload"};
+    /**
+     * Registered commands by name.
+     */
+    private Map<String, Entry> entries;
+    /**
+     * Trie over the command name bytes.
+     */
+    private Node trie;
+    /**
+     * Server logger.
+     */
+    private ServerLogger logger;
+
+    /**
+     * Class constructor that loads the built-ins and commands.yaml.
+     * @param logger Server logger
+     */
+    public CommandRegistry(ServerLogger logger) {
+        this(logger, null);
+    }
+
+    /**
+     * Class constructor that loads the built-ins, commands.yaml and a file of
+     * extra mappings.
+     * @param logger Server logger
+     * @param commandsFile YAML file in the commands.yaml format, null for none
+     */
+    public CommandRegistry(ServerLogger logger, String commandsFile) {
+        this(logger, commandsFile, Collections.emptyMap());
+    }
+
+    /**
+     * Class constructor that loads the built-ins, commands.yaml, a file of
+     * extra mappings and plugin commands. Plugin commands take their settings
+     * from entries without a class in the YAML, and cannot replace commands
+     * that have a class.
+     * @param logger Server logger
+     * @param commandsFile YAML file in the commands.yaml format, null for none
+     * @param plugins Plugin command classes by name
+     */
+    public CommandRegistry(ServerLogger logger, String commandsFile, Map<String, Class<?>> plugins) {
+        this.logger = logger;
+        this.entries = new HashMap<>();
+        for (String name : BUILT_INS)
+            entries.put(name, new Entry(name, null, PRIORITY_CONTROL, 0));
+        load(getClass().getResourceAsStream("commands.yaml"), "commands.yaml");
+        if (commandsFile != null) {
+            try (InputStream in = new FileInputStream(commandsFile)) {
+                load(in, commandsFile);
+            } catch (IOException ex) {
+                logger.write(commandsFile + " could not be read.", ServerLogger.LOG_WARN);
+            }
+        }
+        Set<String> builtIns = new HashSet<>(Arrays.asList(BUILT_INS));
+        for (Map.Entry<String, Class<?>> plugin : plugins.entrySet()) {
+            Entry existing = entries.get(plugin.getKey());
+            if (builtIns.contains(plugin.getKey()) || (existing != null && !existing.isBuiltIn())) {
+                logger.write("Plugin command '" + plugin.getKey() + "' is already registered.", ServerLogger.LOG_WARN);
+                continue;
+            }
+            entries.put(plugin.getKey(), new Entry(plugin.getKey(), null, plugin.getValue(),
+                    existing == null ? PRIORITY_NORMAL : existing.priority, existing == null ? 0 : existing.timeout));
+        }
+        // Settings for a plugin that is not loaded leave an entry with nothing to run.
+        entries.values().removeIf(entry -> entry.isBuiltIn() && !builtIns.contains(entry.getName()));
+        trie = buildTrie(entries);
+    }
+
+    /**
+     * Look up a command.
+     * @param name Lower case command name
+     * @return Entry or null if the command does not exist
+     */
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Look up a command by its lower case name bytes without building a
+     * String.
+     * @param bytes Buffer
+     * @param offset Name offset
+     * @param length Name length
+     * @return Entry or null if the command does not exist
+     */
+    public Entry match(byte[] bytes, int offset, int length) {
+        Node node = trie;
+        for (int i = 0; i < length && node != null; i++)
+            node = node.child(bytes[offset + i]);
+        return node == null ? null : node.entry;
+    }
+
+    /**
+     * Get all registered commands.
+     * @return Entries
+     */
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Determine if a priority class is one the server knows.
+     * @param priority Priority class
+     * @return Validity
+     */
+    public static boolean isPriority(String priority) {
+        return PRIORITY_CONTROL.equals(priority) || PRIORITY_NORMAL.equals(priority) ||
+                PRIORITY_BULK.equals(priority);
+    }
+
+    /**
+     * Determine if a command changes the server's settings.
+     * @param name Command name
+     * @return True for admin commands
+     */
+    public static boolean isAdmin(String name) {
+        for (String admin : ADMIN) {
+            if (admin.equals(name))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Read command mappings from YAML.
+     * @param in YAML stream
+     * @param source Name of the source for the log
+     */
+    private void load(InputStream in, String source) {
+        if (in == null) {
+            logger.write(source + " could not be found.", ServerLogger.LOG_WARN);
+            return;
+        }
+        Map<?, ?> map;
+        try {
+            map = (Map<?, ?>) new YamlReader(new InputStreamReader(in, StandardCharsets.UTF_8)).read();
+        } catch (YamlException | ClassCastException ex) {
+            logger.write(source + " could not be parsed.", ServerLogger.LOG_ERROR);
+            return;
+        }
+        if (map == null)
+            return;
+        for (Object key : map.keySet()) {
+            String name = key.toString().toLowerCase().trim();
+            Object value = map.get(key);
+            Entry existing = entries.get(name);
+            String className = existing == null ? null : existing.className;
+            String priority = existing == null ? PRIORITY_NORMAL : existing.priority;
+            long timeout = existing == null ? 0 : existing.timeout;
+            if (value instanceof Map) {
+                Map<?, ?> settings = (Map<?, ?>) value;
+                if (settings.get("class") != null)
+                    className = settings.get("class").toString();
+                if (settings.get("priority") != null)
+                    priority = settings.get("priority").toString().toLowerCase().trim();
+                if (settings.get("timeout") != null) {
+                    try {
+                        timeout = Math.max(0, Long.parseLong(settings.get("timeout").toString().trim()));
+                    } catch (NumberFormatException ex) {
+                        logger.write("Invalid timeout for command '" + name + "'.", ServerLogger.LOG_WARN);
+                    }
+                }
+            } else if (value != null)
+                className = value.toString();
+            if (!isPriority(priority)) {
+                logger.write("Unknown priority '" + priority + "' for command '" + name + "'.",
+                        ServerLogger.LOG_WARN);
+                priority = PRIORITY_NORMAL;
+            }
+            entries.put(name, new Entry(name, className, priority, timeout));
+        }
+    }
+
+    /**
+     * Build the trie over the UTF-8 bytes of the command names.
+     * @param entries Commands by name
+     * @return Root node
+     */
+    private static Node buildTrie(Map<String, Entry> entries) {
+        Node root = new Node();
+        for (Entry entry : entries.values()) {
+            Node node = root;
+            for (byte b : entry.getName().getBytes(StandardCharsets.UTF_8))
+                node = node.add(b);
+            node.entry = entry;
+        }
+        return root;
+    }
+
+    /**
+     * Trie node. Command names are short so children are found by a linear
+     * scan.
+     */
+    private static class Node {
+        /**
+         * Child bytes.
+         */
+        private byte[] keys = new byte[0];
+        /**
+         * Child nodes, parallel to keys.
+         */
+        private Node[] children = new Node[0];
+        /**
+         * Command ending at this node, null if none.
+         */
+        private Entry entry;
+
+        /**
+         * Find a child.
+         * @param b Next byte
+         * @return Child or null
+         */
+        private Node child(byte b) {
+            for (int i = 0; i < keys.length; i++)
+                if (keys[i] == b)
+                    return children[i];
+            return null;
+        }
+
+        /**
+         * Find or add a child.
+         * @param b Next byte
+         * @return Child
+         */
+        private Node add(byte b) {
+            Node child = child(b);
+            if (child == null) {
+                child = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = b;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+    /**
+     * A registered command.
+     */
+    public static class Entry {
+        /**
+         * Command name.
+         */
+        private final String name;
+        /**
+         * Simple class name in the commands package, null for built-ins.
+         */
+        private final String className;
+        /**
+         * Plugin command class, null if the class is found by name.
+         */
+        private final Class<?> type;
+        /**
+         * Priority class.
+         */
+        private final String priority;
+        /**
+         * Longest the command may run in MS, 0 for no limit.
+         */
+        private final long timeout;
+        /**
+         * Resolved constructor, looked up on first use.
+         */
+        private volatile Constructor<?> constructor;
+
+        Entry(String name, String className, String priority, long timeout) {
+            this(name, className, null, priority, timeout);
+        }
+
+        Entry(String name, String className, Class<?> type, String priority, long timeout) {
+            this.name = name;
+            this.className = className;
+            this.type = type;
+            this.priority = priority;
+            this.timeout = timeout;
+        }
+
+        /**
+         * Get the command name.
+         * @return Name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the priority class.
+         * @return Priority class
+         */
+        public String getPriority() {
+            return priority;
+        }
+
+        /**
+         * Get the longest the command may run.
+         * @return Time limit in MS, 0 for none
+         */
+        public long getTimeout() {
+            return timeout;
+        }
+
+        /**
+         * Determine if the server answers this command itself.
+         * @return Built-in status
+         */
+        public boolean isBuiltIn() {
+            return className == null && type == null;
+        }
+
+        /**
+         * Create a new instance of the command.
+         * @return Command or TypedCommand
+         * @throws ReflectiveOperationException If the class cannot be created
+         */
+        public Object newInstance() throws ReflectiveOperationException {
+            Constructor<?> cs = constructor;
+            if (cs == null) {
+                cs = (type != null ? type : Class.forName(COMMAND_PACKAGE + className)).getConstructor();
+                constructor = cs;
+            }
+            return cs.newInstance();
+        }
+    }
+}
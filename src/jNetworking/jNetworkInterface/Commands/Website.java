@@ -25,12 +25,16 @@
 package jNetworking.jNetworkInterface.Commands;
 
 import jNetworking.jNetworkInterface.Command;
+import jNetworking.jNetworkInterface.Span;
+import jNetworking.jNetworkInterface.TraceContext;
+import jNetworking.jNetworkInterface.Tracing;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.Socket;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
 
 /**
@@ -56,15 +60,28 @@ public class Website implements Command {
        BufferedReader reader;
        String response = "";
        String line = "";
+       // Pass the request's trace on to the site as a W3C traceparent header.
+       TraceContext trace = TraceContext.current();
+       Span span = Tracing.start("fetch", trace);
+       if (span != null)
+           trace = span.getContext();
        try {
            url = new URL(this.url);
-           reader = new BufferedReader(new InputStreamReader(url.openStream()));
+           URLConnection connection = url.openConnection();
+           if (trace != null)
+               connection.setRequestProperty("traceparent", trace.toString());
+           reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
            while ((line = reader.readLine()) != null)
                response += line;
            reader.close();
            return response;
        } catch (IOException ex) {
+           if (span != null)
+               span.setAttribute("error", ex.getMessage());
            return "Error loading page";
+       } finally {
+           if (span != null)
+               span.setAttribute("url", this.url).end();
        }
    }
 }
@@ -0,0 +1,362 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Samples heap, GC, thread and server load figures at a fixed interval on a
+ * background thread and keeps the latest samples in a ring buffer, so nothing
+ * on the request path has to query the runtime.
+ */
+public class DiagnosticsSampler {
+    /**
+     * Default sample interval in MS.
+     */
+    public static final long INTERVAL = 1000;
+    /**
+     * Default number of samples kept.
+     */
+    public static final int CAPACITY = 60;
+    /**
+     * Server being sampled.
+     */
+    private final jNetworkInterfaceServer server;
+    /**
+     * Ring buffer of samples.
+     */
+    private final Sample[] samples;
+    /**
+     * Total samples taken, the next slot is count modulo capacity.
+     */
+    private long count;
+    /**
+     * Sample interval in MS.
+     */
+    private volatile long interval;
+    /**
+     * Sampler thread, null when not running.
+     */
+    private Thread worker;
+    /**
+     * Memory bean.
+     */
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    /**
+     * Thread bean.
+     */
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    /**
+     * Collector beans.
+     */
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+
+    /**
+     * Class constructor with the default interval and capacity.
+     * @param server Server to sample
+     */
+    public DiagnosticsSampler(jNetworkInterfaceServer server) {
+        this(server, INTERVAL, CAPACITY);
+    }
+
+    /**
+     * Class constructor.
+     * @param server Server to sample
+     * @param interval Sample interval in MS
+     * @param capacity Number of samples kept
+     */
+    public DiagnosticsSampler(jNetworkInterfaceServer server, long interval, int capacity) {
+        if (interval <= 0 || capacity <= 0)
+            throw new IllegalArgumentException("Interval and capacity must be positive.");
+        this.server = server;
+        this.interval = interval;
+        this.samples = new Sample[capacity];
+    }
+
+    /**
+     * Set the sample interval. Takes effect after the current wait.
+     * @param interval Interval in MS
+     */
+    public void setInterval(long interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("Interval must be positive.");
+        this.interval = interval;
+    }
+
+    /**
+     * @return Sample interval in MS
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Start the sampler thread if it is not running.
+     */
+    public synchronized void start() {
+        if (worker != null)
+            return;
+        worker = new Thread(this::work, "jNetworkInterfaceServer-diagnostics");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stop the sampler thread. Samples taken so far are kept.
+     */
+    public synchronized void stop() {
+        if (worker == null)
+            return;
+        worker.interrupt();
+        worker = null;
+    }
+
+    /**
+     * Take a sample now and add it to the ring buffer.
+     * @return Sample
+     */
+    public Sample sample() {
+        MemoryUsage heap = memory.getHeapMemoryUsage();
+        long gcCount = 0;
+        long gcTime = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            // Collectors report -1 when the figure is not available.
+            gcCount += Math.max(0, collector.getCollectionCount());
+            gcTime += Math.max(0, collector.getCollectionTime());
+        }
+        Sample sample = new Sample(System.currentTimeMillis(), heap.getUsed(), heap.getCommitted(), heap.getMax(),
+                gcCount, gcTime, threads.getThreadCount(), threads.getDaemonThreadCount(), server.getInFlight(),
+                server.getQueueDepth());
+        synchronized (this) {
+            samples[(int) (count++ % samples.length)] = sample;
+        }
+        return sample;
+    }
+
+    /**
+     * Get the samples in the ring buffer.
+     * @return Samples, oldest first
+     */
+    public synchronized List<Sample> getSamples() {
+        int size = (int) Math.min(count, samples.length);
+        List<Sample> list = new ArrayList<>(size);
+        for (long i = count - size; i < count; i++)
+            list.add(samples[(int) (i % samples.length)]);
+        return list;
+    }
+
+    /**
+     * Get the newest sample.
+     * @return Sample or null if none has been taken
+     */
+    public synchronized Sample getLatest() {
+        return count == 0 ? null : samples[(int) ((count - 1) % samples.length)];
+    }
+
+    /**
+     * Format the samples as comma separated lines under a header line.
+     * @return Samples, oldest first
+     */
+    public String format() {
+        StringBuilder builder = new StringBuilder(Sample.HEADER);
+        for (Sample sample : getSamples())
+            builder.append('\n').append(sample);
+        return builder.toString();
+    }
+
+    /**
+     * Sampler thread loop.
+     */
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            sample();
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * One diagnostics sample.
+     */
+    public static class Sample {
+        /**
+         * Column names for formatted samples.
+         */
+        public static final String HEADER =
+                "time,heapUsed,heapCommitted,heapMax,gcCount,gcTime,threads,daemonThreads,inFlight,queued";
+        /**
+         * Sample time.
+         */
+        private final long time;
+        /**
+         * Heap bytes in use.
+         */
+        private final long heapUsed;
+        /**
+         * Heap bytes committed.
+         */
+        private final long heapCommitted;
+        /**
+         * Maximum heap bytes, -1 if undefined.
+         */
+        private final long heapMax;
+        /**
+         * Total collections.
+         */
+        private final long gcCount;
+        /**
+         * Total time spent collecting in MS.
+         */
+        private final long gcTime;
+        /**
+         * Live threads.
+         */
+        private final int threadCount;
+        /**
+         * Live daemon threads.
+         */
+        private final int daemonThreadCount;
+        /**
+         * Tasks the server has accepted and not finished.
+         */
+        private final int inFlight;
+        /**
+         * Work waiting in the server's queues.
+         */
+        private final int queueDepth;
+
+        /**
+         * Class constructor.
+         * @param time Sample time
+         * @param heapUsed Heap bytes in use
+         * @param heapCommitted Heap bytes committed
+         * @param heapMax Maximum heap bytes
+         * @param gcCount Total collections
+         * @param gcTime Total collection time in MS
+         * @param threadCount Live threads
+         * @param daemonThreadCount Live daemon threads
+         * @param inFlight In-flight tasks
+         * @param queueDepth Queued work
+         */
+        public Sample(long time, long heapUsed, long heapCommitted, long heapMax, long gcCount, long gcTime,
+                      int threadCount, int daemonThreadCount, int inFlight, int queueDepth) {
+            this.time = time;
+            this.heapUsed = heapUsed;
+            this.heapCommitted = heapCommitted;
+            this.heapMax = heapMax;
+            this.gcCount = gcCount;
+            this.gcTime = gcTime;
+            this.threadCount = threadCount;
+            this.daemonThreadCount = daemonThreadCount;
+            this.inFlight = inFlight;
+            this.queueDepth = queueDepth;
+        }
+
+        /**
+         * @return Sample time
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return Heap bytes in use
+         */
+        public long getHeapUsed() {
+            return heapUsed;
+        }
+
+        /**
+         * @return Heap bytes committed
+         */
+        public long getHeapCommitted() {
+            return heapCommitted;
+        }
+
+        /**
+         * @return Maximum heap bytes, -1 if undefined
+         */
+        public long getHeapMax() {
+            return heapMax;
+        }
+
+        /**
+         * @return Total collections
+         */
+        public long getGcCount() {
+            return gcCount;
+        }
+
+        /**
+         * @return Total collection time in MS
+         */
+        public long getGcTime() {
+            return gcTime;
+        }
+
+        /**
+         * @return Live threads
+         */
+        public int getThreadCount() {
+            return threadCount;
+        }
+
+        /**
+         * @return Live daemon threads
+         */
+        public int getDaemonThreadCount() {
+            return daemonThreadCount;
+        }
+
+        /**
+         * @return In-flight tasks
+         */
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * @return Queued work
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        @Override
+        public String toString() {
+            return time + "," + heapUsed + "," + heapCommitted + "," + heapMax + "," + gcCount + "," + gcTime + "," +
+                    threadCount + "," + daemonThreadCount + "," + inFlight + "," + queueDepth;
+        }
+    }
+}
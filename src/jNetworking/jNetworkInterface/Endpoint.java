@@ -0,0 +1,306 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One server a jNetworkInterfaceBalancer can send commands to. Keeps a few
+ * idle kept-open connections and tracks the server's health and latency.
+ */
+public class Endpoint {
+    /**
+     * Consecutive failures before the endpoint is ejected.
+     */
+    public static final int EJECT_FAILURES = 3;
+    /**
+     * First ejection time in MS, doubled for each ejection in a row.
+     */
+    public static final long EJECT_BACKOFF = 1000;
+    /**
+     * Longest ejection time in MS.
+     */
+    public static final long EJECT_BACKOFF_MAX = 60000;
+    /**
+     * Most idle connections kept, surplus connections are closed.
+     */
+    public static final int MAX_IDLE = 8;
+    /**
+     * Server hostname.
+     */
+    private final String hostname;
+    /**
+     * Server port.
+     */
+    private final int port;
+    /**
+     * Flag to use SSL.
+     */
+    private final boolean ssl;
+    /**
+     * Idle kept-open clients.
+     */
+    private final Queue<jNetworkInterface> idle;
+    /**
+     * Number of idle clients.
+     */
+    private final AtomicInteger idleCount;
+    /**
+     * Round trip times of completed commands.
+     */
+    private final RttEstimator rtt;
+    /**
+     * Commands sent and not yet answered.
+     */
+    private final AtomicInteger outstanding;
+    /**
+     * Total commands sent.
+     */
+    private final AtomicLong requests;
+    /**
+     * Total commands that failed.
+     */
+    private final AtomicLong failures;
+    /**
+     * Circuit breaker for this server.
+     */
+    private final CircuitBreaker breaker;
+    /**
+     * Failures since the last success.
+     */
+    private int consecutiveFailures;
+    /**
+     * Ejections since the last success.
+     */
+    private int ejections;
+    /**
+     * Time in nanoseconds the current ejection ends.
+     */
+    private long ejectedUntil;
+
+    /**
+     * Class constructor.
+     * @param hostname Server hostname
+     * @param port Server port
+     * @param ssl Use SSL
+     */
+    public Endpoint(String hostname, int port, boolean ssl) {
+        this.hostname = hostname;
+        this.port = port;
+        this.ssl = ssl;
+        this.idle = new ConcurrentLinkedQueue<>();
+        this.idleCount = new AtomicInteger();
+        this.rtt = new RttEstimator();
+        this.outstanding = new AtomicInteger();
+        this.requests = new AtomicLong();
+        this.failures = new AtomicLong();
+        this.breaker = new CircuitBreaker(hostname + ":" + port);
+    }
+
+    /**
+     * Send a command to this server.
+     * @param command Command to send
+     * @param data Data to send
+     * @param deadline Time limit in MS, 0 for none
+     * @return Server response
+     */
+    public Response sendRequest(String command, ArrayList<String> data, long deadline) {
+        return sendRequest(new Request(command, data).setDeadline(deadline));
+    }
+
+    /**
+     * Send a request to this server.
+     * @param request Request to send
+     * @return Server response
+     */
+    public Response sendRequest(Request request) {
+        if (!breaker.tryAcquire())
+            throw new CircuitOpenException(breaker);
+        jNetworkInterface client = idle.poll();
+        if (client != null)
+            idleCount.decrementAndGet();
+        else {
+            client = new jNetworkInterface(hostname, port, ssl);
+            client.setKeepAlive(true);
+        }
+        outstanding.incrementAndGet();
+        requests.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            Response response = client.sendRequest(request);
+            long elapsed = System.nanoTime() - start;
+            rtt.addSample(elapsed);
+            breaker.onResponse(elapsed, response);
+            // Capacity, rate limit and server errors are the server failing
+            // the command even though the connection is fine.
+            if (response.isRetryable() || response.getStatus() >= Response.STATUS_ERROR)
+                recordFailure();
+            else
+                recordSuccess();
+            release(client);
+            return response;
+        } catch (RuntimeException ex) {
+            breaker.onError(System.nanoTime() - start);
+            recordFailure();
+            client.setKeepAlive(false);
+            throw ex;
+        } finally {
+            outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Return a client to the idle queue, or close it if the queue is full.
+     * @param client Kept-open client
+     */
+    private void release(jNetworkInterface client) {
+        if (idleCount.incrementAndGet() > MAX_IDLE) {
+            idleCount.decrementAndGet();
+            client.setKeepAlive(false);
+            return;
+        }
+        idle.offer(client);
+    }
+
+    /**
+     * Determine if the endpoint can take commands.
+     * @return False while ejected or while the circuit breaker is open
+     */
+    public synchronized boolean isAvailable() {
+        return (ejectedUntil == 0 || System.nanoTime() - ejectedUntil >= 0) && breaker.isCallPermitted();
+    }
+
+    /**
+     * Record a successful command, ending any ejection.
+     */
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        ejections = 0;
+        ejectedUntil = 0;
+    }
+
+    /**
+     * Record a failed command. Too many in a row ejects the endpoint for a
+     * backoff that doubles with each ejection.
+     */
+    public synchronized void recordFailure() {
+        failures.incrementAndGet();
+        rtt.addFailure();
+        if (++consecutiveFailures < EJECT_FAILURES)
+            return;
+        long backoff = Math.min(EJECT_BACKOFF_MAX, EJECT_BACKOFF << Math.min(ejections, 16));
+        ejectedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+        ejections++;
+        // One more failure after the backoff ejects it again.
+        consecutiveFailures = EJECT_FAILURES - 1;
+    }
+
+    /**
+     * Close the idle connections.
+     */
+    public void close() {
+        jNetworkInterface client;
+        while ((client = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            client.setKeepAlive(false);
+        }
+    }
+
+    /**
+     * Get the server hostname.
+     * @return Hostname
+     */
+    public String getHostname() {
+        return hostname;
+    }
+
+    /**
+     * Get the server port.
+     * @return Port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Get the round trip times of completed commands.
+     * @return RTT estimator
+     */
+    public RttEstimator getRttEstimator() {
+        return rtt;
+    }
+
+    /**
+     * Get the circuit breaker, e.g. to tune it or listen for state changes.
+     * @return Circuit breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Get the number of commands waiting on a response.
+     * @return Outstanding count
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Get the total number of commands sent.
+     * @return Request count
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Get the total number of failed commands.
+     * @return Failure count
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Get the number of ejections since the last success.
+     * @return Ejection count
+     */
+    public synchronized int getEjectionCount() {
+        return ejections;
+    }
+
+    @Override
+    public String toString() {
+        return hostname + ":" + port + " outstanding=" + getOutstanding() + " requests=" + getRequestCount() +
+                " failures=" + getFailureCount() + (isAvailable() ? "" : " ejected") + " breaker=" +
+                breaker.getState() + " " + rtt;
+    }
+}
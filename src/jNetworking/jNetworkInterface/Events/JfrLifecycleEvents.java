@@ -0,0 +1,240 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface.Events;
+
+import jNetworking.jNetworkInterface.LifecycleEvents;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Lifecycle events recorded with Java Flight Recorder. Loaded by name from
+ * LifecycleEvents, so this package needs a runtime with jdk.jfr.
+ */
+public class JfrLifecycleEvents extends LifecycleEvents {
+    /**
+     * Accept event type.
+     */
+    private final EventType accept = EventType.getEventType(AcceptEvent.class);
+    /**
+     * Enqueue event type.
+     */
+    private final EventType enqueue = EventType.getEventType(EnqueueEvent.class);
+    /**
+     * Dequeue event type.
+     */
+    private final EventType dequeue = EventType.getEventType(DequeueEvent.class);
+    /**
+     * Lookup event type.
+     */
+    private final EventType lookup = EventType.getEventType(LookupEvent.class);
+    /**
+     * Execute event type.
+     */
+    private final EventType execute = EventType.getEventType(ExecuteEvent.class);
+    /**
+     * Write event type.
+     */
+    private final EventType write = EventType.getEventType(WriteEvent.class);
+    /**
+     * Connect event type.
+     */
+    private final EventType connect = EventType.getEventType(ConnectEvent.class);
+    /**
+     * Handshake event type.
+     */
+    private final EventType handshake = EventType.getEventType(HandshakeEvent.class);
+    /**
+     * Round trip event type.
+     */
+    private final EventType roundTrip = EventType.getEventType(RoundTripEvent.class);
+
+    @Override
+    public Object begin(String phase) {
+        LifecycleEvent event;
+        // Nothing is allocated unless a recording wants the event.
+        switch (phase) {
+            case ACCEPT:
+                event = accept.isEnabled() ? new AcceptEvent() : null;
+                break;
+            case ENQUEUE:
+                event = enqueue.isEnabled() ? new EnqueueEvent() : null;
+                break;
+            case DEQUEUE:
+                event = dequeue.isEnabled() ? new DequeueEvent() : null;
+                break;
+            case LOOKUP:
+                event = lookup.isEnabled() ? new LookupEvent() : null;
+                break;
+            case EXECUTE:
+                event = execute.isEnabled() ? new ExecuteEvent() : null;
+                break;
+            case WRITE:
+                event = write.isEnabled() ? new WriteEvent() : null;
+                break;
+            case CONNECT:
+                event = connect.isEnabled() ? new ConnectEvent() : null;
+                break;
+            case HANDSHAKE:
+                event = handshake.isEnabled() ? new HandshakeEvent() : null;
+                break;
+            case ROUND_TRIP:
+                event = roundTrip.isEnabled() ? new RoundTripEvent() : null;
+                break;
+            default:
+                event = null;
+        }
+        if (event != null)
+            event.begin();
+        return event;
+    }
+
+    @Override
+    public void commit(Object event, String command, Object peer, long size, int status) {
+        if (!(event instanceof LifecycleEvent))
+            return;
+        LifecycleEvent lifecycle = (LifecycleEvent) event;
+        lifecycle.end();
+        // Below the recording's threshold, skip formatting the fields.
+        if (!lifecycle.shouldCommit())
+            return;
+        lifecycle.command = command;
+        lifecycle.peer = peer == null ? null : peer.toString();
+        lifecycle.size = size;
+        lifecycle.status = status;
+        lifecycle.commit();
+    }
+
+    /**
+     * Fields shared by every lifecycle event.
+     */
+    @Category({"jNetworkInterface"})
+    public abstract static class LifecycleEvent extends Event {
+        /**
+         * Command name.
+         */
+        @Label("Command")
+        String command;
+        /**
+         * Remote address.
+         */
+        @Label("Peer")
+        String peer;
+        /**
+         * Bytes involved, or queue depth for enqueue events.
+         */
+        @Label("Size")
+        long size;
+        /**
+         * Response status.
+         */
+        @Label("Status")
+        int status;
+    }
+
+    /**
+     * Server accepting a connection.
+     */
+    @Name("jNetworkInterface.Accept")
+    @Label("Accept")
+    @Description("Accepting a connection and handing it to a worker group")
+    public static class AcceptEvent extends LifecycleEvent {
+    }
+
+    /**
+     * Task queued for a worker.
+     */
+    @Name("jNetworkInterface.Enqueue")
+    @Label("Enqueue")
+    @Description("Task queued for a worker, size is the queue depth")
+    public static class EnqueueEvent extends LifecycleEvent {
+    }
+
+    /**
+     * Task waiting for a worker.
+     */
+    @Name("jNetworkInterface.Dequeue")
+    @Label("Dequeue")
+    @Description("Time a task waited in the queue before a worker picked it up")
+    public static class DequeueEvent extends LifecycleEvent {
+    }
+
+    /**
+     * Request parsing and command lookup.
+     */
+    @Name("jNetworkInterface.Lookup")
+    @Label("Command Lookup")
+    @Description("Parsing a request and looking up its command, size is the request bytes")
+    public static class LookupEvent extends LifecycleEvent {
+    }
+
+    /**
+     * Command execution.
+     */
+    @Name("jNetworkInterface.Execute")
+    @Label("Execute")
+    @Description("Running a command, size is the response bytes")
+    public static class ExecuteEvent extends LifecycleEvent {
+    }
+
+    /**
+     * Response write.
+     */
+    @Name("jNetworkInterface.Write")
+    @Label("Write")
+    @Description("Writing a response, size is the response bytes")
+    public static class WriteEvent extends LifecycleEvent {
+    }
+
+    /**
+     * Client connecting.
+     */
+    @Name("jNetworkInterface.Connect")
+    @Label("Connect")
+    @Description("Client opening a connection")
+    public static class ConnectEvent extends LifecycleEvent {
+    }
+
+    /**
+     * Client TLS handshake.
+     */
+    @Name("jNetworkInterface.Handshake")
+    @Label("TLS Handshake")
+    @Description("Client TLS handshake")
+    public static class HandshakeEvent extends LifecycleEvent {
+    }
+
+    /**
+     * Client round trip.
+     */
+    @Name("jNetworkInterface.RoundTrip")
+    @Label("Round Trip")
+    @Description("Client sending a request and reading its response, size is the response bytes")
+    public static class RoundTripEvent extends LifecycleEvent {
+    }
+}
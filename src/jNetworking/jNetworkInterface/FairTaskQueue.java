@@ -0,0 +1,298 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Task queue that serves clients in weighted round-robin order instead of
+ * first-come, so one busy client cannot push everyone else to the back.
+ * Each client gets a sub-queue; a client with weight n is served up to n
+ * tasks per turn.
+ */
+public class FairTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    /**
+     * Key for tasks that do not belong to a client.
+     */
+    private static final Object NO_CLIENT = new Object();
+    /**
+     * Lock guarding all queue state.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when a task is added.
+     */
+    private final Condition notEmpty = lock.newCondition();
+    /**
+     * Pending tasks by client.
+     */
+    private final Map<Object, ArrayDeque<Runnable>> queues = new HashMap<>();
+    /**
+     * Clients with pending tasks, in service order.
+     */
+    private final ArrayDeque<Object> ring = new ArrayDeque<>();
+    /**
+     * Client weights, shared with the server.
+     */
+    private final Map<InetAddress, Integer> weights;
+    /**
+     * Tasks the client at the head of the ring may still take this turn.
+     */
+    private int credit;
+    /**
+     * Total pending tasks.
+     */
+    private int count;
+
+    /**
+     * Class constructor.
+     * @param weights Client weights, clients not listed have weight 1
+     */
+    public FairTaskQueue(Map<InetAddress, Integer> weights) {
+        this.weights = weights;
+    }
+
+    /**
+     * Default constructor where every client has weight 1.
+     */
+    public FairTaskQueue() {
+        this(new ConcurrentHashMap<>());
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        Objects.requireNonNull(task);
+        Object key = keyOf(task);
+        lock.lock();
+        try {
+            ArrayDeque<Runnable> queue = queues.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(key, queue);
+                if (ring.isEmpty())
+                    credit = weightOf(key);
+                ring.addLast(key);
+            }
+            queue.addLast(task);
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            return ring.isEmpty() ? null : queues.get(ring.peekFirst()).peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable task) {
+        offer(task);
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+        return offer(task);
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0)
+                notEmpty.await();
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Runnable))
+            return false;
+        Object key = keyOf((Runnable) o);
+        lock.lock();
+        try {
+            ArrayDeque<Runnable> queue = queues.get(key);
+            if (queue == null || !queue.remove(o))
+                return false;
+            count--;
+            if (queue.isEmpty())
+                dropClient(key);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && count > 0) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterates over a snapshot of the pending tasks.
+     * @return Iterator
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<>(count);
+            for (Object key : ring)
+                snapshot.addAll(queues.get(key));
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next task in round-robin order. Caller holds the lock.
+     * @return Task or null if empty
+     */
+    private Runnable dequeue() {
+        if (ring.isEmpty())
+            return null;
+        Object key = ring.peekFirst();
+        ArrayDeque<Runnable> queue = queues.get(key);
+        Runnable task = queue.pollFirst();
+        count--;
+        if (queue.isEmpty())
+            dropClient(key);
+        else if (--credit <= 0) {
+            // Turn is over, move to the back of the line.
+            ring.addLast(ring.pollFirst());
+            credit = weightOf(ring.peekFirst());
+        }
+        return task;
+    }
+
+    /**
+     * Remove a client with no pending tasks. Caller holds the lock.
+     * @param key Client key
+     */
+    private void dropClient(Object key) {
+        queues.remove(key);
+        boolean wasHead = key.equals(ring.peekFirst());
+        ring.remove(key);
+        if (wasHead && !ring.isEmpty())
+            credit = weightOf(ring.peekFirst());
+    }
+
+    /**
+     * Get the weight for a client key.
+     * @param key Client key
+     * @return Weight, at least 1
+     */
+    private int weightOf(Object key) {
+        Integer weight = weights.get(key);
+        return weight == null ? 1 : Math.max(1, weight);
+    }
+
+    /**
+     * Get the client key for a task.
+     * @param task Task
+     * @return Client address or the shared no-client key
+     */
+    private static Object keyOf(Runnable task) {
+        if (task instanceof jNetworkInterfaceServerTask) {
+            InetAddress address = ((jNetworkInterfaceServerTask) task).getClientAddress();
+            if (address != null)
+                return address;
+        }
+        return NO_CLIENT;
+    }
+}
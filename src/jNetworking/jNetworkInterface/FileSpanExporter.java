@@ -0,0 +1,209 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reference exporter that appends one JSON object per span to a file. Spans
+ * are written by a background thread and dropped when its queue is full.
+ */
+public class FileSpanExporter implements SpanExporter {
+    /**
+     * Spans the queue holds before new ones are dropped.
+     */
+    private static final int QUEUE_SIZE = 65536;
+    /**
+     * Time in MS the writer waits for a span before checking for close.
+     */
+    private static final long POLL = 100;
+    /**
+     * Output file.
+     */
+    private final String path;
+    /**
+     * Spans waiting to be written.
+     */
+    private final BlockingQueue<Span> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    /**
+     * Spans dropped because the queue was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * Output, writer thread only.
+     */
+    private final Writer out;
+    /**
+     * Writer thread.
+     */
+    private final Thread writer;
+    /**
+     * Set once the exporter is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Class constructor. Appends to the file.
+     * @param path Output file
+     * @throws IOException If the file cannot be opened
+     */
+    public FileSpanExporter(String path) throws IOException {
+        this.path = path;
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, true),
+                StandardCharsets.UTF_8), 64 * 1024);
+        writer = new Thread(this::work, "FileSpanExporter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void export(Span span) {
+        if (closed || !queue.offer(span))
+            dropped.incrementAndGet();
+    }
+
+    /**
+     * Get the number of spans dropped because the queue was full.
+     * @return Dropped spans
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return Output file
+     */
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writer thread loop. Flushes whenever the queue runs dry.
+     */
+    private void work() {
+        StringBuilder line = new StringBuilder(256);
+        try {
+            while (true) {
+                Span span;
+                try {
+                    span = queue.poll(POLL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    span = null;
+                }
+                if (span != null) {
+                    line.setLength(0);
+                    format(span, line);
+                    out.write(line.toString());
+                }
+                if (queue.isEmpty()) {
+                    out.flush();
+                    if (closed)
+                        break;
+                }
+            }
+        } catch (IOException ex) {
+            System.out.println("Could not write spans to " + path + ".");
+        } finally {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                // Nothing left to do.
+            }
+        }
+    }
+
+    /**
+     * Format a span as a JSON line.
+     * @param span Span
+     * @param line Output
+     */
+    private static void format(Span span, StringBuilder line) {
+        TraceContext context = span.getContext();
+        line.append("{\"traceId\":\"").append(context.getTraceId())
+                .append("\",\"spanId\":\"").append(context.getSpanId()).append('"');
+        if (span.getParentId() != null)
+            line.append(",\"parentId\":\"").append(span.getParentId()).append('"');
+        line.append(",\"name\":");
+        quote(span.getName(), line);
+        line.append(",\"startMicros\":").append(span.getStartMicros())
+                .append(",\"durationMicros\":").append(TimeUnit.NANOSECONDS.toMicros(span.getDurationNanos()));
+        Map<String, String> attributes = span.getAttributes();
+        if (!attributes.isEmpty()) {
+            line.append(",\"attributes\":{");
+            boolean first = true;
+            for (Map.Entry<String, String> entry : attributes.entrySet()) {
+                if (!first)
+                    line.append(',');
+                first = false;
+                quote(entry.getKey(), line);
+                line.append(':');
+                quote(entry.getValue(), line);
+            }
+            line.append('}');
+        }
+        line.append("}\n");
+    }
+
+    /**
+     * Append a JSON string.
+     * @param s String
+     * @param line Output
+     */
+    private static void quote(String s, StringBuilder line) {
+        line.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                line.append('\\').append(c);
+            else if (c < 0x20)
+                line.append(String.format("\\u%04x", (int) c));
+            else
+                line.append(c);
+        }
+        line.append('"');
+    }
+}
@@ -0,0 +1,357 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel for connection and request timeouts. Scheduling and
+ * cancelling are O(1) and a single thread serves every timeout, so there is
+ * no thread or ScheduledFuture per connection. Timeouts fire up to one tick
+ * late. Tasks run on the timer thread and must be short, closing a socket for
+ * example.
+ */
+public class HashedWheelTimer {
+    /**
+     * Default tick in MS.
+     */
+    public static final long TICK = 10;
+    /**
+     * Default number of buckets.
+     */
+    public static final int WHEEL_SIZE = 512;
+    /**
+     * Timer shared by clients, started on first use.
+     */
+    private static volatile HashedWheelTimer shared;
+    /**
+     * Tick length in nanoseconds.
+     */
+    private final long tick;
+    /**
+     * Bucket index mask.
+     */
+    private final int mask;
+    /**
+     * Buckets of doubly linked timeouts.
+     */
+    private final Timeout[] wheel;
+    /**
+     * Timeouts scheduled since the last tick.
+     */
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    /**
+     * Timeouts cancelled since the last tick.
+     */
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    /**
+     * Timer thread name.
+     */
+    private final String name;
+    /**
+     * Timer thread, null until started.
+     */
+    private Thread worker;
+    /**
+     * Set once the timer thread has started.
+     */
+    private volatile boolean started;
+    /**
+     * Set once the timer is stopped.
+     */
+    private volatile boolean stopped;
+    /**
+     * Time the timer started.
+     */
+    private volatile long startTime;
+    /**
+     * Ticks processed.
+     */
+    private long ticks;
+
+    /**
+     * Class constructor.
+     * @param name Timer thread name
+     */
+    public HashedWheelTimer(String name) {
+        this(name, TICK, WHEEL_SIZE);
+    }
+
+    /**
+     * Class constructor.
+     * @param name Timer thread name
+     * @param tick Tick length in MS
+     * @param wheelSize Number of buckets, rounded up to a power of two
+     */
+    public HashedWheelTimer(String name, long tick, int wheelSize) {
+        if (tick < 1 || wheelSize < 1)
+            throw new IllegalArgumentException("Tick and wheel size must be positive.");
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize)
+            size <<= 1;
+        this.name = name;
+        this.tick = TimeUnit.MILLISECONDS.toNanos(tick);
+        this.mask = size - 1;
+        this.wheel = new Timeout[size];
+    }
+
+    /**
+     * Get the timer shared by clients.
+     * @return Shared timer
+     */
+    public static HashedWheelTimer getShared() {
+        HashedWheelTimer timer = shared;
+        if (timer == null) {
+            synchronized (HashedWheelTimer.class) {
+                if (shared == null)
+                    shared = new HashedWheelTimer("jNetworkInterface-timer");
+                timer = shared;
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * Schedule a task. Tasks scheduled after the timer stopped never run.
+     * @param task Task to run on the timer thread
+     * @param delay Delay in MS
+     * @return Timeout to cancel
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        if (!started)
+            start();
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+        Timeout timeout = new Timeout(this, task, deadline);
+        if (stopped)
+            timeout.state.set(Timeout.CANCELLED);
+        else
+            pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stop the timer. Timeouts that have not fired are dropped.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (worker != null)
+            worker.interrupt();
+    }
+
+    /**
+     * Start the timer thread if it is not running.
+     */
+    private synchronized void start() {
+        if (started || stopped)
+            return;
+        startTime = System.nanoTime();
+        worker = new Thread(this::work, name);
+        worker.setDaemon(true);
+        worker.start();
+        started = true;
+    }
+
+    /**
+     * Timer thread loop.
+     */
+    private void work() {
+        while (!stopped) {
+            long next = tick * (ticks + 1);
+            long sleep = next - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    if (stopped)
+                        return;
+                }
+                continue;
+            }
+            removeCancelled();
+            transferPending();
+            expire(wheel[(int) (ticks & mask)], next);
+            ticks++;
+        }
+    }
+
+    /**
+     * Unlink timeouts cancelled since the last tick.
+     */
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null)
+            timeout.unlink();
+    }
+
+    /**
+     * Place newly scheduled timeouts in their buckets.
+     */
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.state.get() != Timeout.WAITING)
+                continue;
+            long due = Math.max(ticks, timeout.deadline / tick);
+            timeout.rounds = (due - ticks) / wheel.length;
+            int index = (int) (due & mask);
+            timeout.bucket = index;
+            timeout.next = wheel[index];
+            if (wheel[index] != null)
+                wheel[index].prev = timeout;
+            wheel[index] = timeout;
+        }
+    }
+
+    /**
+     * Fire the due timeouts in a bucket.
+     * @param head First timeout in the bucket
+     * @param now Time of this tick since start
+     */
+    private void expire(Timeout head, long now) {
+        Timeout timeout = head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds <= 0 && timeout.deadline <= now) {
+                timeout.unlink();
+                timeout.fire();
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public static class Timeout {
+        /**
+         * Timeout states.
+         */
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        /**
+         * Owning timer.
+         */
+        private final HashedWheelTimer timer;
+        /**
+         * Task to run.
+         */
+        private final Runnable task;
+        /**
+         * Deadline in nanoseconds since the timer started.
+         */
+        private final long deadline;
+        /**
+         * Current state.
+         */
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        /**
+         * Wheel turns left before the timeout is due. Timer thread only.
+         */
+        private long rounds;
+        /**
+         * Bucket index, -1 while not in a bucket. Timer thread only.
+         */
+        private int bucket = -1;
+        /**
+         * Bucket links. Timer thread only.
+         */
+        private Timeout prev;
+        private Timeout next;
+
+        /**
+         * Class constructor.
+         * @param timer Owning timer
+         * @param task Task to run
+         * @param deadline Deadline in nanoseconds since the timer started
+         */
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout.
+         * @return False if it already fired or was cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED))
+                return false;
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        /**
+         * Determine if the task ran.
+         * @return Expired status
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        /**
+         * Determine if the timeout was cancelled.
+         * @return Cancelled status
+         */
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * Run the task unless the timeout was cancelled.
+         */
+        private void fire() {
+            if (!state.compareAndSet(WAITING, EXPIRED))
+                return;
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                // One failing task must not stop the timer.
+            }
+        }
+
+        /**
+         * Remove the timeout from its bucket.
+         */
+        private void unlink() {
+            if (bucket < 0)
+                return;
+            if (prev != null)
+                prev.next = next;
+            else
+                timer.wheel[bucket] = next;
+            if (next != null)
+                next.prev = prev;
+            prev = next = null;
+            bucket = -1;
+        }
+    }
+}
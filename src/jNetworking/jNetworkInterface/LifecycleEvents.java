@@ -0,0 +1,119 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+/**
+ * Hooks for request lifecycle events. This class does nothing; when the
+ * runtime has Java Flight Recorder the JFR implementation in the Events
+ * package is used instead, so the library still runs on JREs without it.
+ * Events are only allocated while a recording has the event type enabled.
+ */
+public class LifecycleEvents {
+    /**
+     * Server: accepting a connection and handing it to a worker group.
+     */
+    public static final String ACCEPT = "accept";
+    /**
+     * Server: a task was queued for a worker, the size is the queue depth.
+     */
+    public static final String ENQUEUE = "enqueue";
+    /**
+     * Server: time a task waited in the queue before a worker picked it up.
+     */
+    public static final String DEQUEUE = "dequeue";
+    /**
+     * Server: parsing a request and looking up its command.
+     */
+    public static final String LOOKUP = "lookup";
+    /**
+     * Server: running a command.
+     */
+    public static final String EXECUTE = "execute";
+    /**
+     * Server: writing a response.
+     */
+    public static final String WRITE = "write";
+    /**
+     * Client: opening a connection.
+     */
+    public static final String CONNECT = "connect";
+    /**
+     * Client: TLS handshake.
+     */
+    public static final String HANDSHAKE = "handshake";
+    /**
+     * Client: sending a request and reading its response.
+     */
+    public static final String ROUND_TRIP = "roundtrip";
+    /**
+     * Class name of the JFR implementation.
+     */
+    private static final String JFR_EVENTS = "jNetworking.jNetworkInterface.Events.JfrLifecycleEvents";
+    /**
+     * Events in use.
+     */
+    private static final LifecycleEvents INSTANCE = load();
+
+    /**
+     * Get the events in use, JFR events if the runtime has them.
+     * @return Events
+     */
+    public static LifecycleEvents get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start timing an event.
+     * @param phase Lifecycle phase
+     * @return Event to pass to commit(), null if the event is not recorded
+     */
+    public Object begin(String phase) {
+        return null;
+    }
+
+    /**
+     * Finish an event and record it.
+     * @param event Event from begin(), may be null
+     * @param command Command name, may be null
+     * @param peer Remote address, formatted only if the event is recorded
+     * @param size Byte count, or queue depth for enqueue events
+     * @param status Response status, 0 if there is none
+     */
+    public void commit(Object event, String command, Object peer, long size, int status) {
+    }
+
+    /**
+     * Load the JFR implementation, falling back to no events.
+     * @return Events
+     */
+    private static LifecycleEvents load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (LifecycleEvents) Class.forName(JFR_EVENTS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return new LifecycleEvents();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the endpoint a jNetworkInterfaceBalancer sends the next command to.
+ */
+public interface LoadBalancingStrategy {
+    /**
+     * Select an endpoint.
+     * @param endpoints Available endpoints, never empty
+     * @return Selected endpoint
+     */
+    Endpoint select(List<Endpoint> endpoints);
+
+    /**
+     * Takes turns through the endpoints.
+     */
+    class RoundRobin implements LoadBalancingStrategy {
+        /**
+         * Next position.
+         */
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public Endpoint select(List<Endpoint> endpoints) {
+            return endpoints.get(Math.floorMod(next.getAndIncrement(), endpoints.size()));
+        }
+    }
+
+    /**
+     * Picks the endpoint with the fewest commands waiting on a response.
+     */
+    class LeastOutstanding implements LoadBalancingStrategy {
+        @Override
+        public Endpoint select(List<Endpoint> endpoints) {
+            Endpoint best = null;
+            for (Endpoint endpoint : endpoints) {
+                if (best == null || endpoint.getOutstanding() < best.getOutstanding())
+                    best = endpoint;
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Compares two random endpoints and picks the one with the lower measured
+     * latency weighted by its outstanding commands. Avoids the herding that
+     * always picking the single best endpoint causes.
+     */
+    class PowerOfTwoChoices implements LoadBalancingStrategy {
+        @Override
+        public Endpoint select(List<Endpoint> endpoints) {
+            int size = endpoints.size();
+            if (size == 1)
+                return endpoints.get(0);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(size);
+            int second = random.nextInt(size - 1);
+            if (second >= first)
+                second++;
+            Endpoint a = endpoints.get(first);
+            Endpoint b = endpoints.get(second);
+            return cost(a) <= cost(b) ? a : b;
+        }
+
+        /**
+         * Expected wait on an endpoint.
+         * @param endpoint Endpoint
+         * @return Cost
+         */
+        private static double cost(Endpoint endpoint) {
+            double latency = Math.max(0, endpoint.getRttEstimator().getSmoothedRtt());
+            return latency * (endpoint.getOutstanding() + 1);
+        }
+    }
+}
@@ -0,0 +1,448 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Log file appender for ServerLogger. Lines are handed to a background thread
+ * through a bounded queue, so logging never blocks the caller; when the queue
+ * is full lines are dropped and counted. The thread writes into a memory-mapped
+ * segment of the active file. A segment rolls when it is full or, if set, when
+ * the roll interval has passed: the active file is trimmed, renamed with a
+ * timestamp, optionally gzipped, and the oldest rolled files beyond the
+ * retention limit are deleted.
+ * <p>
+ * While a segment is open the active file is the segment size with the
+ * unwritten tail zero-filled.
+ */
+public class MappedLogAppender {
+    /**
+     * Default segment size in bytes.
+     */
+    public static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    /**
+     * Smallest segment size.
+     */
+    private static final int MIN_SEGMENT = 64 * 1024;
+    /**
+     * Default number of rolled files kept.
+     */
+    public static final int RETENTION = 10;
+    /**
+     * Lines the queue holds before new lines are dropped.
+     */
+    private static final int QUEUE_SIZE = 65536;
+    /**
+     * Time in MS the writer waits for a line before checking for a roll or
+     * close.
+     */
+    private static final long POLL = 100;
+    /**
+     * Appenders by absolute path.
+     */
+    private static final Map<Path, MappedLogAppender> appenders = new ConcurrentHashMap<>();
+    /**
+     * Thread that compresses rolled files.
+     */
+    private static final ExecutorService compressor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "MappedLogAppender-compress");
+        t.setDaemon(true);
+        return t;
+    });
+    /**
+     * Active file.
+     */
+    private final Path path;
+    /**
+     * Lines waiting to be written.
+     */
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    /**
+     * Lines dropped because the queue was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * Writer thread.
+     */
+    private final Thread writer;
+    /**
+     * Segment size in bytes.
+     */
+    private volatile int segmentSize = SEGMENT_SIZE;
+    /**
+     * Time in MS after which a segment rolls, 0 to roll on size only.
+     */
+    private volatile long rollInterval;
+    /**
+     * Rolled files kept, 0 for no limit.
+     */
+    private volatile int retention = RETENTION;
+    /**
+     * Gzip rolled files.
+     */
+    private volatile boolean compress;
+    /**
+     * Set once the appender is closed.
+     */
+    private volatile boolean closed;
+    /**
+     * Open segment channel, writer thread only.
+     */
+    private FileChannel channel;
+    /**
+     * Open segment mapping, writer thread only.
+     */
+    private MappedByteBuffer segment;
+    /**
+     * Time the open segment started.
+     */
+    private long segmentStarted;
+    /**
+     * Rolled files named in the same millisecond.
+     */
+    private int rollSequence;
+
+    /**
+     * Class constructor. Starts the writer thread.
+     * @param path Active file
+     */
+    private MappedLogAppender(Path path) {
+        this.path = path;
+        this.writer = new Thread(this::work, "MappedLogAppender-" + path.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+        try {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+        } catch (IllegalStateException ex) {
+            // Created during shutdown, nothing will be written.
+            closed = true;
+        }
+    }
+
+    /**
+     * Get the appender for a file, creating it on first use.
+     * @param file Log file path
+     * @return Shared appender
+     */
+    public static MappedLogAppender get(String file) {
+        return appenders.computeIfAbsent(Paths.get(file).toAbsolutePath(), MappedLogAppender::new);
+    }
+
+    /**
+     * Set the segment size. Takes effect on the next segment.
+     * @param size Size in bytes
+     */
+    public void setSegmentSize(int size) {
+        segmentSize = Math.max(MIN_SEGMENT, size);
+    }
+
+    /**
+     * Roll segments after a time even if they are not full.
+     * @param interval Time in MS, 0 to roll on size only
+     */
+    public void setRollInterval(long interval) {
+        rollInterval = Math.max(0, interval);
+    }
+
+    /**
+     * Set how many rolled files are kept.
+     * @param files Rolled files, 0 for no limit
+     */
+    public void setRetention(int files) {
+        retention = Math.max(0, files);
+    }
+
+    /**
+     * Gzip rolled files.
+     * @param compress Compression status
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Queue a line. Never blocks.
+     * @param line Line without the ending
+     * @return False if the line was dropped
+     */
+    public boolean append(String line) {
+        if (closed || !queue.offer(line)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of lines dropped because the queue was full.
+     * @return Dropped lines
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Write queued lines and close the active segment.
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writer thread loop.
+     */
+    private void work() {
+        try {
+            recover();
+        } catch (IOException ex) {
+            System.out.println("Could not recover log file " + path + ".");
+        }
+        long reportedDrops = 0;
+        while (true) {
+            String line;
+            try {
+                line = queue.poll(POLL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                line = null;
+            }
+            try {
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    write("WARN\t" + new Date() + "\tLog queue full, " + (drops - reportedDrops) + " line(s) dropped.");
+                    reportedDrops = drops;
+                }
+                if (line != null)
+                    write(line);
+                if (closed && queue.isEmpty()) {
+                    closeSegment();
+                    return;
+                }
+                long interval = rollInterval;
+                if (interval > 0 && segment != null && segment.position() > 0 &&
+                        System.currentTimeMillis() - segmentStarted >= interval)
+                    roll();
+            } catch (IOException ex) {
+                System.out.println("Could not write to log file " + path + ".");
+                abandonSegment();
+                if (closed)
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Write one line, rolling first if it does not fit.
+     * @param line Line without the ending
+     * @throws IOException
+     */
+    private void write(String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        if (segment != null && segment.remaining() < bytes.length)
+            roll();
+        if (segment == null)
+            openSegment();
+        segment.put(bytes, 0, Math.min(bytes.length, segment.remaining()));
+    }
+
+    /**
+     * Map a new segment over the active file. Lines left in it by a failed
+     * segment are moved aside first.
+     * @throws IOException
+     */
+    private void openSegment() throws IOException {
+        Path parent = path.getParent();
+        if (parent != null)
+            Files.createDirectories(parent);
+        recover();
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segmentStarted = System.currentTimeMillis();
+    }
+
+    /**
+     * Trim the active file to what was written and close it.
+     * @throws IOException
+     */
+    private void closeSegment() throws IOException {
+        if (segment == null)
+            return;
+        int written = segment.position();
+        segment.force();
+        segment = null;
+        try {
+            channel.truncate(written);
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Drop the active segment after a failed write. What it holds stays in
+     * the active file until the next segment moves it aside.
+     */
+    private void abandonSegment() {
+        segment = null;
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Nothing more can be written through it.
+        }
+        channel = null;
+    }
+
+    /**
+     * Close the active segment and move it aside.
+     * @throws IOException
+     */
+    private void roll() throws IOException {
+        closeSegment();
+        rollFile();
+    }
+
+    /**
+     * Rename the active file with a timestamp, then compress and apply
+     * retention.
+     * @throws IOException
+     */
+    private void rollFile() throws IOException {
+        if (!Files.exists(path) || Files.size(path) == 0)
+            return;
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        Path rolled = path.resolveSibling(path.getFileName() + "." + stamp + String.format("-%03d", rollSequence++ % 1000));
+        Files.move(path, rolled, StandardCopyOption.ATOMIC_MOVE);
+        if (compress)
+            compressor.execute(() -> {
+                gzip(rolled);
+                applyRetention();
+            });
+        else
+            applyRetention();
+    }
+
+    /**
+     * Trim and roll an active file left behind by a previous run or a failed
+     * segment.
+     * @throws IOException
+     */
+    private void recover() throws IOException {
+        if (!Files.exists(path))
+            return;
+        try (FileChannel old = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long end = old.size();
+            // Skip the zero-filled tail of an unclosed segment.
+            ByteBuffer chunk = ByteBuffer.allocate(8192);
+            while (end > 0) {
+                long from = Math.max(0, end - chunk.capacity());
+                chunk.clear();
+                chunk.limit((int) (end - from));
+                old.read(chunk, from);
+                int i = chunk.position() - 1;
+                while (i >= 0 && chunk.get(i) == 0)
+                    i--;
+                if (i >= 0) {
+                    end = from + i + 1;
+                    break;
+                }
+                end = from;
+            }
+            old.truncate(end);
+        }
+        rollFile();
+    }
+
+    /**
+     * Gzip a rolled file and delete the original.
+     * @param file Rolled file
+     */
+    private static void gzip(Path file) {
+        Path target = file.resolveSibling(file.getFileName() + ".gz");
+        try (InputStream in = Files.newInputStream(file);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(target))) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+        } catch (IOException ex) {
+            System.out.println("Could not compress log file " + file + ".");
+            return;
+        }
+        try {
+            Files.delete(file);
+        } catch (IOException ex) {
+            System.out.println("Could not delete log file " + file + ".");
+        }
+    }
+
+    /**
+     * Delete the oldest rolled files beyond the retention limit.
+     */
+    private void applyRetention() {
+        int keep = retention;
+        if (keep == 0)
+            return;
+        Path dir = path.toAbsolutePath().getParent();
+        String prefix = path.getFileName() + ".";
+        List<Path> rolled = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path file : files)
+                rolled.add(file);
+        } catch (IOException ex) {
+            return;
+        }
+        // Timestamps sort by name.
+        Collections.sort(rolled);
+        for (int i = 0; i < rolled.size() - keep; i++) {
+            try {
+                Files.deleteIfExists(rolled.get(i));
+            } catch (IOException ex) {
+                System.out.println("Could not delete log file " + rolled.get(i) + ".");
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a server's metrics over HTTP at /metrics for Prometheus-compatible
+ * scrapers, using the JDK's built-in HTTP server on one daemon thread.
+ */
+public class MetricsExporter {
+    /**
+     * Path the metrics are served on.
+     */
+    public static final String PATH = "/metrics";
+    /**
+     * Content type of the Prometheus text format.
+     */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    /**
+     * Metrics to serve.
+     */
+    private final ServerMetrics metrics;
+    /**
+     * HTTP server.
+     */
+    private final HttpServer http;
+    /**
+     * Thread that answers scrapes.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Class constructor. Binds the port but does not serve until started.
+     * @param metrics Metrics to serve
+     * @param port Port to listen on, 0 for any free port
+     * @throws IOException If the port cannot be bound
+     */
+    public MetricsExporter(ServerMetrics metrics, int port) throws IOException {
+        this.metrics = metrics;
+        this.http = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "jNetworkInterfaceServer-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        http.setExecutor(executor);
+        http.createContext(PATH, this::handle);
+    }
+
+    /**
+     * Start serving.
+     */
+    public void start() {
+        http.start();
+    }
+
+    /**
+     * Stop serving and release the port.
+     */
+    public void stop() {
+        http.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return Port the exporter listens on
+     */
+    public int getPort() {
+        return http.getAddress().getPort();
+    }
+
+    /**
+     * Answer a scrape.
+     * @param exchange HTTP exchange
+     * @throws IOException
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.format().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
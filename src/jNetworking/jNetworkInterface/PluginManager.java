@@ -0,0 +1,342 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads CommandPlugin jars from a directory. Each jar is copied aside and
+ * loaded in its own class loader, so the original can be replaced or removed
+ * while the server runs. Command classes are initialized and instantiated at
+ * load time and the plugin is asked to warm up, so the first request does not
+ * pay for class loading.
+ * <p>
+ * Commands running from a plugin hold its class loader open. A replaced or
+ * removed plugin is closed once its last running command finishes.
+ */
+public class PluginManager {
+    /**
+     * Plugin directory.
+     */
+    private final File directory;
+    /**
+     * Server logger.
+     */
+    private final ServerLogger logger;
+    /**
+     * Loaded plugins by jar name.
+     */
+    private final Map<String, Plugin> plugins = new TreeMap<>();
+
+    /**
+     * Class constructor. Nothing is loaded until scan().
+     * @param directory Plugin directory
+     * @param logger Server logger
+     */
+    public PluginManager(String directory, ServerLogger logger) {
+        this.directory = new File(directory);
+        this.logger = logger;
+    }
+
+    /**
+     * Bring the loaded plugins in line with the directory: load new jars,
+     * reload changed ones and unload ones that are gone. Reload the server's
+     * commands afterwards to pick up the changes.
+     * @return True if anything changed
+     */
+    public synchronized boolean scan() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".jar"));
+        Set<String> present = new HashSet<>();
+        boolean changed = false;
+        for (File jar : files == null ? new File[0] : files) {
+            present.add(jar.getName());
+            Plugin loaded = plugins.get(jar.getName());
+            if (loaded != null && loaded.modified == jar.lastModified() && loaded.size == jar.length())
+                continue;
+            Plugin plugin = load(jar);
+            if (plugin == null)
+                continue;
+            if (loaded != null)
+                retire(loaded);
+            plugins.put(jar.getName(), plugin);
+            changed = true;
+        }
+        for (String name : new ArrayList<>(plugins.keySet())) {
+            if (!present.contains(name)) {
+                retire(plugins.remove(name));
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Unload a plugin. Reload the server's commands afterwards.
+     * @param jar Jar file name
+     * @return False if the plugin was not loaded
+     */
+    public synchronized boolean unload(String jar) {
+        Plugin plugin = plugins.remove(jar);
+        if (plugin == null)
+            return false;
+        retire(plugin);
+        return true;
+    }
+
+    /**
+     * Get the commands of every loaded plugin. Where two plugins provide the
+     * same command the first jar by name wins.
+     * @return Command classes by name
+     */
+    public synchronized Map<String, Class<?>> getCommands() {
+        Map<String, Class<?>> commands = new LinkedHashMap<>();
+        for (Plugin plugin : plugins.values()) {
+            for (Map.Entry<String, Class<?>> command : plugin.commands.entrySet()) {
+                if (commands.putIfAbsent(command.getKey(), command.getValue()) != null)
+                    logger.write("Command '" + command.getKey() + "' in " + plugin.jar +
+                            " is already provided by another plugin.", ServerLogger.LOG_WARN);
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * Describe the loaded plugins, one line per jar with its commands.
+     * @return Description
+     */
+    public synchronized String format() {
+        StringBuilder out = new StringBuilder();
+        for (Plugin plugin : plugins.values()) {
+            if (out.length() > 0)
+                out.append('\n');
+            out.append(plugin.jar).append('=').append(String.join(",", plugin.commands.keySet()));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Unload every plugin.
+     */
+    public synchronized void close() {
+        for (Plugin plugin : plugins.values())
+            retire(plugin);
+        plugins.clear();
+    }
+
+    /**
+     * Load one jar and warm it up.
+     * @param jar Jar file
+     * @return Plugin or null if it could not be loaded
+     */
+    private Plugin load(File jar) {
+        long started = System.nanoTime();
+        Plugin plugin = new Plugin(jar);
+        try {
+            // Load from a private copy so the original can be replaced safely.
+            plugin.copy = Files.createTempFile("jNetworkInterface-plugin-", ".jar");
+            plugin.copy.toFile().deleteOnExit();
+            Files.copy(jar.toPath(), plugin.copy, StandardCopyOption.REPLACE_EXISTING);
+            plugin.loader = new PluginLoader(plugin);
+            for (CommandPlugin service : ServiceLoader.load(CommandPlugin.class, plugin.loader)) {
+                plugin.services.add(service);
+                for (Map.Entry<String, Class<?>> command : service.getCommands().entrySet()) {
+                    Class<?> type = command.getValue();
+                    if (!Command.class.isAssignableFrom(type) && !TypedCommand.class.isAssignableFrom(type))
+                        throw new IllegalArgumentException(type.getName() + " is not a command.");
+                    // Initialize the class and its dependencies now rather than on the first request.
+                    Class.forName(type.getName(), true, type.getClassLoader());
+                    type.getConstructor().newInstance();
+                    plugin.commands.put(command.getKey().toLowerCase().trim(), type);
+                }
+            }
+            for (CommandPlugin service : plugin.services)
+                service.warmUp();
+        } catch (IOException | ReflectiveOperationException | ServiceConfigurationError | LinkageError |
+                RuntimeException ex) {
+            logger.write("Plugin " + jar.getName() + " could not be loaded: " + ex, ServerLogger.LOG_ERROR);
+            plugin.close();
+            return null;
+        }
+        logger.write("Plugin " + jar.getName() + " loaded with " + plugin.commands.size() + " command(s) in " +
+                (System.nanoTime() - started) / 1000000 + " ms.", ServerLogger.LOG_NOTICE);
+        return plugin;
+    }
+
+    /**
+     * Drop the manager's hold on a plugin. It closes now if none of its
+     * commands are running, otherwise when the last one finishes.
+     * @param plugin Plugin
+     */
+    private void retire(Plugin plugin) {
+        logger.write("Plugin " + plugin.jar + " unloaded.", ServerLogger.LOG_NOTICE);
+        plugin.release();
+    }
+
+    /**
+     * Hold a command's plugin open while the command runs. Every successful
+     * acquire must be followed by release().
+     * @param command Command instance, null for a built-in
+     * @return False if the command's plugin has already been closed
+     */
+    static boolean acquire(Object command) {
+        if (command == null || !(command.getClass().getClassLoader() instanceof PluginLoader))
+            return true;
+        AtomicInteger uses = ((PluginLoader) command.getClass().getClassLoader()).plugin.uses;
+        int current;
+        do {
+            current = uses.get();
+            if (current == 0)
+                return false;
+        } while (!uses.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Let go of a command's plugin, closing it if it was retired and this was
+     * its last running command.
+     * @param command Command instance, null for a built-in
+     */
+    static void release(Object command) {
+        if (command != null && command.getClass().getClassLoader() instanceof PluginLoader)
+            ((PluginLoader) command.getClass().getClassLoader()).plugin.release();
+    }
+
+    /**
+     * Class loader for a plugin's private jar copy.
+     */
+    private static class PluginLoader extends URLClassLoader {
+        /**
+         * Plugin the loader belongs to.
+         */
+        private final Plugin plugin;
+
+        /**
+         * Class constructor.
+         * @param plugin Plugin with its jar copy in place
+         * @throws IOException If the copy has no URL
+         */
+        private PluginLoader(Plugin plugin) throws IOException {
+            super(new URL[]{plugin.copy.toUri().toURL()}, CommandPlugin.class.getClassLoader());
+            this.plugin = plugin;
+        }
+    }
+
+    /**
+     * A loaded jar.
+     */
+    private static class Plugin {
+        /**
+         * Jar file name.
+         */
+        private final String jar;
+        /**
+         * Modification time and size of the jar when it was loaded.
+         */
+        private final long modified;
+        private final long size;
+        /**
+         * Private copy the class loader reads.
+         */
+        private Path copy;
+        /**
+         * Class loader for the jar.
+         */
+        private URLClassLoader loader;
+        /**
+         * Plugin services found in the jar.
+         */
+        private final List<CommandPlugin> services = new ArrayList<>();
+        /**
+         * Command classes by name.
+         */
+        private final Map<String, Class<?>> commands = new HashMap<>();
+        /**
+         * Running commands plus one while the manager holds the plugin. The
+         * plugin closes when this reaches zero.
+         */
+        private final AtomicInteger uses = new AtomicInteger(1);
+
+        /**
+         * Class constructor.
+         * @param jar Jar file
+         */
+        private Plugin(File jar) {
+            this.jar = jar.getName();
+            this.modified = jar.lastModified();
+            this.size = jar.length();
+        }
+
+        /**
+         * Drop one use, closing the plugin on its own thread after the last.
+         * Plugin close() code then runs on neither a command thread nor a
+         * shared timer.
+         */
+        private void release() {
+            if (uses.decrementAndGet() == 0) {
+                Thread closer = new Thread(this::close, "jNetworkInterface-plugin-unload-" + jar);
+                closer.setDaemon(true);
+                closer.start();
+            }
+        }
+
+        /**
+         * Close the plugin, its class loader and its copy.
+         */
+        private void close() {
+            for (CommandPlugin service : services) {
+                try {
+                    service.close();
+                } catch (RuntimeException ex) {
+                    // Unloading goes ahead regardless.
+                }
+            }
+            try {
+                if (loader != null)
+                    loader.close();
+                if (copy != null)
+                    Files.deleteIfExists(copy);
+            } catch (IOException ex) {
+                // Left for the temp directory cleanup.
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered input stream that borrows its buffer from a BufferPool. The
+ * buffer goes back to the pool on close() or release(), which must happen on
+ * the thread that reads from the stream.
+ */
+class PooledInputStream extends InputStream {
+    /**
+     * Underlying stream.
+     */
+    private final InputStream in;
+    /**
+     * Pooled buffer, null once released.
+     */
+    private BufferPool.Handle handle;
+    /**
+     * Buffer array.
+     */
+    private byte[] buf;
+    /**
+     * Read position.
+     */
+    private int pos;
+    /**
+     * End of buffered bytes.
+     */
+    private int limit;
+
+    /**
+     * Class constructor.
+     * @param in Underlying stream
+     * @param pool Heap buffer pool
+     * @param size Buffer size
+     */
+    PooledInputStream(InputStream in, BufferPool pool, int size) {
+        if (pool.isDirect())
+            throw new IllegalArgumentException("Socket streams need a heap buffer pool.");
+        this.in = in;
+        this.handle = pool.acquire(size);
+        this.buf = handle.buffer().array();
+    }
+
+    /**
+     * Refill the buffer.
+     * @return False at the end of the stream
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        if (buf == null)
+            throw new IOException("Stream closed.");
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0)
+            return false;
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos >= limit && !fill())
+            return -1;
+        return buf[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (pos >= limit) {
+            // Large reads skip the buffer.
+            if (len >= buf.length)
+                return in.read(b, off, len);
+            if (!fill())
+                return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - pos) + in.available();
+    }
+
+    /**
+     * Read a line of UTF-8 text ending in LF or CRLF. Lines that fit in the
+     * buffer are decoded in place.
+     * @return Line without the ending, or null at the end of the stream
+     * @throws IOException
+     */
+    String readLine() throws IOException {
+        ByteArrayOutputStream overflow = null;
+        while (true) {
+            if (pos >= limit && !fill()) {
+                if (overflow == null || overflow.size() == 0)
+                    return null;
+                return overflow.toString("UTF-8");
+            }
+            for (int i = pos; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    int start = pos;
+                    pos = i + 1;
+                    if (overflow == null) {
+                        int end = i > start && buf[i - 1] == '\r' ? i - 1 : i;
+                        return new String(buf, start, end - start, StandardCharsets.UTF_8);
+                    }
+                    overflow.write(buf, start, i - start);
+                    byte[] bytes = overflow.toByteArray();
+                    int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+                }
+            }
+            // Line runs past the buffer.
+            if (overflow == null)
+                overflow = new ByteArrayOutputStream(buf.length * 2);
+            overflow.write(buf, pos, limit - pos);
+            pos = limit;
+        }
+    }
+
+    /**
+     * Return the buffer to the pool without closing the underlying stream.
+     */
+    void release() {
+        if (handle != null) {
+            handle.release();
+            handle = null;
+            buf = null;
+            pos = limit = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        in.close();
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered output stream that borrows its buffer from a BufferPool and
+ * encodes text straight into it. The buffer goes back to the pool on close()
+ * or release(), which must happen on the thread that writes to the stream.
+ */
+class PooledOutputStream extends OutputStream {
+    /**
+     * Underlying stream.
+     */
+    private final OutputStream out;
+    /**
+     * Pooled buffer, null once released.
+     */
+    private BufferPool.Handle handle;
+    /**
+     * Buffer array.
+     */
+    private byte[] buf;
+    /**
+     * Bytes buffered.
+     */
+    private int count;
+
+    /**
+     * Class constructor.
+     * @param out Underlying stream
+     * @param pool Heap buffer pool
+     * @param size Buffer size
+     */
+    PooledOutputStream(OutputStream out, BufferPool pool, int size) {
+        if (pool.isDirect())
+            throw new IllegalArgumentException("Socket streams need a heap buffer pool.");
+        this.out = out;
+        this.handle = pool.acquire(size);
+        this.buf = handle.buffer().array();
+    }
+
+    /**
+     * Write the buffered bytes to the underlying stream.
+     * @throws IOException
+     */
+    private void drain() throws IOException {
+        if (buf == null)
+            throw new IOException("Stream closed.");
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (buf == null || count == buf.length)
+            drain();
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (buf == null)
+            throw new IOException("Stream closed.");
+        if (len >= buf.length) {
+            // Large writes skip the buffer.
+            drain();
+            out.write(b, off, len);
+            return;
+        }
+        if (len > buf.length - count)
+            drain();
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Write text as UTF-8 without an intermediate byte array.
+     * @param s Text
+     * @throws IOException
+     */
+    void writeUtf8(CharSequence s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (buf == null || buf.length - count < 4)
+                drain();
+            if (c < 0x80) {
+                buf[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[count++] = (byte) (0xC0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[count++] = (byte) (0xF0 | (cp >> 18));
+                buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf[count++] = '?';
+            } else {
+                buf[count++] = (byte) (0xE0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Write text as UTF-8, in place when the stream is pooled.
+     * @param out Output stream
+     * @param s Text
+     * @throws IOException
+     */
+    static void writeUtf8(OutputStream out, CharSequence s) throws IOException {
+        if (out instanceof PooledOutputStream)
+            ((PooledOutputStream) out).writeUtf8(s);
+        else
+            out.write(s.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Return the buffer to the pool without closing the underlying stream.
+     * Unflushed bytes are lost.
+     */
+    void release() {
+        if (handle != null) {
+            handle.release();
+            handle = null;
+            buf = null;
+            count = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (buf != null)
+                flush();
+        } finally {
+            release();
+            out.close();
+        }
+    }
+}
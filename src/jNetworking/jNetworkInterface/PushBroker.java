@@ -0,0 +1,529 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Topics that clients subscribe to over a long-lived connection or stream,
+ * instead of polling. A client sends the subscribe command with one topic per
+ * data line and is answered with 200; from then on every message published to
+ * those topics is pushed to it in the envelope format with a topic header:
+ * <pre>
+ * subscribe policy=conflate queue=16
+ * stats
+ * END COMMAND
+ * </pre>
+ * Publishing only queues a message. Each message is encoded once however
+ * many subscribers there are, and each subscriber's own thread writes
+ * everything queued for it with a single flush. A subscriber that falls a
+ * full queue behind is handled by its policy:
+ * <ul>
+ * <li>drop: the oldest queued message is discarded to make room</li>
+ * <li>conflate: only the latest message of each topic is kept</li>
+ * <li>disconnect: the subscriber is cut off</li>
+ * </ul>
+ * A 204 with no topic is sent when the subscriber has been quiet for a
+ * heartbeat, carrying a dropped header if messages were discarded.
+ * <p>
+ * Clients can only subscribe to topics the server knows: feeds, topics that
+ * have been published to and topics declared with addTopic().
+ */
+public class PushBroker {
+    /**
+     * Command that starts a subscription.
+     */
+    public static final String SUBSCRIBE = "subscribe";
+    /**
+     * Slow subscriber policies.
+     */
+    public static final String POLICY_DROP = "drop";
+    public static final String POLICY_CONFLATE = "conflate";
+    public static final String POLICY_DISCONNECT = "disconnect";
+    /**
+     * Subscribe request headers.
+     */
+    public static final String HEADER_POLICY = "policy";
+    public static final String HEADER_QUEUE = "queue";
+    /**
+     * Pushed message headers.
+     */
+    public static final String HEADER_TOPIC = "topic";
+    public static final String HEADER_DROPPED = "dropped";
+    /**
+     * Default and largest queued messages per subscriber.
+     */
+    public static final int QUEUE = 64;
+    public static final int MAX_QUEUE = 4096;
+    /**
+     * Most topics in one subscription.
+     */
+    public static final int MAX_TOPICS = 16;
+    /**
+     * Time in MS a quiet subscriber waits before a heartbeat is sent.
+     */
+    public static final long HEARTBEAT = 5000;
+    /**
+     * Time in MS between feed publications.
+     */
+    public static final long FEED_INTERVAL = 1000;
+    /**
+     * Subscribers by topic.
+     */
+    private final Map<String, Set<Subscriber>> topics = new ConcurrentHashMap<>();
+    /**
+     * Topics published from a supplier while they have subscribers.
+     */
+    private final Map<String, Supplier<String>> feeds = new ConcurrentHashMap<>();
+    /**
+     * Topics declared or published to by the server.
+     */
+    private final Set<String> declared = ConcurrentHashMap.newKeySet();
+    /**
+     * Server logger.
+     */
+    private final ServerLogger logger;
+    /**
+     * Messages published and messages discarded by the drop policy.
+     */
+    private final LongAdder published = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    /**
+     * Subscribers cut off by the disconnect policy.
+     */
+    private final LongAdder disconnected = new LongAdder();
+    /**
+     * Set once the broker is closed.
+     */
+    private volatile boolean closed;
+    /**
+     * Timer the feeds currently run on, null until started.
+     */
+    private volatile HashedWheelTimer feedTimer;
+
+    /**
+     * Class constructor.
+     * @param logger Server logger
+     */
+    public PushBroker(ServerLogger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Publish a supplier's value to a topic at every feed interval, while the
+     * topic has subscribers.
+     * @param topic Topic
+     * @param feed Value supplier, null to remove the feed
+     */
+    public void setFeed(String topic, Supplier<String> feed) {
+        if (feed == null)
+            feeds.remove(topic);
+        else
+            feeds.put(topic, feed);
+    }
+
+    /**
+     * Declare a topic so clients can subscribe to it before anything has
+     * been published.
+     * @param topic Topic
+     */
+    public void addTopic(String topic) {
+        declared.add(topic);
+    }
+
+    /**
+     * Determine if clients may subscribe to a topic.
+     * @param topic Topic
+     * @return True for feeds and declared or published topics
+     */
+    public boolean isTopic(String topic) {
+        return feeds.containsKey(topic) || declared.contains(topic);
+    }
+
+    /**
+     * Start publishing the feeds and accept subscribers, also after a close.
+     * A feed loop left on an earlier timer stops at its next tick.
+     * @param timer Timer the feeds run on
+     */
+    void start(HashedWheelTimer timer) {
+        closed = false;
+        feedTimer = timer;
+        publishFeeds(timer);
+    }
+
+    /**
+     * Publish the feeds at the next interval and schedule the one after.
+     * @param timer Timer the feeds run on
+     */
+    private void publishFeeds(HashedWheelTimer timer) {
+        timer.schedule(() -> {
+            if (closed || feedTimer != timer)
+                return;
+            for (Map.Entry<String, Supplier<String>> feed : feeds.entrySet()) {
+                if (getSubscriberCount(feed.getKey()) > 0)
+                    publish(feed.getKey(), feed.getValue().get());
+            }
+            publishFeeds(timer);
+        }, FEED_INTERVAL);
+    }
+
+    /**
+     * Publish a text message.
+     * @param topic Topic
+     * @param message UTF-8 message
+     * @return Subscribers the message was queued for
+     */
+    public int publish(String topic, String message) {
+        return publish(new Response(Response.STATUS_OK, message), topic);
+    }
+
+    /**
+     * Publish a message. The response's headers are pushed along with it.
+     * @param message Message
+     * @param topic Topic
+     * @return Subscribers the message was queued for
+     */
+    public int publish(Response message, String topic) {
+        declared.add(topic);
+        Set<Subscriber> subscribers = topics.get(topic);
+        if (subscribers == null || subscribers.isEmpty())
+            return 0;
+        // Encoded once for every subscriber.
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(message.getBody().length + 64);
+        try {
+            message.setHeader(HEADER_TOPIC, topic).write(encoded);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        Message queued = new Message(topic, encoded.toByteArray());
+        published.increment();
+        int delivered = 0;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.offer(queued))
+                delivered++;
+        }
+        return delivered;
+    }
+
+    /**
+     * Add a subscriber.
+     * @param name Subscriber name for the log
+     * @param subscribed Topics
+     * @param policy Slow subscriber policy
+     * @param capacity Queued messages before the policy applies
+     * @return Subscriber
+     * @throws IllegalArgumentException If the topics, policy or capacity are invalid
+     */
+    Subscriber subscribe(String name, List<String> subscribed, String policy, int capacity) {
+        if (!policy.equals(POLICY_DROP) && !policy.equals(POLICY_CONFLATE) && !policy.equals(POLICY_DISCONNECT))
+            throw new IllegalArgumentException("Unknown policy '" + policy + "'.");
+        if (capacity < 1 || capacity > MAX_QUEUE)
+            throw new IllegalArgumentException("Queue must be between 1 and " + MAX_QUEUE + ".");
+        if (subscribed.size() > MAX_TOPICS)
+            throw new IllegalArgumentException("At most " + MAX_TOPICS + " topics.");
+        if (closed)
+            throw new IllegalStateException("Broker is closed.");
+        Subscriber subscriber = new Subscriber(name, subscribed, policy, capacity);
+        if (subscriber.topics.isEmpty())
+            throw new IllegalArgumentException("No topics.");
+        for (String topic : subscriber.topics) {
+            if (!isTopic(topic))
+                throw new IllegalArgumentException("Unknown topic '" + topic + "'.");
+        }
+        for (String topic : subscriber.topics) {
+            // Added inside compute so a concurrent unsubscribe cannot drop the set.
+            topics.compute(topic, (key, subscribers) -> {
+                Set<Subscriber> added = subscribers == null ? ConcurrentHashMap.newKeySet() : subscribers;
+                added.add(subscriber);
+                return added;
+            });
+        }
+        logger.write(name + " subscribed to " + subscriber.topics + " (" + policy + ", queue " + capacity + ").",
+                ServerLogger.LOG_NOTICE);
+        return subscriber;
+    }
+
+    /**
+     * Remove a subscriber and close it.
+     * @param subscriber Subscriber
+     */
+    void unsubscribe(Subscriber subscriber) {
+        subscriber.close();
+        for (String topic : subscriber.topics) {
+            topics.computeIfPresent(topic, (key, subscribers) -> {
+                subscribers.remove(subscriber);
+                return subscribers.isEmpty() ? null : subscribers;
+            });
+        }
+    }
+
+    /**
+     * Get the number of subscribers to a topic.
+     * @param topic Topic
+     * @return Subscribers
+     */
+    public int getSubscriberCount(String topic) {
+        Set<Subscriber> subscribers = topics.get(topic);
+        return subscribers == null ? 0 : subscribers.size();
+    }
+
+    /**
+     * Get the number of subscriptions across topics.
+     * @return Subscriptions
+     */
+    public int getSubscriptionCount() {
+        int count = 0;
+        for (Set<Subscriber> subscribers : topics.values())
+            count += subscribers.size();
+        return count;
+    }
+
+    /**
+     * @return Messages published to at least one subscriber
+     */
+    public long getPublished() {
+        return published.sum();
+    }
+
+    /**
+     * @return Messages discarded by the drop policy
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return Subscribers cut off by the disconnect policy
+     */
+    public long getDisconnected() {
+        return disconnected.sum();
+    }
+
+    /**
+     * Close every subscriber and refuse new ones until started again.
+     */
+    public void close() {
+        closed = true;
+        for (Set<Subscriber> subscribers : topics.values()) {
+            for (Subscriber subscriber : subscribers)
+                subscriber.close();
+        }
+        topics.clear();
+    }
+
+    /**
+     * A published message, encoded once for all its subscribers.
+     */
+    private static class Message {
+        /**
+         * Topic.
+         */
+        private final String topic;
+        /**
+         * Message in the envelope format.
+         */
+        private final byte[] encoded;
+
+        /**
+         * Class constructor.
+         * @param topic Topic
+         * @param encoded Encoded message
+         */
+        private Message(String topic, byte[] encoded) {
+            this.topic = topic;
+            this.encoded = encoded;
+        }
+    }
+
+    /**
+     * A subscription's bounded queue. Publishers add to it, the subscriber's
+     * own thread takes everything queued at once.
+     */
+    class Subscriber {
+        /**
+         * Subscriber name for the log.
+         */
+        private final String name;
+        /**
+         * Subscribed topics.
+         */
+        private final List<String> topics;
+        /**
+         * Slow subscriber policy.
+         */
+        private final String policy;
+        /**
+         * Queued messages before the policy applies.
+         */
+        private final int capacity;
+        /**
+         * Queued messages in order, for the drop and disconnect policies.
+         */
+        private final ArrayDeque<Message> queue = new ArrayDeque<>();
+        /**
+         * Latest message of each topic in order, for the conflate policy.
+         */
+        private final Map<String, Message> latest = new LinkedHashMap<>();
+        /**
+         * Messages discarded since the subscriber was last told.
+         */
+        private int unreported;
+        /**
+         * Set once the subscriber is closed.
+         */
+        private boolean closed;
+        /**
+         * Set when the disconnect policy cut the subscriber off.
+         */
+        private boolean evicted;
+
+        /**
+         * Class constructor.
+         * @param name Subscriber name
+         * @param topics Topics
+         * @param policy Policy
+         * @param capacity Queue capacity
+         */
+        private Subscriber(String name, List<String> topics, String policy, int capacity) {
+            List<String> unique = new ArrayList<>();
+            for (String topic : topics) {
+                topic = topic.trim();
+                if (!topic.isEmpty() && !unique.contains(topic))
+                    unique.add(topic);
+            }
+            this.name = name;
+            this.topics = Collections.unmodifiableList(unique);
+            this.policy = policy;
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return Subscribed topics
+         */
+        List<String> getTopics() {
+            return topics;
+        }
+
+        /**
+         * Queue a message, applying the policy if the queue is full.
+         * @param message Message
+         * @return False if the subscriber is closed or was cut off
+         */
+        private boolean offer(Message message) {
+            synchronized (this) {
+                if (closed)
+                    return false;
+                if (policy.equals(POLICY_CONFLATE)) {
+                    // Replacing keeps the topic's place in line.
+                    latest.put(message.topic, message);
+                    notifyAll();
+                    return true;
+                }
+                if (queue.size() < capacity) {
+                    queue.add(message);
+                    notifyAll();
+                    return true;
+                }
+                if (policy.equals(POLICY_DROP)) {
+                    queue.poll();
+                    queue.add(message);
+                    unreported++;
+                    dropped.increment();
+                    return true;
+                }
+                closed = true;
+                evicted = true;
+                queue.clear();
+                notifyAll();
+            }
+            disconnected.increment();
+            logger.write(name + " fell " + capacity + " messages behind and was disconnected.", ServerLogger.LOG_WARN);
+            return false;
+        }
+
+        /**
+         * Wait for messages and take everything queued.
+         * @param wait Time in MS to wait if nothing is queued
+         * @return Encoded messages in order, empty if the wait ran out, null once closed
+         * @throws InterruptedException
+         */
+        synchronized List<byte[]> take(long wait) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + wait;
+            long left = wait;
+            while (!closed && queue.isEmpty() && latest.isEmpty() && unreported == 0 && left > 0) {
+                wait(left);
+                left = deadline - System.currentTimeMillis();
+            }
+            if (closed)
+                return null;
+            List<byte[]> batch = new ArrayList<>(queue.size() + latest.size());
+            for (Message message : queue)
+                batch.add(message.encoded);
+            for (Message message : latest.values())
+                batch.add(message.encoded);
+            queue.clear();
+            latest.clear();
+            return batch;
+        }
+
+        /**
+         * Take the count of messages discarded since the last call.
+         * @return Discarded messages
+         */
+        synchronized int takeDropped() {
+            int count = unreported;
+            unreported = 0;
+            return count;
+        }
+
+        /**
+         * @return True if the disconnect policy cut the subscriber off
+         */
+        synchronized boolean isEvicted() {
+            return evicted;
+        }
+
+        /**
+         * Close the subscriber, waking its thread.
+         */
+        private synchronized void close() {
+            closed = true;
+            queue.clear();
+            latest.clear();
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiter keyed by client address.
+ */
+public class RateLimiter {
+    /**
+     * Number of buckets kept before idle ones are pruned.
+     */
+    private static final int PRUNE_SIZE = 10000;
+    /**
+     * Most buckets kept. Clients past this share one bucket.
+     */
+    private static final int MAX_BUCKETS = 100000;
+    /**
+     * Time in nanoseconds between scans for idle buckets.
+     */
+    private static final long PRUNE_INTERVAL = 1000000000L;
+    /**
+     * Buckets by client address. Each bucket locks only itself.
+     */
+    private final Map<InetAddress, Bucket> buckets;
+    /**
+     * Tokens added per second, 0 disables limiting.
+     */
+    private volatile double rate;
+    /**
+     * Maximum tokens a bucket can hold.
+     */
+    private volatile int burst;
+    /**
+     * Bucket shared by clients that arrive while the map is at its limit.
+     */
+    private final Bucket overflow;
+    /**
+     * Time of the last scan for idle buckets in nanoseconds.
+     */
+    private final AtomicLong lastPrune;
+
+    /**
+     * Class constructor.
+     * @param rate Requests per second per client, 0 to disable
+     * @param burst Requests a client may send at once
+     */
+    public RateLimiter(double rate, int burst) {
+        this.buckets = new ConcurrentHashMap<>();
+        setLimit(rate, burst);
+        long now = System.nanoTime();
+        this.overflow = new Bucket(this.burst, now);
+        this.lastPrune = new AtomicLong(now);
+    }
+
+    /**
+     * Change the limit. Existing buckets pick it up on their next request.
+     * @param rate Requests per second per client, 0 to disable
+     * @param burst Requests a client may send at once
+     */
+    public void setLimit(double rate, int burst) {
+        this.rate = Math.max(0, rate);
+        this.burst = Math.max(1, burst);
+    }
+
+    /**
+     * @return Requests per second per client, 0 if disabled
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return Requests a client may send at once
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Determine if limiting is enabled.
+     * @return Enabled status
+     */
+    public boolean isEnabled() {
+        return rate > 0;
+    }
+
+    /**
+     * Take a token for a request from the client.
+     * @param client Client address
+     * @return True if the request is allowed
+     */
+    public boolean tryAcquire(InetAddress client) {
+        double currentRate = rate;
+        if (currentRate <= 0)
+            return true;
+        long now = System.nanoTime();
+        Bucket bucket = buckets.get(client);
+        if (bucket == null) {
+            if (buckets.size() >= PRUNE_SIZE)
+                prune(now);
+            bucket = buckets.size() >= MAX_BUCKETS ? overflow :
+                    buckets.computeIfAbsent(client, k -> new Bucket(burst, now));
+        }
+        return bucket.tryAcquire(currentRate, burst, now);
+    }
+
+    /**
+     * Drop buckets that have refilled completely, they carry no state. At
+     * most one scan runs per interval, so new clients do not each pay for it.
+     * @param now Current time in nanoseconds
+     */
+    private void prune(long now) {
+        long last = lastPrune.get();
+        if (now - last < PRUNE_INTERVAL || !lastPrune.compareAndSet(last, now))
+            return;
+        Iterator<Bucket> it = buckets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isFull(rate, burst, now))
+                it.remove();
+        }
+    }
+
+    /**
+     * A single client's token bucket.
+     */
+    private static class Bucket {
+        /**
+         * Tokens available.
+         */
+        private double tokens;
+        /**
+         * Time of the last refill in nanoseconds.
+         */
+        private long lastRefill;
+
+        Bucket(int tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+
+        synchronized boolean tryAcquire(double rate, int burst, long now) {
+            refill(rate, burst, now);
+            if (tokens < 1)
+                return false;
+            tokens--;
+            return true;
+        }
+
+        synchronized boolean isFull(double rate, int burst, long now) {
+            refill(rate, burst, now);
+            return tokens >= burst;
+        }
+
+        private void refill(double rate, int burst, long now) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+        }
+    }
+}
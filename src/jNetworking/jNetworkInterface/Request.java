@@ -0,0 +1,221 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A client request: the command, key=value headers, optional body bytes and
+ * data lines. On the wire the headers follow the command on the request line.
+ * A body is announced with the length header and sent right after the request
+ * line, before the data lines:
+ * <pre>
+ * echo codec=binary length=6
+ * ......
+ * END COMMAND
+ * </pre>
+ */
+public class Request {
+    /**
+     * Command to run.
+     */
+    private final String command;
+    /**
+     * Data lines.
+     */
+    private final ArrayList<String> data;
+    /**
+     * Request headers.
+     */
+    private final Map<String, String> headers;
+    /**
+     * Body bytes, null for none.
+     */
+    private byte[] body;
+
+    /**
+     * Class constructor.
+     * @param command Command to run
+     */
+    public Request(String command) {
+        this(command, null);
+    }
+
+    /**
+     * Class constructor with data lines.
+     * @param command Command to run
+     * @param data Data lines, may be null
+     */
+    public Request(String command, ArrayList<String> data) {
+        this.command = command;
+        this.data = data == null ? new ArrayList<>() : data;
+        this.headers = new LinkedHashMap<>();
+    }
+
+    /**
+     * Set a header. Names are lower case, values are sent as given. Neither
+     * may hold spaces or '='.
+     * @param name Header name
+     * @param value Header value
+     * @return This request
+     */
+    public Request setHeader(String name, String value) {
+        headers.put(clean(name).toLowerCase(), clean(value));
+        return this;
+    }
+
+    /**
+     * Set the time limit for the command.
+     * @param deadline Time limit in MS, 0 for none
+     * @return This request
+     */
+    public Request setDeadline(long deadline) {
+        if (deadline > 0)
+            headers.put("deadline", Long.toString(deadline));
+        else
+            headers.remove("deadline");
+        return this;
+    }
+
+    /**
+     * Set the body bytes.
+     * @param body Body, null for none
+     * @return This request
+     */
+    public Request setBody(byte[] body) {
+        this.body = body;
+        return this;
+    }
+
+    /**
+     * Encode an object as the body, with the binary codec if it can and Java
+     * serialization otherwise. Sets the codec header.
+     * @param value Value
+     * @return This request
+     * @throws IOException If the value cannot be encoded
+     */
+    public Request setObject(Object value) throws IOException {
+        Codec codec = Codecs.forValue(value);
+        body = codec.encode(value);
+        headers.put("codec", codec.getName());
+        return this;
+    }
+
+    /**
+     * Get the command.
+     * @return Command
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * Get the data lines.
+     * @return Data lines
+     */
+    public ArrayList<String> getData() {
+        return data;
+    }
+
+    /**
+     * Get a header.
+     * @param name Header name
+     * @return Value or null
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * Get all headers.
+     * @return Read-only headers
+     */
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * Get the time limit.
+     * @return Time limit in MS, 0 for none
+     */
+    public long getDeadline() {
+        String deadline = headers.get("deadline");
+        return deadline == null ? 0 : Long.parseLong(deadline);
+    }
+
+    /**
+     * Get the body bytes.
+     * @return Body or null
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Write the request.
+     * @param out Output stream, not flushed
+     * @param extra Connection headers added by the client as key=value, nulls are skipped
+     * @throws IOException
+     */
+    void write(OutputStream out, String... extra) throws IOException {
+        StringBuilder line = new StringBuilder(command);
+        for (Map.Entry<String, String> header : headers.entrySet())
+            line.append(' ').append(header.getKey()).append('=').append(header.getValue());
+        for (String header : extra) {
+            if (header != null)
+                line.append(' ').append(header);
+        }
+        if (body != null)
+            line.append(" length=").append(body.length);
+        line.append('\n');
+        PooledOutputStream.writeUtf8(out, line);
+        if (body != null)
+            out.write(body);
+        for (String s : data) {
+            PooledOutputStream.writeUtf8(out, s);
+            out.write('\n');
+        }
+        PooledOutputStream.writeUtf8(out, "END COMMAND\n");
+    }
+
+    /**
+     * Make a header name or value safe for the request line.
+     * @param s Name or value
+     * @return String without whitespace or '='
+     */
+    private static String clean(String s) {
+        return s.trim().replaceAll("[\\s=]+", "_");
+    }
+
+    @Override
+    public String toString() {
+        return command + (headers.isEmpty() ? "" : " " + headers);
+    }
+}
@@ -0,0 +1,494 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Incremental parser for the request framing. Bytes are read into a pooled
+ * buffer and each request is scanned in place: the request line is lower
+ * cased where it lies, the command is matched against the registry's trie
+ * without building a String, and the body and data lines are kept as offsets
+ * until the command asks for them. A request must be consumed before the next
+ * one is parsed, since parsing reuses the buffer.
+ */
+class RequestParser {
+    /**
+     * Line that ends the data lines.
+     */
+    private static final byte[] END_COMMAND = "END COMMAND".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * Largest request body accepted.
+     */
+    private static final int MAX_BODY = 16 * 1024 * 1024;
+    /**
+     * Largest request accepted, body and data lines included.
+     */
+    private static final int MAX_REQUEST = 2 * MAX_BODY;
+    /**
+     * Underlying stream.
+     */
+    private final InputStream in;
+    /**
+     * Pool buffers come from.
+     */
+    private final BufferPool pool;
+    /**
+     * Size of the buffer between large requests.
+     */
+    private final int size;
+    /**
+     * Pooled buffer, null when the buffer grew past the largest size class or
+     * once released.
+     */
+    private BufferPool.Handle handle;
+    /**
+     * Buffer array.
+     */
+    private byte[] buf;
+    /**
+     * Start of the current request.
+     */
+    private int start;
+    /**
+     * Start of the next request.
+     */
+    private int pos;
+    /**
+     * End of buffered bytes.
+     */
+    private int limit;
+    /**
+     * Matched command, null if unknown.
+     */
+    private CommandRegistry.Entry entry;
+    /**
+     * Command offset and length relative to the request start.
+     */
+    private int commandOffset;
+    private int commandLength;
+    /**
+     * Request line headers.
+     */
+    private final Map<String, String> headers = new HashMap<>();
+    /**
+     * Body offset relative to the request start, -1 for none.
+     */
+    private int bodyOffset;
+    /**
+     * Body length.
+     */
+    private int bodyLength;
+    /**
+     * Data line offsets and lengths relative to the request start.
+     */
+    private int[] lines = new int[32];
+    /**
+     * Number of data lines.
+     */
+    private int lineCount;
+
+    /**
+     * Class constructor.
+     * @param in Underlying stream
+     * @param pool Heap buffer pool
+     * @param size Buffer size
+     */
+    RequestParser(InputStream in, BufferPool pool, int size) {
+        if (pool.isDirect())
+            throw new IllegalArgumentException("Socket streams need a heap buffer pool.");
+        this.in = in;
+        this.pool = pool;
+        this.size = size;
+        this.handle = pool.acquire(size);
+        this.buf = handle.buffer().array();
+    }
+
+    /**
+     * Block until the next request starts arriving.
+     * @return False if the stream ended first
+     * @throws IOException
+     */
+    boolean await() throws IOException {
+        if (pos < limit)
+            return true;
+        start = pos = limit = 0;
+        shrink();
+        return fill();
+    }
+
+    /**
+     * Parse the next request.
+     * @param registry Commands to match
+     * @return False if the stream ended before the request started
+     * @throws IOException If the request is malformed or too large
+     */
+    boolean next(CommandRegistry registry) throws IOException {
+        entry = null;
+        commandLength = 0;
+        headers.clear();
+        bodyOffset = -1;
+        bodyLength = 0;
+        lineCount = 0;
+        if (pos == limit) {
+            start = pos = limit = 0;
+            shrink();
+        }
+        start = pos;
+        int end = lineEnd(0);
+        if (end < 0) {
+            if (limit == start)
+                return false;
+            end = limit - start;
+        }
+        parseRequestLine(registry, end);
+        int next = Math.min(end + 1, limit - start);
+        String length = headers.get("length");
+        if (length != null) {
+            try {
+                bodyLength = Integer.parseInt(length);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid body length '" + length + "'.");
+            }
+            if (bodyLength < 0 || bodyLength > MAX_BODY)
+                throw new IOException("Invalid body length '" + length + "'.");
+            while (limit - start < next + bodyLength)
+                if (!fill())
+                    throw new IOException("Request ended in the body.");
+            bodyOffset = next;
+            next += bodyLength;
+        }
+        while (true) {
+            end = lineEnd(next);
+            if (end < 0) {
+                // Keep a last line cut off by the end of the stream.
+                if (limit - start > next)
+                    addLine(next, limit - start);
+                next = limit - start;
+                break;
+            }
+            int lineLength = trimCr(next, end) - next;
+            if (isEndCommand(next, lineLength)) {
+                next = end + 1;
+                break;
+            }
+            addLine(next, next + lineLength);
+            next = end + 1;
+        }
+        pos = start + next;
+        return true;
+    }
+
+    /**
+     * Get the matched command.
+     * @return Entry or null if the command is unknown
+     */
+    CommandRegistry.Entry getEntry() {
+        return entry;
+    }
+
+    /**
+     * Get the command name. Only unknown commands cost a String.
+     * @return Lower case command, empty if there was none
+     */
+    String getCommand() {
+        if (entry != null)
+            return entry.getName();
+        if (commandLength == 0)
+            return "";
+        return new String(buf, start + commandOffset, commandLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the request line headers.
+     * @return Headers, reused by the next request
+     */
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Copy out the body.
+     * @return Body or null if there is none
+     */
+    byte[] getBody() {
+        if (bodyOffset < 0)
+            return null;
+        byte[] body = new byte[bodyLength];
+        System.arraycopy(buf, start + bodyOffset, body, 0, bodyLength);
+        return body;
+    }
+
+    /**
+     * Decode the data lines.
+     * @return Data lines
+     */
+    ArrayList<String> getData() {
+        ArrayList<String> data = new ArrayList<>(lineCount);
+        for (int i = 0; i < lineCount; i++)
+            data.add(new String(buf, start + lines[2 * i], lines[2 * i + 1], StandardCharsets.UTF_8));
+        return data;
+    }
+
+    /**
+     * Get the number of data lines.
+     * @return Lines
+     */
+    int getDataCount() {
+        return lineCount;
+    }
+
+    /**
+     * Get the size of the data lines.
+     * @return Bytes over all lines, without line endings
+     */
+    int getDataBytes() {
+        int bytes = 0;
+        for (int i = 0; i < lineCount; i++)
+            bytes += lines[2 * i + 1];
+        return bytes;
+    }
+
+    /**
+     * Get the size of the body.
+     * @return Bytes, 0 if there is none
+     */
+    int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Check whether the peer has closed its end, without losing anything it
+     * sent: bytes that arrive are kept for the next request.
+     * @return True at the end of the stream
+     * @throws IOException If the read fails or times out
+     */
+    boolean isEnded() throws IOException {
+        // Pipelined bytes show the peer is there, and a full buffer has no
+        // room to read into without moving the current request.
+        if (buf == null || pos < limit || limit == buf.length)
+            return buf == null;
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0)
+            return true;
+        limit += n;
+        return false;
+    }
+
+    /**
+     * Return the buffer to the pool.
+     */
+    void release() {
+        if (handle != null)
+            handle.release();
+        handle = null;
+        buf = null;
+        start = pos = limit = 0;
+    }
+
+    /**
+     * Lower case ASCII letters in place.
+     * @param from First byte
+     * @param to End of the range, exclusive
+     */
+    private void toLowerCase(int from, int to) {
+        for (int i = from; i < to; i++)
+            if (buf[i] >= 'A' && buf[i] <= 'Z')
+                buf[i] += 'a' - 'A';
+    }
+
+    /**
+     * Split the request line into the command and its key=value headers.
+     * The command and header names are lower cased, header values are kept
+     * as sent.
+     * @param registry Commands to match
+     * @param end End of the line relative to the request start
+     */
+    private void parseRequestLine(CommandRegistry registry, int end) {
+        int lineEnd = start + trimCr(0, end);
+        int i = skipSpace(start, lineEnd);
+        int tokenEnd = skipToken(i, lineEnd);
+        toLowerCase(i, tokenEnd);
+        commandOffset = i - start;
+        commandLength = tokenEnd - i;
+        if (commandLength > 0)
+            entry = registry.match(buf, i, commandLength);
+        i = skipSpace(tokenEnd, lineEnd);
+        while (i < lineEnd) {
+            tokenEnd = skipToken(i, lineEnd);
+            for (int split = i + 1; split < tokenEnd; split++) {
+                if (buf[split] == '=') {
+                    toLowerCase(i, split);
+                    headers.put(new String(buf, i, split - i, StandardCharsets.UTF_8),
+                            new String(buf, split + 1, tokenEnd - split - 1, StandardCharsets.UTF_8));
+                    break;
+                }
+            }
+            i = skipSpace(tokenEnd, lineEnd);
+        }
+    }
+
+    /**
+     * Skip spaces and tabs.
+     * @param i Absolute position
+     * @param end Absolute end
+     * @return Position of the next other byte
+     */
+    private int skipSpace(int i, int end) {
+        while (i < end && (buf[i] == ' ' || buf[i] == '\t'))
+            i++;
+        return i;
+    }
+
+    /**
+     * Skip to the end of a token.
+     * @param i Absolute position
+     * @param end Absolute end
+     * @return Position of the next space, tab or the end
+     */
+    private int skipToken(int i, int end) {
+        while (i < end && buf[i] != ' ' && buf[i] != '\t')
+            i++;
+        return i;
+    }
+
+    /**
+     * Drop a CR before a line's LF.
+     * @param from Line start relative to the request start
+     * @param end LF position relative to the request start
+     * @return Line end relative to the request start
+     */
+    private int trimCr(int from, int end) {
+        return end > from && buf[start + end - 1] == '\r' ? end - 1 : end;
+    }
+
+    /**
+     * Compare a line to END COMMAND.
+     * @param from Line start relative to the request start
+     * @param length Line length
+     * @return Match status
+     */
+    private boolean isEndCommand(int from, int length) {
+        if (length != END_COMMAND.length)
+            return false;
+        for (int i = 0; i < length; i++)
+            if (buf[start + from + i] != END_COMMAND[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Record a data line.
+     * @param from Line start relative to the request start
+     * @param end Line end relative to the request start
+     */
+    private void addLine(int from, int end) {
+        if (2 * lineCount + 2 > lines.length)
+            lines = Arrays.copyOf(lines, lines.length * 2);
+        lines[2 * lineCount] = from;
+        lines[2 * lineCount + 1] = end - from;
+        lineCount++;
+    }
+
+    /**
+     * Find the next LF, reading more as needed.
+     * @param from Position relative to the request start
+     * @return LF position relative to the request start, -1 at the end of
+     * the stream
+     * @throws IOException
+     */
+    private int lineEnd(int from) throws IOException {
+        int scanned = from;
+        while (true) {
+            for (int i = start + scanned; i < limit; i++)
+                if (buf[i] == '\n')
+                    return i - start;
+            scanned = limit - start;
+            if (!fill())
+                return -1;
+        }
+    }
+
+    /**
+     * Read more bytes, making room first if the buffer is full.
+     * @return False at the end of the stream
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        if (buf == null)
+            throw new IOException("Stream closed.");
+        if (limit == buf.length)
+            makeRoom();
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0)
+            return false;
+        limit += n;
+        return true;
+    }
+
+    /**
+     * Move the current request to the front of the buffer, or grow the
+     * buffer if the request already fills it.
+     * @throws IOException If the request is too large
+     */
+    private void makeRoom() throws IOException {
+        int used = limit - start;
+        if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, used);
+            pos -= start;
+            start = 0;
+            limit = used;
+            return;
+        }
+        if (buf.length >= MAX_REQUEST)
+            throw new IOException("Request too large.");
+        int capacity = Math.min(MAX_REQUEST, buf.length * 2);
+        BufferPool.Handle grown = capacity <= BufferPool.MAX_SIZE ? pool.acquire(capacity) : null;
+        byte[] next = grown != null ? grown.buffer().array() : new byte[capacity];
+        System.arraycopy(buf, 0, next, 0, used);
+        if (handle != null)
+            handle.release();
+        handle = grown;
+        buf = next;
+    }
+
+    /**
+     * Go back to a normal sized buffer once a large request is done.
+     */
+    private void shrink() {
+        if (buf.length <= size)
+            return;
+        if (handle != null)
+            handle.release();
+        handle = pool.acquire(size);
+        buf = handle.buffer().array();
+    }
+}
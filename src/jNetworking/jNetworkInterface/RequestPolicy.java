@@ -0,0 +1,417 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedging and retry options for clients. Only commands marked idempotent are
+ * hedged or retried, since either may run a command on the server twice.
+ * <p>
+ * A hedge is a duplicate of a command sent on another connection when the
+ * first has not answered within the hedge delay. Whichever answers first
+ * wins. Commands are retried when sending fails or the server answers with a
+ * retryable status such as capacity or rate limit. Retries back off with
+ * full jitter and draw from a budget that only refills as new requests are
+ * made, so a failing server does not get retried into the ground.
+ */
+public class RequestPolicy {
+    /**
+     * Hedge delay that tracks the observed 95th percentile latency.
+     */
+    public static final long HEDGE_P95 = -1;
+    /**
+     * Hedging disabled.
+     */
+    public static final long HEDGE_OFF = 0;
+    /**
+     * Number of latency samples kept for the percentile.
+     */
+    private static final int LATENCY_SAMPLES = 1024;
+    /**
+     * Samples required before the observed percentile is trusted.
+     */
+    private static final int LATENCY_WARMUP = 20;
+    /**
+     * Most retry tokens the budget can hold.
+     */
+    private static final double BUDGET_MAX = 10;
+    /**
+     * Threads that run hedged attempts.
+     */
+    private static final ExecutorService HEDGE_POOL = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "jNetworkInterface-hedge-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * One attempt at a command.
+     */
+    public interface Attempt {
+        /**
+         * Send the command.
+         * @return Server response
+         */
+        Response send();
+
+        /**
+         * Called from another thread when the attempt lost the race and its
+         * result is no longer wanted. Blocking socket reads ignore interrupts,
+         * so attempts holding a connection should close it here.
+         */
+        default void cancel() {
+        }
+    }
+
+    /**
+     * Commands that are safe to send more than once.
+     */
+    private final Set<String> idempotent;
+    /**
+     * Hedge delay in MS, HEDGE_P95 or HEDGE_OFF.
+     */
+    private volatile long hedgeDelay;
+    /**
+     * Retries allowed per command.
+     */
+    private volatile int maxRetries;
+    /**
+     * Retry tokens earned per request.
+     */
+    private volatile double budgetRatio;
+    /**
+     * First retry backoff in MS, doubled for each retry.
+     */
+    private volatile long backoffBase;
+    /**
+     * Longest retry backoff in MS.
+     */
+    private volatile long backoffMax;
+    /**
+     * Retry tokens available.
+     */
+    private double budget;
+    /**
+     * Recent latencies in nanoseconds.
+     */
+    private final long[] latencies;
+    /**
+     * Number of latencies recorded.
+     */
+    private long latencyCount;
+    /**
+     * Cached 95th percentile of idempotent commands in nanoseconds.
+     */
+    private long p95;
+    /**
+     * Commands run under this policy.
+     */
+    private final AtomicLong requests = new AtomicLong();
+    /**
+     * Hedges sent.
+     */
+    private final AtomicLong hedgesSent = new AtomicLong();
+    /**
+     * Hedges that answered first.
+     */
+    private final AtomicLong hedgesWon = new AtomicLong();
+    /**
+     * Retries made.
+     */
+    private final AtomicLong retries = new AtomicLong();
+    /**
+     * Retries refused by the budget.
+     */
+    private final AtomicLong retriesDenied = new AtomicLong();
+
+    /**
+     * Default constructor. Hedges at the observed 95th percentile and retries
+     * twice with a 10% budget. ping, stats, diagnostics, version and plugins
+     * are idempotent.
+     */
+    public RequestPolicy() {
+        this.idempotent = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        this.idempotent.addAll(Arrays.asList("ping", "stats", "diagnostics", "version", "plugins"));
+        this.hedgeDelay = HEDGE_P95;
+        this.maxRetries = 2;
+        this.budgetRatio = 0.1;
+        this.backoffBase = 50;
+        this.backoffMax = 2000;
+        this.budget = BUDGET_MAX;
+        this.latencies = new long[LATENCY_SAMPLES];
+    }
+
+    /**
+     * Mark commands as safe to hedge and retry.
+     * @param commands Command names
+     * @return This policy
+     */
+    public RequestPolicy setIdempotent(String... commands) {
+        for (String command : commands)
+            idempotent.add(command.toLowerCase().trim());
+        return this;
+    }
+
+    /**
+     * Set the hedge delay.
+     * @param delay Delay in MS, HEDGE_P95 to use the observed 95th percentile or HEDGE_OFF
+     * @return This policy
+     */
+    public RequestPolicy setHedgeDelay(long delay) {
+        hedgeDelay = delay;
+        return this;
+    }
+
+    /**
+     * Set the retry limits.
+     * @param maxRetries Retries allowed per command
+     * @param budgetRatio Retry tokens earned per request, e.g. 0.1 allows 10% extra load
+     * @param backoffBase First retry backoff in MS
+     * @param backoffMax Longest retry backoff in MS
+     * @return This policy
+     */
+    public RequestPolicy setRetries(int maxRetries, double budgetRatio, long backoffBase, long backoffMax) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.budgetRatio = Math.max(0, budgetRatio);
+        this.backoffBase = Math.max(0, backoffBase);
+        this.backoffMax = Math.max(this.backoffBase, backoffMax);
+        return this;
+    }
+
+    /**
+     * Run a command under this policy.
+     * @param command Command name
+     * @param primary Attempt on the usual connection
+     * @param hedge Attempt on another connection or endpoint
+     * @return Server response
+     */
+    public Response execute(String command, Attempt primary, Attempt hedge) {
+        boolean safe = idempotent.contains(command.toLowerCase().trim());
+        requests.incrementAndGet();
+        depositBudget();
+        for (int attempt = 0; ; attempt++) {
+            RuntimeException failure = null;
+            Response response = null;
+            try {
+                long start = System.nanoTime();
+                response = safe ? hedged(primary, hedge) : primary.send();
+                if (!response.isRetryable()) {
+                    // Only hedged commands feed the hedge delay.
+                    if (safe)
+                        recordLatency(System.nanoTime() - start);
+                    return response;
+                }
+            } catch (RuntimeException ex) {
+                failure = ex;
+            }
+            if (!safe || attempt >= maxRetries || !withdrawBudget()) {
+                if (safe && attempt < maxRetries)
+                    retriesDenied.incrementAndGet();
+                if (failure != null)
+                    throw failure;
+                return response;
+            }
+            retries.incrementAndGet();
+            backoff(attempt);
+        }
+    }
+
+    /**
+     * Get the number of commands run under this policy.
+     * @return Request count
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of hedges sent.
+     * @return Hedge count
+     */
+    public long getHedgesSent() {
+        return hedgesSent.get();
+    }
+
+    /**
+     * Get the number of hedges that answered before the original.
+     * @return Hedge win count
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * Get the number of retries made.
+     * @return Retry count
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Get the number of retries refused because the budget was empty.
+     * @return Denied retry count
+     */
+    public long getRetriesDenied() {
+        return retriesDenied.get();
+    }
+
+    /**
+     * Get the current hedge delay.
+     * @return Delay in MS, HEDGE_OFF if not hedging yet
+     */
+    public synchronized long getEffectiveHedgeDelay() {
+        if (hedgeDelay != HEDGE_P95)
+            return hedgeDelay;
+        if (latencyCount < LATENCY_WARMUP)
+            return HEDGE_OFF;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(p95));
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + getRequestCount() + " hedges=" + getHedgesSent() + " hedgesWon=" + getHedgesWon() +
+                " retries=" + getRetries() + " retriesDenied=" + getRetriesDenied();
+    }
+
+    /**
+     * Send the primary attempt and a hedge if it is slow, returning the first
+     * success.
+     * @param primary Primary attempt
+     * @param hedge Hedge attempt
+     * @return Server response
+     */
+    private Response hedged(Attempt primary, Attempt hedge) {
+        long delay = getEffectiveHedgeDelay();
+        if (delay <= 0 || hedge == null)
+            return primary.send();
+        CompletionService<Response> race = new ExecutorCompletionService<>(HEDGE_POOL);
+        Future<Response> first = race.submit(primary::send);
+        Future<Response> second = null;
+        RuntimeException failure = null;
+        Response busy = null;
+        try {
+            Future<Response> done = race.poll(delay, TimeUnit.MILLISECONDS);
+            if (done == null) {
+                hedgesSent.incrementAndGet();
+                second = race.submit(hedge::send);
+            }
+            int pending = second == null ? 1 : 2;
+            while (pending-- > 0) {
+                if (done == null)
+                    done = race.take();
+                try {
+                    Response response = done.get();
+                    if (!response.isRetryable()) {
+                        if (done == second)
+                            hedgesWon.incrementAndGet();
+                        return response;
+                    }
+                    // Busy, the other attempt may still do better.
+                    busy = response;
+                } catch (ExecutionException ex) {
+                    failure = ex.getCause() instanceof RuntimeException ?
+                            (RuntimeException) ex.getCause() : new RuntimeException("Failed to send command.");
+                }
+                done = null;
+            }
+            if (busy != null)
+                return busy;
+            throw failure;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while sending command.");
+        } finally {
+            if (!first.isDone()) {
+                first.cancel(true);
+                primary.cancel();
+            }
+            if (second != null && !second.isDone()) {
+                second.cancel(true);
+                hedge.cancel();
+            }
+        }
+    }
+
+    /**
+     * Earn retry tokens for a new request.
+     */
+    private synchronized void depositBudget() {
+        budget = Math.min(BUDGET_MAX, budget + budgetRatio);
+    }
+
+    /**
+     * Spend a retry token.
+     * @return True if a token was available
+     */
+    private synchronized boolean withdrawBudget() {
+        if (budget < 1)
+            return false;
+        budget--;
+        return true;
+    }
+
+    /**
+     * Sleep before a retry, a random time up to the exponential backoff.
+     * @param attempt Attempt that failed, from 0
+     */
+    private void backoff(int attempt) {
+        long cap = Math.min(backoffMax, backoffBase << Math.min(attempt, 20));
+        if (cap <= 0)
+            return;
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while sending command.");
+        }
+    }
+
+    /**
+     * Record a completed idempotent command's latency and refresh the
+     * percentile every so often.
+     * @param nanos Latency in nanoseconds
+     */
+    private synchronized void recordLatency(long nanos) {
+        latencies[(int) (latencyCount++ % LATENCY_SAMPLES)] = nanos;
+        if (latencyCount < LATENCY_WARMUP || latencyCount % LATENCY_WARMUP != 0)
+            return;
+        int n = (int) Math.min(latencyCount, LATENCY_SAMPLES);
+        long[] sorted = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        p95 = sorted[(int) Math.min(n - 1, Math.ceil(n * 0.95) - 1)];
+    }
+}
@@ -0,0 +1,296 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A server response with a numeric status, optional headers and a body.
+ * <p>
+ * Clients that send the envelope=1 request header get responses framed as a
+ * status line holding the status and body length, header lines, a blank line
+ * and then the body bytes:
+ * <pre>
+ * 200 29
+ * command: version
+ *
+ * jNetworkInterfaceServer 1.0.0
+ * </pre>
+ * The body length framing also ends the response on kept-open connections.
+ * Clients that do not ask for the envelope get the bare body as before.
+ */
+public class Response {
+    /**
+     * Command ran and returned a result.
+     */
+    public static final int STATUS_OK = 200;
+    /**
+     * Command ran and returned nothing.
+     */
+    public static final int STATUS_EMPTY = 204;
+    /**
+     * Request had no command or was malformed.
+     */
+    public static final int STATUS_NO_COMMAND = 400;
+    /**
+     * Command does not exist.
+     */
+    public static final int STATUS_INVALID = 404;
+    /**
+     * Client exceeded its rate limit.
+     */
+    public static final int STATUS_RATE_LIMITED = 429;
+    /**
+     * Command failed.
+     */
+    public static final int STATUS_ERROR = 500;
+    /**
+     * Server is paused.
+     */
+    public static final int STATUS_PAUSED = 503;
+    /**
+     * Command ran past its deadline.
+     */
+    public static final int STATUS_TIMEOUT = 504;
+    /**
+     * Server has no capacity left.
+     */
+    public static final int STATUS_CAPACITY = 529;
+    /**
+     * Largest response body accepted when reading.
+     */
+    private static final int MAX_BODY = 16 * 1024 * 1024;
+    /**
+     * Response status.
+     */
+    private final int status;
+    /**
+     * Response headers.
+     */
+    private final Map<String, String> headers;
+    /**
+     * Response body.
+     */
+    private final byte[] body;
+
+    /**
+     * Class constructor.
+     * @param status Status code
+     * @param body Body bytes
+     */
+    public Response(int status, byte[] body) {
+        this.status = status;
+        this.headers = new LinkedHashMap<>();
+        this.body = body == null ? new byte[0] : body;
+    }
+
+    /**
+     * Class constructor for a text body.
+     * @param status Status code
+     * @param body UTF-8 body
+     */
+    public Response(int status, String body) {
+        this(status, body == null ? null : body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Set a header. Names are lower case, line breaks are removed from values.
+     * @param name Header name
+     * @param value Header value
+     * @return This response
+     */
+    public Response setHeader(String name, String value) {
+        headers.put(name.toLowerCase().trim(), value.replace('\r', ' ').replace('\n', ' ').trim());
+        return this;
+    }
+
+    /**
+     * Get the status code.
+     * @return Status
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Determine if the command ran successfully.
+     * @return True for 2xx statuses
+     */
+    public boolean isSuccess() {
+        return status >= 200 && status < 300;
+    }
+
+    /**
+     * Determine if the server turned the request away because it is busy, so
+     * sending it again later may work.
+     * @return True for capacity and rate limit statuses
+     */
+    public boolean isRetryable() {
+        return status == STATUS_CAPACITY || status == STATUS_RATE_LIMITED;
+    }
+
+    /**
+     * Get a header.
+     * @param name Header name
+     * @return Value or null
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase().trim());
+    }
+
+    /**
+     * Get all headers.
+     * @return Headers
+     */
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * Get the body.
+     * @return Body bytes
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Get the body as text.
+     * @return UTF-8 body
+     */
+    public String getBodyString() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decode the body with the codec named by the codec header.
+     * @param type Expected type
+     * @param <T> Expected type
+     * @return Value, null for an empty response
+     * @throws IOException If the codec is unknown or the body cannot be decoded
+     */
+    public <T> T getObject(Class<T> type) throws IOException {
+        if (status == STATUS_EMPTY)
+            return null;
+        Codec codec = Codecs.get(getHeader("codec"));
+        if (codec == null)
+            throw new IOException("Response has no known codec.");
+        return codec.decode(body, type);
+    }
+
+    /**
+     * Write the response in the envelope format.
+     * @param out Output stream, not flushed
+     * @throws IOException
+     */
+    public void write(OutputStream out) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append(status).append(' ').append(body.length).append('\n');
+        for (Map.Entry<String, String> header : headers.entrySet())
+            head.append(header.getKey()).append(": ").append(header.getValue()).append('\n');
+        head.append('\n');
+        PooledOutputStream.writeUtf8(out, head);
+        out.write(body);
+    }
+
+    /**
+     * Read a response in the envelope format.
+     * @param in Input stream
+     * @return Response or null if the stream ended before a response started
+     * @throws IOException If the response is malformed or cut short
+     */
+    public static Response read(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        if (statusLine == null)
+            return null;
+        String[] parts = statusLine.trim().split(" ");
+        int status;
+        int length;
+        try {
+            status = Integer.parseInt(parts[0]);
+            length = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("Malformed status line.");
+        }
+        if (length < 0)
+            throw new IOException("Malformed status line.");
+        if (length > MAX_BODY)
+            throw new IOException("Response body too large.");
+        Map<String, String> headers = new LinkedHashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int split = line.indexOf(':');
+            if (split > 0)
+                headers.put(line.substring(0, split).trim(), line.substring(split + 1).trim());
+        }
+        if (line == null)
+            throw new IOException("Response ended in the headers.");
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, read, length - read);
+            if (n < 0)
+                throw new IOException("Response ended in the body.");
+            read += n;
+        }
+        Response response = new Response(status, body);
+        response.headers.putAll(headers);
+        return response;
+    }
+
+    /**
+     * Read a line of UTF-8 text ending in LF or CRLF.
+     * @param in Input stream
+     * @return Line without the ending, or null at the end of the stream
+     * @throws IOException
+     */
+    static String readLine(InputStream in) throws IOException {
+        if (in instanceof PooledInputStream)
+            return ((PooledInputStream) in).readLine();
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            line.write(b);
+        }
+        return line.size() == 0 ? null : line.toString("UTF-8");
+    }
+
+    @Override
+    public String toString() {
+        return status + " " + getBodyString();
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+/**
+ * Round trip time estimator using the smoothing from TCP (RFC 6298). Keeps a
+ * smoothed RTT and an RTT variation (jitter) updated with every sample.
+ */
+public class RttEstimator {
+    /**
+     * Gain for the smoothed RTT.
+     */
+    private static final double ALPHA = 1.0 / 8;
+    /**
+     * Gain for the RTT variation.
+     */
+    private static final double BETA = 1.0 / 4;
+    /**
+     * Smoothed RTT in nanoseconds.
+     */
+    private double srtt;
+    /**
+     * RTT variation in nanoseconds.
+     */
+    private double rttvar;
+    /**
+     * Lowest RTT seen in nanoseconds.
+     */
+    private long minRtt;
+    /**
+     * Most recent RTT in nanoseconds.
+     */
+    private long lastRtt;
+    /**
+     * Number of samples taken.
+     */
+    private long samples;
+    /**
+     * Number of probes that failed.
+     */
+    private long failures;
+
+    /**
+     * Add a round trip sample.
+     * @param nanos Round trip time in nanoseconds
+     */
+    public synchronized void addSample(long nanos) {
+        if (nanos < 0)
+            return;
+        if (samples == 0) {
+            srtt = nanos;
+            rttvar = nanos / 2.0;
+            minRtt = nanos;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - nanos);
+            srtt = (1 - ALPHA) * srtt + ALPHA * nanos;
+            minRtt = Math.min(minRtt, nanos);
+        }
+        lastRtt = nanos;
+        samples++;
+    }
+
+    /**
+     * Record a probe that got no response.
+     */
+    public synchronized void addFailure() {
+        failures++;
+    }
+
+    /**
+     * Get the smoothed RTT.
+     * @return Smoothed RTT in MS, -1 if there are no samples
+     */
+    public synchronized double getSmoothedRtt() {
+        return samples == 0 ? -1 : srtt / 1e6;
+    }
+
+    /**
+     * Get the RTT variation.
+     * @return Jitter in MS, -1 if there are no samples
+     */
+    public synchronized double getJitter() {
+        return samples == 0 ? -1 : rttvar / 1e6;
+    }
+
+    /**
+     * Get the lowest RTT seen.
+     * @return Minimum RTT in MS, -1 if there are no samples
+     */
+    public synchronized double getMinRtt() {
+        return samples == 0 ? -1 : minRtt / 1e6;
+    }
+
+    /**
+     * Get the most recent RTT.
+     * @return Last RTT in MS, -1 if there are no samples
+     */
+    public synchronized double getLastRtt() {
+        return samples == 0 ? -1 : lastRtt / 1e6;
+    }
+
+    /**
+     * Get the number of samples taken.
+     * @return Sample count
+     */
+    public synchronized long getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * Get the number of failed probes.
+     * @return Failure count
+     */
+    public synchronized long getFailureCount() {
+        return failures;
+    }
+
+    /**
+     * Rate the connection from 1 to 100 based on the smoothed RTT plus jitter,
+     * where 1 is the worst possible connection.
+     * @return Quality, -1 if there are no samples
+     */
+    public synchronized int getQuality() {
+        if (samples == 0)
+            return -1;
+        double ms = (srtt + rttvar) / 1e6;
+        if (ms < 10)
+            return 100;
+        else if (ms < 50)
+            return 90;
+        else if (ms < 100)
+            return 80;
+        else if (ms < 200)
+            return 70;
+        else if (ms < 500)
+            return 60;
+        else if (ms < 1000)
+            return 50;
+        else if (ms < 2000)
+            return 40;
+        else if (ms < 5000)
+            return 30;
+        else if (ms < 10000)
+            return 20;
+        else if (ms < 20000)
+            return 10;
+        return 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("srtt=%.3fms jitter=%.3fms min=%.3fms samples=%d failures=%d",
+                getSmoothedRtt(), getJitter(), getMinRtt(), samples, failures);
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Codec using Java serialization. Slow and verbose, only used for values
+ * BinaryCodec cannot encode.
+ * <p>
+ * Decoding only resolves classes on the allow-list, so a peer cannot make
+ * this side build arbitrary object graphs. The server never decodes request
+ * bodies with this codec. To decode other types, register a codec that
+ * allows them:
+ * <pre>
+ * Codecs.register(new SerializableCodec().allow("com.example.model."));
+ * </pre>
+ */
+public class SerializableCodec implements Codec {
+    /**
+     * Codec name.
+     */
+    public static final String NAME = "java";
+    /**
+     * Class name prefixes decoded by default.
+     */
+    private static final String[] DEFAULT_ALLOWED = {"java.lang.", "java.util.", "java.time.", "java.math."};
+    /**
+     * Class name prefixes decoding may resolve.
+     */
+    private final List<String> allowed = new ArrayList<>(Arrays.asList(DEFAULT_ALLOWED));
+
+    /**
+     * Allow decoding classes whose names start with the given prefixes.
+     * @param prefixes Class name prefixes, such as a package name ending in a dot
+     * @return This codec
+     */
+    public synchronized SerializableCodec allow(String... prefixes) {
+        allowed.addAll(Arrays.asList(prefixes));
+        return this;
+    }
+
+    /**
+     * Determine if a class may be decoded.
+     * @param name Class name as serialized, arrays included
+     * @return True if the class is on the allow-list
+     */
+    private synchronized boolean isAllowed(String name) {
+        // Arrays are allowed when their element type is.
+        String element = name.replaceFirst("^\\[+", "");
+        if (element.length() == 1)
+            return true;
+        if (element.startsWith("L") && element.endsWith(";"))
+            element = element.substring(1, element.length() - 1);
+        for (String prefix : allowed) {
+            if (element.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean supports(Object value) {
+        return value == null || value instanceof Serializable;
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] data, Class<T> type) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                if (!isAllowed(desc.getName()))
+                    throw new InvalidClassException(desc.getName(), "Class is not allowed.");
+                return super.resolveClass(desc);
+            }
+
+            @Override
+            protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+                throw new InvalidClassException("Proxy classes are not allowed.");
+            }
+        }) {
+            Object value = in.readObject();
+            if (value != null && !type.isInstance(value))
+                throw new IOException("Expected " + type.getName() + " but got " + value.getClass().getName() + ".");
+            return type.cast(value);
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Unknown class in serialized data.", ex);
+        }
+    }
+}
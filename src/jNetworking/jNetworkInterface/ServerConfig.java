@@ -0,0 +1,322 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import com.esotericsoftware.yamlbeans.YamlException;
+import com.esotericsoftware.yamlbeans.YamlReader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+
+/**
+ * Live server settings. Settings come from a flat YAML file that is watched
+ * for changes, or from the config admin command, and are applied to the
+ * running server without dropping connections:
+ * <pre>
+ * maxThreads: 100
+ * readTimeout: 10000
+ * logLevel: WARN
+ * logConsole: false
+ * rateLimit: 50
+ * rateBurst: 100
+ * pool.bulk: 4
+ * commands: /etc/jnetwork/commands.yaml
+ * </pre>
+ * The config and reload commands are only answered for loopback clients, or
+ * for clients that send the admin token in the token header. Everyone else
+ * gets the unknown command response.
+ */
+public class ServerConfig {
+    /**
+     * Total worker threads across the acceptor groups.
+     */
+    public static final String MAX_THREADS = "maxThreads";
+    /**
+     * Idle, read and write timeouts in MS.
+     */
+    public static final String IDLE_TIMEOUT = "idleTimeout";
+    public static final String READ_TIMEOUT = "readTimeout";
+    public static final String WRITE_TIMEOUT = "writeTimeout";
+    /**
+     * Level for every logger.
+     */
+    public static final String LOG_LEVEL = "logLevel";
+    /**
+     * Echo log entries to standard output, true or false.
+     */
+    public static final String LOG_CONSOLE = "logConsole";
+    /**
+     * Per-client requests per second and burst.
+     */
+    public static final String RATE_LIMIT = "rateLimit";
+    public static final String RATE_BURST = "rateBurst";
+    /**
+     * Prefix of the thread count for a priority class, e.g. pool.bulk.
+     */
+    public static final String POOL_PREFIX = "pool.";
+    /**
+     * File of extra command mappings. Setting it reloads the commands.
+     */
+    public static final String COMMANDS = "commands";
+    /**
+     * Request header holding the admin token.
+     */
+    public static final String HEADER_TOKEN = "token";
+    /**
+     * Time in MS between checks of the config file.
+     */
+    public static final long POLL = 1000;
+    /**
+     * Server being configured.
+     */
+    private final jNetworkInterfaceServer server;
+    /**
+     * Config file, null if there is none.
+     */
+    private String path;
+    /**
+     * Modification time of the config file when it was last loaded.
+     */
+    private long loaded;
+    /**
+     * Watcher thread, null when not watching.
+     */
+    private Thread watcher;
+    /**
+     * Token that lets remote clients use the admin commands, null for none.
+     */
+    private volatile byte[] adminToken;
+
+    /**
+     * Class constructor.
+     * @param server Server to configure
+     */
+    public ServerConfig(jNetworkInterfaceServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Load a config file now and reload it whenever it changes.
+     * @param path Config file
+     */
+    public synchronized void watch(String path) {
+        this.path = path;
+        load();
+        if (watcher == null) {
+            watcher = new Thread(this::work, "jNetworkInterfaceServer-config");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    /**
+     * Let remote clients that send a token use the admin commands.
+     * @param token Admin token, null to allow loopback clients only
+     */
+    public void setAdminToken(String token) {
+        adminToken = token == null || token.isEmpty() ? null : token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Determine if a client may use the admin commands.
+     * @param client Client address
+     * @param token Token the client sent, null for none
+     * @return True for loopback clients and clients with the admin token
+     */
+    public boolean isAuthorized(InetAddress client, String token) {
+        if (client != null && client.isLoopbackAddress())
+            return true;
+        byte[] expected = adminToken;
+        // Compared in constant time so the token cannot be guessed byte by byte.
+        return expected != null && token != null &&
+                MessageDigest.isEqual(expected, token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Stop watching the config file.
+     */
+    public synchronized void stop() {
+        if (watcher != null)
+            watcher.interrupt();
+        watcher = null;
+    }
+
+    /**
+     * @return Config file, null if there is none
+     */
+    public synchronized String getPath() {
+        return path;
+    }
+
+    /**
+     * Load the config file, if there is one, and reload the plugins and
+     * commands. Settings missing from the file keep their current values.
+     */
+    public synchronized void load() {
+        if (path != null) {
+            File file = new File(path);
+            loaded = file.lastModified();
+            try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                Object read = new YamlReader(in).read();
+                if (read instanceof Map) {
+                    for (Map.Entry<?, ?> entry : ((Map<?, ?>) read).entrySet()) {
+                        // Commands are reloaded once below.
+                        if (COMMANDS.equals(entry.getKey().toString()))
+                            server.setCommandsFile(String.valueOf(entry.getValue()));
+                        else
+                            apply(entry.getKey().toString(), String.valueOf(entry.getValue()));
+                    }
+                }
+            } catch (YamlException ex) {
+                server.getLogger().write(path + " could not be parsed.", ServerLogger.LOG_ERROR);
+            } catch (IOException ex) {
+                server.getLogger().write(path + " could not be read.", ServerLogger.LOG_WARN);
+            }
+        }
+        server.reloadPlugins();
+    }
+
+    /**
+     * Apply one setting to the running server.
+     * @param key Setting name
+     * @param value Setting value
+     * @return Null if it was applied, otherwise the reason it was not
+     */
+    public String apply(String key, String value) {
+        value = value.trim();
+        try {
+            switch (key) {
+                case MAX_THREADS:
+                    server.setMaxThreads(positive(value));
+                    break;
+                case IDLE_TIMEOUT:
+                    server.setIdleTimeout(Integer.parseInt(value));
+                    break;
+                case READ_TIMEOUT:
+                    server.setReadTimeout(Integer.parseInt(value));
+                    break;
+                case WRITE_TIMEOUT:
+                    server.setWriteTimeout(Integer.parseInt(value));
+                    break;
+                case LOG_LEVEL:
+                    String level = value.toUpperCase();
+                    if (!level.equals(ServerLogger.LOG_ERROR) && !level.equals(ServerLogger.LOG_WARN) &&
+                            !level.equals(ServerLogger.LOG_NOTICE) && !level.equals(ServerLogger.LOG_ALL))
+                        return "Unknown log level '" + value + "'.";
+                    ServerLogger.setGlobalLevel(level);
+                    break;
+                case LOG_CONSOLE:
+                    if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false"))
+                        return "Invalid value for '" + key + "'.";
+                    ServerLogger.setConsole(Boolean.parseBoolean(value));
+                    break;
+                case RATE_LIMIT:
+                    RateLimiter limiter = server.getRateLimiter();
+                    server.setRateLimit(Double.parseDouble(value), limiter.getBurst());
+                    break;
+                case RATE_BURST:
+                    limiter = server.getRateLimiter();
+                    server.setRateLimit(limiter.getRate(), positive(value));
+                    break;
+                case COMMANDS:
+                    server.setCommandsFile(value.isEmpty() ? null : value);
+                    server.reloadCommands();
+                    break;
+                default:
+                    String priority = key.startsWith(POOL_PREFIX) ? key.substring(POOL_PREFIX.length()) : null;
+                    if (!CommandRegistry.isPriority(priority))
+                        return "Unknown setting '" + key + "'.";
+                    server.setPriorityThreads(priority, positive(value));
+            }
+        } catch (NumberFormatException ex) {
+            return "Invalid value for '" + key + "'.";
+        }
+        server.getLogger().write("Setting '" + key + "' changed to '" + value + "'.", ServerLogger.LOG_NOTICE);
+        return null;
+    }
+
+    /**
+     * Format the current settings, one key=value per line.
+     * @return Settings
+     */
+    public String format() {
+        RateLimiter limiter = server.getRateLimiter();
+        StringBuilder out = new StringBuilder();
+        out.append(MAX_THREADS).append('=').append(server.getMaxThreads()).append('\n');
+        out.append(IDLE_TIMEOUT).append('=').append(server.getIdleTimeout()).append('\n');
+        out.append(READ_TIMEOUT).append('=').append(server.getReadTimeout()).append('\n');
+        out.append(WRITE_TIMEOUT).append('=').append(server.getWriteTimeout()).append('\n');
+        String level = ServerLogger.getGlobalLevel();
+        out.append(LOG_LEVEL).append('=').append(level == null ? ServerLogger.LOG_ALL : level).append('\n');
+        out.append(LOG_CONSOLE).append('=').append(ServerLogger.isConsole()).append('\n');
+        out.append(RATE_LIMIT).append('=').append(limiter.getRate()).append('\n');
+        out.append(RATE_BURST).append('=').append(limiter.getBurst()).append('\n');
+        for (String priority : new String[]{CommandRegistry.PRIORITY_CONTROL, CommandRegistry.PRIORITY_NORMAL,
+                CommandRegistry.PRIORITY_BULK})
+            out.append(POOL_PREFIX).append(priority).append('=').append(server.getPriorityThreads(priority))
+                    .append('\n');
+        String commands = server.getCommandsFile();
+        out.append(COMMANDS).append('=').append(commands == null ? "" : commands);
+        return out.toString();
+    }
+
+    /**
+     * Parse a positive whole number.
+     * @param value Value
+     * @return Number
+     */
+    private static int positive(String value) {
+        int n = Integer.parseInt(value);
+        if (n < 1)
+            throw new NumberFormatException();
+        return n;
+    }
+
+    /**
+     * Watcher thread loop. Reloads the file when its modification time changes.
+     */
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(POLL);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            synchronized (this) {
+                if (path != null && new File(path).lastModified() != loaded) {
+                    server.getLogger().write(path + " changed, reloading.", ServerLogger.LOG_NOTICE);
+                    load();
+                }
+            }
+        }
+    }
+}
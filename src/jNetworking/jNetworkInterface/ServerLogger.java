@@ -24,7 +24,7 @@
 
 package jNetworking.jNetworkInterface;
 
-import java.io.*;
+import java.io.File;
 import java.util.Date;
 
 /**
@@ -55,6 +55,26 @@ public class ServerLogger {
      * The log level for messages.
      */
     private String logLevel;
+    /**
+     * Appender for the log file.
+     */
+    private MappedLogAppender appender;
+    /**
+     * Level applied to every logger, null to use each logger's own.
+     */
+    private static volatile String globalLevel;
+    /**
+     * Echo entries to standard output as well as the log file.
+     */
+    private static volatile boolean console;
+    /**
+     * Second the cached timestamp was formatted for.
+     */
+    private static volatile long stampSecond = -1;
+    /**
+     * Formatted timestamp shared by every line logged within the same second.
+     */
+    private static volatile String stamp;
 
     /**
      * Constructor that takes a log path and level.
@@ -64,6 +84,7 @@ public class ServerLogger {
     public ServerLogger(String logFile, String logLevel) {
         this.logFile = logFile;
         this.logLevel = logLevel;
+        this.appender = MappedLogAppender.get(logFile);
     }
 
     /**
@@ -71,17 +92,53 @@ public class ServerLogger {
      * @param logFile Path to log file
      */
     public ServerLogger(String logFile) {
-        this.logFile = logFile;
-        logLevel = LOG_ALL;
+        this(logFile, LOG_ALL);
     }
 
     /**
-     * Default constructor.
+     * Default constructor. Logs to jnetworkserver.log in the temp directory.
      */
     public ServerLogger() {
-        File[] roots = File.listRoots();
-        logFile = roots[0].toString() + "jnetworkserver_log_" + System.currentTimeMillis();
-        logLevel = LOG_ALL;
+        this(new File(System.getProperty("java.io.tmpdir"), "jnetworkserver.log").getPath(), LOG_ALL);
+    }
+
+    /**
+     * Set the level of every logger at once, so it can be changed at runtime.
+     * @param level Log level, null to go back to each logger's own level
+     */
+    public static void setGlobalLevel(String level) {
+        globalLevel = level;
+    }
+
+    /**
+     * @return Level applied to every logger, null if none
+     */
+    public static String getGlobalLevel() {
+        return globalLevel;
+    }
+
+    /**
+     * Echo every logger's entries to standard output. Off by default, since
+     * printing blocks the logging thread on the console.
+     * @param enabled True to print entries
+     */
+    public static void setConsole(boolean enabled) {
+        console = enabled;
+    }
+
+    /**
+     * @return True if entries are printed to standard output
+     */
+    public static boolean isConsole() {
+        return console;
+    }
+
+    /**
+     * Get the appender for the log file, to configure rolling.
+     * @return Appender
+     */
+    public MappedLogAppender getAppender() {
+        return appender;
     }
 
     /**
@@ -90,31 +147,30 @@ public class ServerLogger {
      * @param level Level of message
      */
     public void write(String message, String level) {
-        // Get diagnostic data from the system.
-        Runtime runtime = Runtime.getRuntime();
-        Date currentTime = new Date();
-        // Memory data
-        long maxMemory = runtime.maxMemory();
-        long totalMemory = runtime.totalMemory();
-        long freeMemory = runtime.freeMemory();
         // Determine if we log this message.
-        if (level.equals(logLevel) || logLevel.equals(LOG_ALL)) {
-            // Build the log file
-            try {
-                String data = level + "\t" + currentTime + "\t" + message + "\t" +
-                        maxMemory + "\t" + totalMemory + "\t" + freeMemory;
+        String current = globalLevel != null ? globalLevel : logLevel;
+        if (level.equals(current) || current.equals(LOG_ALL)) {
+            // Build the log entry, memory figures come from the diagnostics sampler.
+            String data = level + "\t" + timestamp() + "\t" + message;
+            if (console)
                 System.out.println(data);
-                PrintWriter pw = new PrintWriter(new FileWriter(logFile, true));
-                // Log the data to the file
-                pw.println(data);
-                pw.flush();
-                pw.close();
-            } catch (UnsupportedEncodingException ex) {
-                // Do nothing, we just cant log it.
-                System.out.println("Could not write log to file. UTF-8 not supported by system.");
-            } catch (IOException ex) {
-                System.out.println("Could not write to log file.");
-            }
+            // Hand the entry to the appender, dropped if it is backed up
+            appender.append(data);
         }
     }
+
+    /**
+     * Get the current time formatted as a Date, reformatted once a second.
+     * @return Timestamp
+     */
+    private static String timestamp() {
+        long now = System.currentTimeMillis();
+        // The stamp is written before the second, so a matching second means a current stamp.
+        if (now / 1000 == stampSecond)
+            return stamp;
+        String formatted = new Date(now).toString();
+        stamp = formatted;
+        stampSecond = now / 1000;
+        return formatted;
+    }
 }
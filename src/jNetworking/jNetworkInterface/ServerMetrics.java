@@ -0,0 +1,302 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters, gauges and latency histograms for a server, formatted in
+ * the Prometheus text format. Recording only touches LongAdders, so request
+ * threads do not contend with each other or with the scraper.
+ */
+public class ServerMetrics {
+    /**
+     * Prefix for every metric name.
+     */
+    public static final String PREFIX = "jnetworkinterface_";
+    /**
+     * Command label for requests without a command.
+     */
+    public static final String COMMAND_NONE = "none";
+    /**
+     * Command label for commands that are not registered, so clients cannot
+     * create labels.
+     */
+    public static final String COMMAND_UNKNOWN = "unknown";
+    /**
+     * Latency bucket upper bounds in seconds.
+     */
+    private static final double[] BUCKETS =
+            {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    /**
+     * Highest status code tracked.
+     */
+    private static final int MAX_STATUS = 600;
+    /**
+     * Server the gauges are read from.
+     */
+    private final jNetworkInterfaceServer server;
+    /**
+     * Stats by command label.
+     */
+    private final Map<String, CommandStats> commands = new ConcurrentHashMap<>();
+    /**
+     * Requests currently being answered.
+     */
+    private final LongAdder inFlight = new LongAdder();
+    /**
+     * Connections accepted.
+     */
+    private final LongAdder connections = new LongAdder();
+    /**
+     * Request bytes received, data lines and bodies.
+     */
+    private final LongAdder bytesReceived = new LongAdder();
+    /**
+     * Response body bytes sent.
+     */
+    private final LongAdder bytesSent = new LongAdder();
+
+    /**
+     * Class constructor.
+     * @param server Server to read gauges from
+     */
+    public ServerMetrics(jNetworkInterfaceServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Count an accepted connection.
+     */
+    public void connectionAccepted() {
+        connections.increment();
+    }
+
+    /**
+     * Mark a request as being answered.
+     */
+    public void requestStarted() {
+        inFlight.increment();
+    }
+
+    /**
+     * Mark a request as no longer being answered, whether or not it finished.
+     */
+    public void requestEnded() {
+        inFlight.decrement();
+    }
+
+    /**
+     * Record an answered request.
+     * @param command Command label
+     * @param status Response status
+     * @param nanos Time from parsing the request to writing the response
+     * @param received Request bytes
+     * @param sent Response bytes
+     */
+    public void requestFinished(String command, int status, long nanos, long received, long sent) {
+        CommandStats stats = commands.get(command);
+        if (stats == null)
+            stats = commands.computeIfAbsent(command, name -> new CommandStats());
+        stats.record(status, nanos);
+        bytesReceived.add(received);
+        bytesSent.add(sent);
+    }
+
+    /**
+     * Format every metric in the Prometheus text format.
+     * @return Exposition text
+     */
+    public String format() {
+        StringBuilder out = new StringBuilder(4096);
+        // Sorted so scrapes are stable and diffable.
+        Map<String, CommandStats> sorted = new TreeMap<>(commands);
+        header(out, "requests_total", "counter", "Requests answered by command and status.");
+        for (Map.Entry<String, CommandStats> entry : sorted.entrySet()) {
+            CommandStats stats = entry.getValue();
+            for (int status = 0; status < MAX_STATUS; status++) {
+                LongAdder count = stats.statuses.get(status);
+                if (count != null)
+                    sample(out, "requests_total", "command", entry.getKey(), "status", String.valueOf(status),
+                            count.sum());
+            }
+        }
+        header(out, "rejections_total", "counter", "Requests refused before running, by reason.");
+        sample(out, "rejections_total", "reason", "capacity", null, null, countStatus(Response.STATUS_CAPACITY));
+        sample(out, "rejections_total", "reason", "rate_limited", null, null,
+                countStatus(Response.STATUS_RATE_LIMITED));
+        sample(out, "rejections_total", "reason", "paused", null, null, countStatus(Response.STATUS_PAUSED));
+        header(out, "request_duration_seconds", "histogram", "Time from parsing a request to writing its response.");
+        for (Map.Entry<String, CommandStats> entry : sorted.entrySet()) {
+            CommandStats stats = entry.getValue();
+            long cumulative = 0;
+            for (int i = 0; i <= BUCKETS.length; i++) {
+                cumulative += stats.buckets[i].sum();
+                sample(out, "request_duration_seconds_bucket", "command", entry.getKey(), "le",
+                        i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf", cumulative);
+            }
+            out.append(PREFIX).append("request_duration_seconds_sum{command=\"").append(escape(entry.getKey()))
+                    .append("\"} ").append(stats.nanos.sum() / 1e9).append('\n');
+            sample(out, "request_duration_seconds_count", "command", entry.getKey(), null, null, cumulative);
+        }
+        header(out, "requests_in_flight", "gauge", "Requests currently being answered.");
+        sample(out, "requests_in_flight", null, null, null, null, inFlight.sum());
+        header(out, "connections_active", "gauge", "Connections accepted and not yet closed.");
+        sample(out, "connections_active", null, null, null, null, server.getInFlight());
+        header(out, "queue_depth", "gauge", "Tasks and commands waiting for a thread.");
+        sample(out, "queue_depth", null, null, null, null, server.getQueueDepth());
+        header(out, "connections_total", "counter", "Connections accepted.");
+        sample(out, "connections_total", null, null, null, null, connections.sum());
+        header(out, "received_bytes_total", "counter", "Request data and body bytes received.");
+        sample(out, "received_bytes_total", null, null, null, null, bytesReceived.sum());
+        header(out, "sent_bytes_total", "counter", "Response body bytes sent.");
+        sample(out, "sent_bytes_total", null, null, null, null, bytesSent.sum());
+        PushBroker broker = server.getPushBroker();
+        header(out, "subscriptions", "gauge", "Topic subscriptions open.");
+        sample(out, "subscriptions", null, null, null, null, broker.getSubscriptionCount());
+        header(out, "push_published_total", "counter", "Messages published to at least one subscriber.");
+        sample(out, "push_published_total", null, null, null, null, broker.getPublished());
+        header(out, "push_dropped_total", "counter", "Pushed messages discarded for slow subscribers.");
+        sample(out, "push_dropped_total", null, null, null, null, broker.getDropped());
+        header(out, "push_disconnects_total", "counter", "Slow subscribers disconnected.");
+        sample(out, "push_disconnects_total", null, null, null, null, broker.getDisconnected());
+        BufferPool pool = server.getBufferPool();
+        header(out, "buffers_in_use", "gauge", "Pooled buffers handed out.");
+        sample(out, "buffers_in_use", null, null, null, null, pool.getInUse());
+        header(out, "buffers_allocated_total", "counter", "Pooled buffers allocated.");
+        sample(out, "buffers_allocated_total", null, null, null, null, pool.getAllocated());
+        return out.toString();
+    }
+
+    /**
+     * Sum the requests answered with a status across commands.
+     * @param status Status
+     * @return Count
+     */
+    private long countStatus(int status) {
+        long total = 0;
+        for (CommandStats stats : commands.values()) {
+            LongAdder count = stats.statuses.get(status);
+            if (count != null)
+                total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Append the HELP and TYPE lines for a metric.
+     * @param out Output
+     * @param name Name without the prefix
+     * @param type Metric type
+     * @param help Help text
+     */
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Append a sample line with up to two labels.
+     * @param out Output
+     * @param name Name without the prefix
+     * @param label1 First label name, null for none
+     * @param value1 First label value
+     * @param label2 Second label name, null for none
+     * @param value2 Second label value
+     * @param value Sample value
+     */
+    private static void sample(StringBuilder out, String name, String label1, String value1, String label2,
+                               String value2, long value) {
+        out.append(PREFIX).append(name);
+        if (label1 != null) {
+            out.append('{').append(label1).append("=\"").append(escape(value1)).append('"');
+            if (label2 != null)
+                out.append(',').append(label2).append("=\"").append(escape(value2)).append('"');
+            out.append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Escape a label value.
+     * @param value Value
+     * @return Escaped value
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Counters and latency histogram for one command.
+     */
+    private static class CommandStats {
+        /**
+         * Requests by status, created on first use.
+         */
+        private final AtomicReferenceArray<LongAdder> statuses = new AtomicReferenceArray<>(MAX_STATUS);
+        /**
+         * Requests by latency bucket, the last one is +Inf. Not cumulative.
+         */
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        /**
+         * Total latency in NS.
+         */
+        private final LongAdder nanos = new LongAdder();
+
+        /**
+         * Class constructor.
+         */
+        CommandStats() {
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        /**
+         * Record a request.
+         * @param status Response status
+         * @param nanos Latency in NS
+         */
+        void record(int status, long nanos) {
+            if (status >= 0 && status < MAX_STATUS) {
+                LongAdder count = statuses.get(status);
+                if (count == null) {
+                    statuses.compareAndSet(status, null, new LongAdder());
+                    count = statuses.get(status);
+                }
+                count.increment();
+            }
+            double seconds = nanos / 1e9;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && seconds > BUCKETS[bucket])
+                bucket++;
+            buckets[bucket].increment();
+            this.nanos.add(nanos);
+        }
+    }
+}
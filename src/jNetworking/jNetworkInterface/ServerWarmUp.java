@@ -0,0 +1,200 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Startup phase run before the server starts listening. Every registered
+ * command class is loaded and instantiated once, then the configured warm-up
+ * requests are sent over a private loopback connection and handled by a normal
+ * server task, so parsing, dispatch and the command paths are loaded and
+ * compiled before the first client arrives.
+ * <p>
+ * For faster boots on JDK 13 and later, record a class-data archive with a
+ * training run of this class and start the server with it:
+ * <pre>
+ * java -XX:ArchiveClassesAtExit=jni.jsa -cp ... jNetworking.jNetworkInterface.ServerWarmUp 200 ping version
+ * java -XX:SharedArchiveFile=jni.jsa -cp ... YourServer
+ * </pre>
+ */
+public class ServerWarmUp {
+    /**
+     * Time in MS the warm-up client waits for each response.
+     */
+    public static final long REQUEST_DEADLINE = 5000;
+    /**
+     * Server being warmed up.
+     */
+    private final jNetworkInterfaceServer server;
+    /**
+     * Commands sent each round.
+     */
+    private List<String> commands = new ArrayList<>();
+    /**
+     * Rounds of warm-up requests, 0 to only load the commands.
+     */
+    private int rounds;
+
+    /**
+     * Class constructor.
+     * @param server Server to warm up
+     */
+    public ServerWarmUp(jNetworkInterfaceServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Set the synthetic requests sent at startup. Commands should be free of
+     * side effects; each is sent once per round without data.
+     * @param rounds Rounds of requests, 0 to only load the commands
+     * @param commands Commands sent each round
+     */
+    public synchronized void setRequests(int rounds, String... commands) {
+        this.rounds = Math.max(0, rounds);
+        this.commands = new ArrayList<>(Arrays.asList(commands));
+    }
+
+    /**
+     * @return Rounds of warm-up requests
+     */
+    public synchronized int getRounds() {
+        return rounds;
+    }
+
+    /**
+     * @return Commands sent each round
+     */
+    public synchronized List<String> getCommands() {
+        return new ArrayList<>(commands);
+    }
+
+    /**
+     * Load the commands and send the warm-up requests.
+     * @return Time taken in MS
+     */
+    public long run() {
+        long started = System.nanoTime();
+        int loaded = resolve();
+        int sent = sendRequests();
+        long elapsed = (System.nanoTime() - started) / 1000000;
+        server.getLogger().write("Warm-up loaded " + loaded + " command(s) and sent " + sent + " request(s) in " +
+                elapsed + " ms.", ServerLogger.LOG_NOTICE);
+        return elapsed;
+    }
+
+    /**
+     * Load, initialize and instantiate every registered command class.
+     * @return Commands loaded
+     */
+    private int resolve() {
+        int loaded = 0;
+        for (CommandRegistry.Entry entry : server.getCommandRegistry().getEntries()) {
+            if (entry.isBuiltIn())
+                continue;
+            try {
+                entry.newInstance();
+                loaded++;
+            } catch (ReflectiveOperationException | LinkageError ex) {
+                server.getLogger().write("Command '" + entry.getName() + "' could not be loaded: " + ex,
+                        ServerLogger.LOG_WARN);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Send the warm-up requests over a loopback connection that only this
+     * method accepts, and handle them on the calling thread.
+     * @return Requests sent
+     */
+    private int sendRequests() {
+        List<String> sending = getCommands();
+        int count = getRounds();
+        if (count == 0 || sending.isEmpty())
+            return 0;
+        int[] sent = new int[1];
+        try (ServerSocket loopback = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread client = new Thread(() -> {
+                jNetworkInterface connection = new jNetworkInterface(loopback.getInetAddress().getHostAddress(),
+                        loopback.getLocalPort(), false);
+                connection.setKeepAlive(true);
+                try {
+                    for (int i = 0; i < count; i++) {
+                        for (String command : sending) {
+                            connection.sendRequest(command, null, REQUEST_DEADLINE);
+                            sent[0]++;
+                        }
+                    }
+                } catch (RuntimeException ex) {
+                    server.getLogger().write("Warm-up request failed: " + ex.getMessage(), ServerLogger.LOG_WARN);
+                } finally {
+                    connection.setKeepAlive(false);
+                }
+            }, "jNetworkInterfaceServer-warmup");
+            client.start();
+            loopback.setSoTimeout((int) REQUEST_DEADLINE);
+            Socket socket = loopback.accept();
+            new jNetworkInterfaceServerTask(socket, server).run();
+            client.join();
+        } catch (IOException ex) {
+            server.getLogger().write("Warm-up connection failed: " + ex.getMessage(), ServerLogger.LOG_WARN);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return sent[0];
+    }
+
+    /**
+     * Training run for a class-data archive: start a server on a free port,
+     * warm it up and exit.
+     * @param args [rounds] [command...]
+     */
+    public static void main(String[] args) {
+        jNetworkInterfaceServer server = new jNetworkInterfaceServer(0, 8, false);
+        server.getWarmUp().setRequests(args.length > 0 ? Integer.parseInt(args[0]) : 100,
+                args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) : new String[]{"ping", "version"});
+        Thread thread = new Thread(server, "jNetworkInterfaceServer");
+        thread.start();
+        while (server.getStartupTime() < 0 && thread.isAlive()) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+        System.out.println("Started in " + server.getStartupTime() + " ms, JVM up " +
+                ManagementFactory.getRuntimeMXBean().getUptime() + " ms.");
+        server.shutdown(0);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timed piece of work in a trace. Spans are handed to the exporter when
+ * they end. Create them through Tracing so nothing is timed while tracing is
+ * off.
+ */
+public class Span {
+    /**
+     * Span name.
+     */
+    private final String name;
+    /**
+     * Context holding this span's ID.
+     */
+    private final TraceContext context;
+    /**
+     * Parent span ID, null for a root span.
+     */
+    private final String parentId;
+    /**
+     * Start time in microseconds since the epoch.
+     */
+    private final long startMicros;
+    /**
+     * Start time from System.nanoTime().
+     */
+    private final long startNanos;
+    /**
+     * Duration in NS, -1 until the span ends.
+     */
+    private volatile long durationNanos = -1;
+    /**
+     * Attributes in the order they were set.
+     */
+    private final Map<String, String> attributes = new LinkedHashMap<>();
+
+    /**
+     * Class constructor for a span that started at an earlier System.nanoTime().
+     * @param name Span name
+     * @param parent Parent context, null to start a new trace
+     * @param startNanos Start time from System.nanoTime()
+     */
+    Span(String name, TraceContext parent, long startNanos) {
+        this.name = name;
+        this.context = parent == null ? TraceContext.newRoot() : parent.newChild();
+        this.parentId = parent == null ? null : parent.getSpanId();
+        this.startNanos = startNanos;
+        this.startMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()) -
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Set an attribute.
+     * @param key Key
+     * @param value Value, formatted with toString()
+     * @return This span
+     */
+    public synchronized Span setAttribute(String key, Object value) {
+        attributes.put(key, String.valueOf(value));
+        return this;
+    }
+
+    /**
+     * End the span now and export it.
+     */
+    public void end() {
+        end(System.nanoTime());
+    }
+
+    /**
+     * End the span at a given time and export it. Only the first call counts.
+     * @param endNanos End time from System.nanoTime()
+     */
+    public void end(long endNanos) {
+        synchronized (this) {
+            if (durationNanos >= 0)
+                return;
+            durationNanos = Math.max(0, endNanos - startNanos);
+        }
+        Tracing.export(this);
+    }
+
+    /**
+     * @return Span name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the context to propagate to work done under this span.
+     * @return Context
+     */
+    public TraceContext getContext() {
+        return context;
+    }
+
+    /**
+     * @return Parent span ID, null for a root span
+     */
+    public String getParentId() {
+        return parentId;
+    }
+
+    /**
+     * @return Start time in microseconds since the epoch
+     */
+    public long getStartMicros() {
+        return startMicros;
+    }
+
+    /**
+     * @return Duration in NS, -1 if the span has not ended
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * @return Copy of the attributes
+     */
+    public synchronized Map<String, String> getAttributes() {
+        return new LinkedHashMap<>(attributes);
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + context + (parentId == null ? "" : " parent=" + parentId) + " " +
+                TimeUnit.NANOSECONDS.toMicros(durationNanos) + "us " + getAttributes();
+    }
+}
@@ -0,0 +1,682 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Independent request/response streams over one connection, so a slow command
+ * does not hold up the others. A client switches a connection over with the
+ * mux request, announcing its receive window, and the server answers 200 with
+ * its own:
+ * <pre>
+ * mux window=65536 envelope=1
+ * END COMMAND
+ * </pre>
+ * From then on both sides send frames: a 4 byte stream id, a type byte, a
+ * flags byte, a 4 byte payload length and the payload. Client stream ids are
+ * odd and increase in the order the streams' first frames are sent. A stream
+ * carries one request in the normal request format and one response in the
+ * envelope format, each ended by the END flag.
+ * <p>
+ * Every stream has a flow control window in each direction. A sender may only
+ * have as many unacknowledged DATA bytes in flight as the receiver's window,
+ * and the receiver hands credit back with WINDOW frames as the bytes are read,
+ * so one stream that is not being read cannot fill the connection's buffers.
+ * A window outside 1 to MAX_WINDOW refuses the switch.
+ */
+class StreamMux {
+    /**
+     * Request that switches a connection to streams.
+     */
+    static final String UPGRADE = "mux";
+    /**
+     * Header holding the initial receive window of each stream.
+     */
+    static final String HEADER_WINDOW = "window";
+    /**
+     * Receive window of each stream in bytes.
+     */
+    static final int WINDOW = 65536;
+    /**
+     * Largest receive window a peer may announce.
+     */
+    static final int MAX_WINDOW = 16 * 1024 * 1024;
+    /**
+     * Largest frame payload.
+     */
+    static final int MAX_FRAME = 16384;
+    /**
+     * Streams the server keeps open per connection. Streams over the limit
+     * are reset.
+     */
+    static final int MAX_STREAMS = 100;
+    /**
+     * Frame header size.
+     */
+    private static final int HEADER_SIZE = 10;
+    /**
+     * Frame types: stream bytes, window credit and stream cancellation.
+     */
+    private static final int TYPE_DATA = 0;
+    private static final int TYPE_WINDOW = 1;
+    private static final int TYPE_RESET = 2;
+    /**
+     * Flag on the last DATA frame of a stream.
+     */
+    private static final int FLAG_END = 1;
+    /**
+     * Frame input, read by one thread.
+     */
+    private final InputStream in;
+    /**
+     * Frame output, shared under the write lock.
+     */
+    private final OutputStream out;
+    /**
+     * True on the side that opens streams.
+     */
+    private final boolean client;
+    /**
+     * Peer's receive window for new streams.
+     */
+    private final int peerWindow;
+    /**
+     * Open streams by id.
+     */
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    /**
+     * Guards the output and the frame header buffer.
+     */
+    private final Object writeLock = new Object();
+    /**
+     * Frame header being written, under the write lock.
+     */
+    private final byte[] writeHeader = new byte[HEADER_SIZE];
+    /**
+     * Frame header being read, reader thread only.
+     */
+    private final byte[] readHeader = new byte[HEADER_SIZE];
+    /**
+     * Next stream id the client opens, under the write lock.
+     */
+    private int nextId = 1;
+    /**
+     * Highest stream id the peer opened, reader thread only.
+     */
+    private int lastPeerId;
+    /**
+     * Set once the connection is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Class constructor for a connection that has been switched to streams.
+     * @param in Connection input
+     * @param out Connection output
+     * @param client True on the side that opens streams
+     * @param peerWindow Peer's receive window for each stream
+     */
+    StreamMux(InputStream in, OutputStream out, boolean client, int peerWindow) {
+        this.in = in;
+        this.out = out;
+        this.client = client;
+        this.peerWindow = peerWindow;
+    }
+
+    /**
+     * Parse an announced receive window.
+     * @param value Header value, null for the default window
+     * @return Window in bytes, or -1 if it is malformed or out of range
+     */
+    static int parseWindow(String value) {
+        if (value == null)
+            return WINDOW;
+        try {
+            int window = Integer.parseInt(value.trim());
+            return window >= 1 && window <= MAX_WINDOW ? window : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Open a stream. Client side only. The stream gets its id when its first
+     * frame is sent, so ids reach the peer in order.
+     * @return Stream
+     * @throws IOException If the connection is closed
+     */
+    Stream open() throws IOException {
+        if (closed)
+            throw new IOException("Connection closed.");
+        return new Stream(0);
+    }
+
+    /**
+     * Read one frame and pass it to its stream. Only one thread may read.
+     * @return Stream the peer opened with this frame, or null
+     * @throws IOException If the connection fails or the peer breaks the protocol
+     */
+    Stream readFrame() throws IOException {
+        if (!readFully(readHeader, HEADER_SIZE, true)) {
+            close();
+            return null;
+        }
+        int id = readInt(readHeader, 0);
+        int type = readHeader[4];
+        boolean end = (readHeader[5] & FLAG_END) != 0;
+        int length = readInt(readHeader, 6);
+        if (length < 0 || length > MAX_FRAME)
+            throw new IOException("Invalid frame length " + length + ".");
+        byte[] payload = new byte[length];
+        readFully(payload, length, false);
+        Stream stream = streams.get(id);
+        Stream opened = null;
+        if (stream == null) {
+            // Frames for finished or reset streams can still be on the way.
+            if (client || type != TYPE_DATA || id <= lastPeerId || id % 2 == 0)
+                return null;
+            lastPeerId = id;
+            stream = new Stream(id);
+            if (streams.size() >= MAX_STREAMS) {
+                stream.reset();
+                return null;
+            }
+            streams.put(id, stream);
+            opened = stream;
+        }
+        switch (type) {
+            case TYPE_DATA:
+                stream.received(payload, end);
+                break;
+            case TYPE_WINDOW:
+                if (length == 4)
+                    stream.credit(readInt(payload, 0));
+                break;
+            case TYPE_RESET:
+                stream.closed();
+                break;
+            default:
+                // Unknown frame types are skipped.
+        }
+        return opened;
+    }
+
+    /**
+     * Get the number of open streams.
+     * @return Streams
+     */
+    int getStreamCount() {
+        return streams.size();
+    }
+
+    /**
+     * @return True once the connection is closed
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Mark the connection closed and end every open stream. Does not close
+     * the underlying streams.
+     */
+    void close() {
+        // Once the lock is free no frame is half written.
+        synchronized (writeLock) {
+            closed = true;
+        }
+        // No stream can be added once closed is set.
+        for (Stream stream : new ArrayList<>(streams.values()))
+            stream.closed();
+        streams.clear();
+    }
+
+    /**
+     * Write a frame, giving a new client stream its id first.
+     * @param stream Stream
+     * @param type Frame type
+     * @param flags Frame flags
+     * @param b Payload buffer
+     * @param off Payload offset
+     * @param len Payload length
+     * @throws IOException If the connection is closed or the write fails
+     */
+    private void writeFrame(Stream stream, int type, int flags, byte[] b, int off, int len) throws IOException {
+        synchronized (writeLock) {
+            if (closed)
+                throw new IOException("Connection closed.");
+            if (stream.id == 0) {
+                stream.id = nextId;
+                nextId += 2;
+                streams.put(stream.id, stream);
+            }
+            writeInt(writeHeader, 0, stream.id);
+            writeHeader[4] = (byte) type;
+            writeHeader[5] = (byte) flags;
+            writeInt(writeHeader, 6, len);
+            try {
+                out.write(writeHeader, 0, HEADER_SIZE);
+                if (len > 0)
+                    out.write(b, off, len);
+                out.flush();
+            } catch (IOException ex) {
+                closed = true;
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Read an exact number of bytes.
+     * @param b Buffer
+     * @param length Bytes to read
+     * @param atBoundary True if the stream may cleanly end before the first byte
+     * @return False if the stream ended at the boundary
+     * @throws IOException If the stream ends part way
+     */
+    private boolean readFully(byte[] b, int length, boolean atBoundary) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(b, read, length - read);
+            if (n < 0) {
+                if (atBoundary && read == 0)
+                    return false;
+                throw new EOFException("Connection ended in a frame.");
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    /**
+     * Read a big endian int.
+     * @param b Buffer
+     * @param off Offset
+     * @return Value
+     */
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | b[off + 3] & 0xFF;
+    }
+
+    /**
+     * Write a big endian int.
+     * @param b Buffer
+     * @param off Offset
+     * @param value Value
+     */
+    private static void writeInt(byte[] b, int off, int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    /**
+     * One logical stream. Its input and output each belong to one thread at a
+     * time, like a socket's.
+     */
+    class Stream {
+        /**
+         * Stream id, 0 until a client stream sends its first frame.
+         */
+        private volatile int id;
+        /**
+         * Received payloads not yet read.
+         */
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        /**
+         * Read position in the first chunk.
+         */
+        private int chunkPos;
+        /**
+         * Bytes the peer may still send before it needs more credit.
+         */
+        private int receiveWindow = WINDOW;
+        /**
+         * Bytes read since credit was last handed back.
+         */
+        private int unacknowledged;
+        /**
+         * Bytes this side may still send.
+         */
+        private int sendWindow = peerWindow;
+        /**
+         * Set when the peer ended its side of the stream.
+         */
+        private boolean remoteEnded;
+        /**
+         * Set when this side ended its side of the stream.
+         */
+        private boolean localEnded;
+        /**
+         * Set when the stream was reset by either side or the connection closed.
+         */
+        private volatile boolean reset;
+        /**
+         * Longest wait for input in MS, 0 to wait forever.
+         */
+        private volatile int readTimeout;
+        /**
+         * Stream input.
+         */
+        private final InputStream input = new StreamInput();
+        /**
+         * Stream output.
+         */
+        private final OutputStream output = new StreamOutput();
+
+        /**
+         * Class constructor.
+         * @param id Stream id
+         */
+        private Stream(int id) {
+            this.id = id;
+        }
+
+        /**
+         * @return Stream id
+         */
+        int getId() {
+            return id;
+        }
+
+        /**
+         * Get the stream input. Reading hands credit back to the peer.
+         * @return Input, ends when the peer ends the stream
+         */
+        InputStream getInputStream() {
+            return input;
+        }
+
+        /**
+         * Get the stream output. Writes wait for credit from the peer; close()
+         * ends this side of the stream.
+         * @return Output
+         */
+        OutputStream getOutputStream() {
+            return output;
+        }
+
+        /**
+         * Limit how long a read waits for input, like a socket timeout.
+         * @param timeout Timeout in MS, 0 to wait forever
+         */
+        void setReadTimeout(int timeout) {
+            readTimeout = Math.max(0, timeout);
+        }
+
+        /**
+         * @return True if the stream was reset or its connection closed
+         */
+        boolean isReset() {
+            return reset;
+        }
+
+        /**
+         * Cancel the stream and tell the peer. Bytes already received can
+         * still be read.
+         */
+        void reset() {
+            synchronized (this) {
+                if (reset)
+                    return;
+                reset = true;
+                notifyAll();
+            }
+            // A stream that never sent a frame is unknown to the peer.
+            if (id == 0)
+                return;
+            streams.remove(id, this);
+            try {
+                writeFrame(this, TYPE_RESET, 0, null, 0, 0);
+            } catch (IOException ex) {
+                // The connection is gone, so the peer has no stream either.
+            }
+        }
+
+        /**
+         * End the stream without telling the peer, because the peer reset it
+         * or the connection closed.
+         */
+        private void closed() {
+            synchronized (this) {
+                reset = true;
+                notifyAll();
+            }
+            streams.remove(id, this);
+        }
+
+        /**
+         * Take a DATA payload from the reader thread.
+         * @param payload Bytes
+         * @param end True if the peer ended the stream
+         */
+        private void received(byte[] payload, boolean end) {
+            boolean overrun;
+            synchronized (this) {
+                if (reset || remoteEnded)
+                    return;
+                receiveWindow -= payload.length;
+                overrun = receiveWindow < 0;
+                if (!overrun) {
+                    if (payload.length > 0)
+                        chunks.add(payload);
+                    remoteEnded = end;
+                    notifyAll();
+                }
+            }
+            // A peer that ignores the window gets its stream reset.
+            if (overrun)
+                reset();
+            else if (end)
+                finishIfDone();
+        }
+
+        /**
+         * Add send credit from a WINDOW frame.
+         * @param bytes Credit
+         */
+        private synchronized void credit(int bytes) {
+            if (bytes > 0 && sendWindow + bytes > 0) {
+                sendWindow += bytes;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Forget the stream once both sides have ended it.
+         */
+        private void finishIfDone() {
+            boolean done;
+            synchronized (this) {
+                done = localEnded && remoteEnded;
+            }
+            if (done)
+                streams.remove(id, this);
+        }
+
+        /**
+         * Reads received bytes and hands credit back in half window steps.
+         */
+        private class StreamInput extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+                int n;
+                int credit = 0;
+                synchronized (Stream.this) {
+                    long deadline = readTimeout == 0 ? 0 : System.nanoTime() + readTimeout * 1000000L;
+                    while (chunks.isEmpty() && !remoteEnded && !reset) {
+                        try {
+                            if (deadline == 0) {
+                                Stream.this.wait();
+                                continue;
+                            }
+                            long left = deadline - System.nanoTime();
+                            if (left <= 0)
+                                throw new SocketTimeoutException("Read timed out.");
+                            TimeUnit.NANOSECONDS.timedWait(Stream.this, left);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted.");
+                        }
+                    }
+                    if (chunks.isEmpty()) {
+                        if (remoteEnded)
+                            return -1;
+                        throw new IOException("Stream reset.");
+                    }
+                    byte[] chunk = chunks.peek();
+                    n = Math.min(len, chunk.length - chunkPos);
+                    System.arraycopy(chunk, chunkPos, b, off, n);
+                    chunkPos += n;
+                    if (chunkPos == chunk.length) {
+                        chunks.poll();
+                        chunkPos = 0;
+                    }
+                    unacknowledged += n;
+                    if (unacknowledged >= WINDOW / 2 && !remoteEnded && !reset) {
+                        credit = unacknowledged;
+                        receiveWindow += credit;
+                        unacknowledged = 0;
+                    }
+                }
+                if (credit > 0) {
+                    byte[] payload = new byte[4];
+                    writeInt(payload, 0, credit);
+                    writeFrame(Stream.this, TYPE_WINDOW, 0, payload, 0, 4);
+                }
+                return n;
+            }
+
+            @Override
+            public int available() {
+                synchronized (Stream.this) {
+                    return chunks.isEmpty() ? 0 : chunks.peek().length - chunkPos;
+                }
+            }
+        }
+
+        /**
+         * Buffers writes into frames of up to MAX_FRAME bytes.
+         */
+        private class StreamOutput extends OutputStream {
+            /**
+             * Bytes not yet sent.
+             */
+            private final byte[] buf = new byte[MAX_FRAME];
+            /**
+             * Bytes buffered.
+             */
+            private int count;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (count == buf.length)
+                    send(false);
+                buf[count++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (count == buf.length)
+                        send(false);
+                    int n = Math.min(len, buf.length - count);
+                    System.arraycopy(b, off, buf, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (count > 0)
+                    send(false);
+            }
+
+            @Override
+            public void close() throws IOException {
+                synchronized (Stream.this) {
+                    if (localEnded)
+                        return;
+                }
+                send(true);
+                synchronized (Stream.this) {
+                    localEnded = true;
+                }
+                finishIfDone();
+            }
+
+            /**
+             * Send the buffered bytes as the window allows.
+             * @param end End the stream with the last frame
+             * @throws IOException If the stream is reset or the connection fails
+             */
+            private void send(boolean end) throws IOException {
+                int sent = 0;
+                do {
+                    int n;
+                    synchronized (Stream.this) {
+                        while (sendWindow <= 0 && sent < count && !reset) {
+                            try {
+                                Stream.this.wait();
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                                throw new IOException("Interrupted.");
+                            }
+                        }
+                        if (reset)
+                            throw new IOException("Stream reset.");
+                        n = Math.min(count - sent, sendWindow);
+                        sendWindow -= n;
+                    }
+                    boolean last = end && sent + n == count;
+                    writeFrame(Stream.this, TYPE_DATA, last ? FLAG_END : 0, buf, sent, n);
+                    sent += n;
+                } while (sent < count);
+                count = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A client's subscription to server topics. Messages pushed by the server are
+ * read on a background thread and handed to the listener in order.
+ */
+public class Subscription implements Closeable {
+    /**
+     * Receives pushed messages. Called on the subscription's reader thread,
+     * so a slow listener makes the server apply its slow subscriber policy.
+     */
+    public interface Listener {
+        /**
+         * Called for each pushed message.
+         * @param topic Topic the message was published to
+         * @param message Message
+         */
+        void onMessage(String topic, Response message);
+
+        /**
+         * Called once when the subscription ends.
+         * @param reason Reason, null if it was closed by the client
+         */
+        default void onClose(String reason) {
+        }
+    }
+
+    /**
+     * Missed heartbeats before the server is considered gone.
+     */
+    public static final int MISSED_HEARTBEATS = 3;
+    /**
+     * Subscribed topics.
+     */
+    private final List<String> topics;
+    /**
+     * Message listener.
+     */
+    private final Listener listener;
+    /**
+     * Dedicated connection, null for a stream subscription.
+     */
+    private final Socket socket;
+    /**
+     * Stream on a multiplexed connection, null for a dedicated connection.
+     */
+    private final StreamMux.Stream stream;
+    /**
+     * Pushed messages.
+     */
+    private final InputStream in;
+    /**
+     * Messages the server discarded because this subscription fell behind.
+     */
+    private volatile long dropped;
+    /**
+     * Set once the subscription is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Class constructor for a subscription on its own connection.
+     * @param topics Topics
+     * @param listener Listener
+     * @param socket Connection
+     * @param in Connection input, released when the subscription ends
+     */
+    Subscription(List<String> topics, Listener listener, Socket socket, PooledInputStream in) {
+        this.topics = Collections.unmodifiableList(topics);
+        this.listener = listener;
+        this.socket = socket;
+        this.stream = null;
+        this.in = in;
+    }
+
+    /**
+     * Class constructor for a subscription on a stream.
+     * @param topics Topics
+     * @param listener Listener
+     * @param stream Stream
+     */
+    Subscription(List<String> topics, Listener listener, StreamMux.Stream stream) {
+        this.topics = Collections.unmodifiableList(topics);
+        this.listener = listener;
+        this.socket = null;
+        this.stream = stream;
+        this.in = stream.getInputStream();
+    }
+
+    /**
+     * Start the reader thread.
+     * @return This subscription
+     */
+    Subscription start() {
+        Thread reader = new Thread(this::read, "jNetworkInterface-subscription-" + String.join(",", topics));
+        reader.setDaemon(true);
+        reader.start();
+        return this;
+    }
+
+    /**
+     * @return Subscribed topics
+     */
+    public List<String> getTopics() {
+        return topics;
+    }
+
+    /**
+     * Get the number of messages the server discarded because this
+     * subscription fell behind. Conflated messages are not counted.
+     * @return Dropped messages
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return True once the subscription has ended
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * End the subscription.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (stream != null) {
+            stream.reset();
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Already closed.
+        }
+    }
+
+    /**
+     * Reader thread loop.
+     */
+    private void read() {
+        String reason = "Server ended the subscription.";
+        try {
+            int timeout = (int) PushBroker.HEARTBEAT * MISSED_HEARTBEATS;
+            if (socket != null)
+                socket.setSoTimeout(timeout);
+            else
+                stream.setReadTimeout(timeout);
+            Response message;
+            while ((message = Response.read(in)) != null) {
+                String count = message.getHeader(PushBroker.HEADER_DROPPED);
+                if (count != null)
+                    dropped += Long.parseLong(count);
+                String topic = message.getHeader(PushBroker.HEADER_TOPIC);
+                // Anything without a topic is a heartbeat.
+                if (topic != null)
+                    listener.onMessage(topic, message);
+            }
+        } catch (SocketTimeoutException ex) {
+            reason = "No heartbeat from the server.";
+        } catch (IOException | NumberFormatException ex) {
+            reason = "Connection failed.";
+        } finally {
+            boolean requested = closed;
+            close();
+            if (in instanceof PooledInputStream)
+                ((PooledInputStream) in).release();
+            listener.onClose(requested ? null : reason);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Trace and span IDs carried with a request. Sent on the request line as
+ * trace=00-&lt;trace id&gt;-&lt;span id&gt;-01, the W3C traceparent format, so the
+ * value can be forwarded as is to HTTP services.
+ */
+public class TraceContext {
+    /**
+     * Request line header holding the context.
+     */
+    public static final String HEADER = "trace";
+    /**
+     * Context of the work running on each thread.
+     */
+    private static final ThreadLocal<TraceContext> CURRENT = new ThreadLocal<>();
+    /**
+     * 32 hex digit trace ID shared by every span of a request.
+     */
+    private final String traceId;
+    /**
+     * 16 hex digit span ID of the current hop.
+     */
+    private final String spanId;
+
+    /**
+     * Class constructor.
+     * @param traceId 32 hex digit trace ID
+     * @param spanId 16 hex digit span ID
+     */
+    public TraceContext(String traceId, String spanId) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+    }
+
+    /**
+     * Start a new trace.
+     * @return Context with a new trace ID
+     */
+    public static TraceContext newRoot() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new TraceContext(hex(random.nextLong()) + hex(random.nextLong()), newSpanId());
+    }
+
+    /**
+     * Create a context for a span under this one.
+     * @return Context with the same trace ID and a new span ID
+     */
+    public TraceContext newChild() {
+        return new TraceContext(traceId, newSpanId());
+    }
+
+    /**
+     * Parse a context sent in the trace header.
+     * @param value Header value, may be null
+     * @return Context or null if the value is missing or malformed
+     */
+    public static TraceContext parse(String value) {
+        if (value == null || value.length() != 55 || value.charAt(2) != '-' || value.charAt(35) != '-' ||
+                value.charAt(52) != '-')
+            return null;
+        String traceId = value.substring(3, 35);
+        String spanId = value.substring(36, 52);
+        if (!isHex(traceId) || !isHex(spanId))
+            return null;
+        return new TraceContext(traceId, spanId);
+    }
+
+    /**
+     * Get the context of the work running on this thread.
+     * @return Context or null if there is none
+     */
+    public static TraceContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Set the context of the work running on this thread.
+     * @param context Context, null to clear it
+     * @return Context it replaced, to restore afterwards
+     */
+    public static TraceContext setCurrent(TraceContext context) {
+        TraceContext previous = CURRENT.get();
+        if (context == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(context);
+        return previous;
+    }
+
+    /**
+     * @return 32 hex digit trace ID
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * @return 16 hex digit span ID
+     */
+    public String getSpanId() {
+        return spanId;
+    }
+
+    @Override
+    public String toString() {
+        return "00-" + traceId + "-" + spanId + "-01";
+    }
+
+    /**
+     * Generate a span ID.
+     * @return 16 hex digits
+     */
+    private static String newSpanId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return hex(id);
+    }
+
+    /**
+     * Format a long as 16 zero padded hex digits.
+     * @param value Value
+     * @return Hex digits
+     */
+    private static String hex(long value) {
+        String digits = Long.toHexString(value);
+        return "0000000000000000".substring(digits.length()) + digits;
+    }
+
+    /**
+     * Determine if a string is lower case hex and not all zeros.
+     * @param s String
+     * @return True if valid
+     */
+    private static boolean isHex(String s) {
+        boolean nonZero = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+                return false;
+            nonZero |= c != '0';
+        }
+        return nonZero;
+    }
+}
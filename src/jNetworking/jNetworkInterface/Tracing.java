@@ -0,0 +1,107 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+/**
+ * Process wide tracing switch. Spans are only created while an exporter is
+ * set; trace contexts received from callers are still passed on without one.
+ */
+public class Tracing {
+    /**
+     * Exporter, null while tracing is off.
+     */
+    private static volatile SpanExporter exporter;
+
+    /**
+     * Set the exporter spans are sent to. The previous exporter is not closed.
+     * @param spanExporter Exporter, null to stop tracing
+     */
+    public static void setExporter(SpanExporter spanExporter) {
+        exporter = spanExporter;
+    }
+
+    /**
+     * @return Exporter or null if tracing is off
+     */
+    public static SpanExporter getExporter() {
+        return exporter;
+    }
+
+    /**
+     * @return True if spans are being recorded
+     */
+    public static boolean isEnabled() {
+        return exporter != null;
+    }
+
+    /**
+     * Start a span now.
+     * @param name Span name
+     * @param parent Parent context, null to start a new trace
+     * @return Span or null if tracing is off
+     */
+    public static Span start(String name, TraceContext parent) {
+        return start(name, parent, System.nanoTime());
+    }
+
+    /**
+     * Start a span at an earlier time.
+     * @param name Span name
+     * @param parent Parent context, null to start a new trace
+     * @param startNanos Start time from System.nanoTime()
+     * @return Span or null if tracing is off
+     */
+    public static Span start(String name, TraceContext parent, long startNanos) {
+        return exporter == null ? null : new Span(name, parent, startNanos);
+    }
+
+    /**
+     * Record a span that has already finished.
+     * @param name Span name
+     * @param parent Parent context
+     * @param startNanos Start time from System.nanoTime()
+     * @param endNanos End time from System.nanoTime()
+     */
+    public static void record(String name, TraceContext parent, long startNanos, long endNanos) {
+        Span span = start(name, parent, startNanos);
+        if (span != null)
+            span.end(endNanos);
+    }
+
+    /**
+     * Hand a finished span to the exporter.
+     * @param span Span
+     */
+    static void export(Span span) {
+        SpanExporter current = exporter;
+        if (current == null)
+            return;
+        try {
+            current.export(span);
+        } catch (RuntimeException ex) {
+            // A broken exporter must not fail the request.
+        }
+    }
+}
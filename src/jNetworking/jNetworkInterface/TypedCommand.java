@@ -0,0 +1,51 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.net.Socket;
+
+/**
+ * Interface class for commands that take and return objects instead of
+ * strings. The input is decoded and the output encoded with the codec the
+ * client sent the request with.
+ * @param <I> Input type
+ * @param <O> Output type
+ */
+public interface TypedCommand<I, O> {
+    /**
+     * Get the input type.
+     * @return Input class
+     */
+    Class<I> getInputType();
+
+    /**
+     * Command execution.
+     * @param input Decoded input
+     * @param client Input socket
+     * @return Result to encode
+     * @throws Exception If the command fails
+     */
+    O run(I input, Socket client) throws Exception;
+}
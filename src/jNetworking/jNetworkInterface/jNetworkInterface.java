@@ -30,10 +30,17 @@ import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Jacob Gorney
@@ -84,7 +91,96 @@ public class jNetworkInterface {
     /**
      * The socket connection to the server.
      */
-    private Socket socket;
+    private volatile Socket socket;
+
+    /**
+     * Output stream for the current connection.
+     */
+    private PooledOutputStream socketOut;
+
+    /**
+     * Input stream for the current connection.
+     */
+    private PooledInputStream socketIn;
+
+    /**
+     * Flag to keep the connection open between commands.
+     */
+    private boolean keepAlive;
+
+    /**
+     * When the kept-open connection last finished a command, in nanoseconds.
+     */
+    private long idleSince;
+
+    /**
+     * Round trip time statistics for the server.
+     */
+    private RttEstimator rtt;
+
+    /**
+     * Hedging and retry policy, null to send every command once.
+     */
+    private volatile RequestPolicy policy;
+
+    /**
+     * Circuit breaker, null to always send.
+     */
+    private volatile CircuitBreaker breaker;
+
+    /**
+     * Set when the command in flight was abandoned by another thread.
+     */
+    private volatile boolean aborted;
+
+    /**
+     * Thread with a command in flight, null when idle.
+     */
+    private volatile Thread exchanging;
+
+    /**
+     * Flag to send commands as streams over one shared connection.
+     */
+    private volatile boolean multiplexed;
+
+    /**
+     * Streams on the shared connection, null until it is open.
+     */
+    private StreamMux mux;
+
+    /**
+     * Stream each thread has in flight on the shared connection.
+     */
+    private final Map<Thread, StreamMux.Stream> activeStreams = new ConcurrentHashMap<>();
+
+    /**
+     * Background quality probe, null when not probing.
+     */
+    private ScheduledExecutorService probing;
+
+    /**
+     * Client the background probe uses, null when not probing.
+     */
+    private jNetworkInterface prober;
+
+    /**
+     * Size of the pooled connection buffers.
+     */
+    private static final int STREAM_BUFFER = 8192;
+
+    /**
+     * Idle time after which a kept-open connection is checked before reuse.
+     */
+    private static final long STALE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Lifecycle events.
+     */
+    private static final LifecycleEvents EVENTS = LifecycleEvents.get();
+
+    /**
+     * Number of round trips pollQuality() measures.
+     */
+    public static final int PROBE_COUNT = 5;
 
     /**
      * Test address for internet connection test. This is the IP Address
@@ -104,6 +200,7 @@ public class jNetworkInterface {
         this.ssl = ssl;
         this.isConnected = false;
         this.quality = -1;
+        this.rtt = new RttEstimator();
     }
 
     /**
@@ -132,110 +229,719 @@ public class jNetworkInterface {
      * @return Server response
      */
     public String sendCommand(String command, ArrayList<String> data) {
-        connect();
+        return sendCommand(command, data, 0);
+    }
+
+    /**
+     * Send a command with a deadline. The server cancels the command and
+     * responds with jNetworkInterfaceServerTask.RESPONSE_TIMEOUT if it does not
+     * finish in time.
+     *
+     * @param command  Command to send
+     * @param data     Data to send
+     * @param deadline Time limit in MS, 0 for none
+     * @return Server response
+     */
+    public String sendCommand(String command, ArrayList<String> data, long deadline) {
+        return sendRequest(command, data, deadline).getBodyString();
+    }
+
+    /**
+     * Send a command and return the full response with its status.
+     *
+     * @param command Command to send
+     * @param data    Data to send
+     * @return Server response
+     */
+    public Response sendRequest(String command, ArrayList<String> data) {
+        return sendRequest(command, data, 0);
+    }
+
+    /**
+     * Send a command with a deadline and return the full response with its
+     * status.
+     *
+     * @param command  Command to send
+     * @param data     Data to send
+     * @param deadline Time limit in MS, 0 for none
+     * @return Server response
+     */
+    public Response sendRequest(String command, ArrayList<String> data, long deadline) {
+        return sendRequest(new Request(command, data).setDeadline(deadline));
+    }
+
+    /**
+     * Send a request and return the full response with its status.
+     *
+     * @param request Request to send
+     * @return Server response
+     */
+    public Response sendRequest(Request request) {
+        CircuitBreaker currentBreaker = breaker;
+        if (currentBreaker == null)
+            return dispatch(request);
+        if (!currentBreaker.tryAcquire())
+            throw new CircuitOpenException(currentBreaker);
+        long start = System.nanoTime();
+        try {
+            Response response = dispatch(request);
+            currentBreaker.onResponse(System.nanoTime() - start, response);
+            return response;
+        } catch (RuntimeException ex) {
+            currentBreaker.onError(System.nanoTime() - start);
+            throw ex;
+        }
+    }
+
+    /**
+     * Send an object to a TypedCommand and decode the object it returns.
+     *
+     * @param command    Command to send
+     * @param input      Command input, encoded with the binary codec when possible
+     * @param outputType Expected output type
+     * @param <T>        Expected output type
+     * @return Command output, null if the command returned nothing
+     */
+    public <T> T sendObject(String command, Object input, Class<T> outputType) {
+        try {
+            Response response = sendRequest(new Request(command).setObject(input));
+            if (!response.isSuccess())
+                throw new RuntimeException("Command failed: " + response);
+            return response.getObject(outputType);
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not encode or decode the command object.", ex);
+        }
+    }
+
+    /**
+     * Fail fast with a CircuitOpenException while the server is failing,
+     * overloaded or paused.
+     *
+     * @param breaker Circuit breaker, null to always send
+     */
+    public void setCircuitBreaker(CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    /**
+     * Get the circuit breaker.
+     *
+     * @return Circuit breaker or null
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Send a request under the request policy, if there is one.
+     *
+     * @param request Request to send
+     * @return Server response
+     */
+    private Response dispatch(Request request) {
+        RequestPolicy current = policy;
+        if (current == null)
+            return exchange(request);
+        RequestPolicy.Attempt primary = new RequestPolicy.Attempt() {
+            private volatile Thread runner;
+
+            @Override
+            public Response send() {
+                runner = Thread.currentThread();
+                return exchange(request);
+            }
+
+            @Override
+            public void cancel() {
+                abort(runner);
+            }
+        };
+        // Hedges go out on a stream or on a connection of their own.
+        RequestPolicy.Attempt hedge = () -> multiplexed ? exchange(request) :
+                new jNetworkInterface(hostname, port, ssl).exchange(request);
+        return current.execute(request.getCommand(), primary, hedge);
+    }
+
+    /**
+     * Hedge and retry idempotent commands according to a policy.
+     *
+     * @param policy Request policy, null to send every command once
+     */
+    public void setRequestPolicy(RequestPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Get the request policy.
+     *
+     * @return Request policy or null
+     */
+    public RequestPolicy getRequestPolicy() {
+        return policy;
+    }
+
+    /**
+     * Send commands as independent streams over one connection, so many
+     * threads can share this client and a slow command does not hold up the
+     * others. The server must support streams.
+     *
+     * @param multiplexed Multiplexed
+     */
+    public synchronized void setMultiplexed(boolean multiplexed) {
+        this.multiplexed = multiplexed;
+        if (!multiplexed && mux != null)
+            closeConnection();
+    }
+
+    /**
+     * Determine if commands are sent as streams.
+     *
+     * @return Multiplexed
+     */
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    /**
+     * Send a request and read the response on this client's connection.
+     *
+     * @param request Request to send
+     * @return Server response
+     */
+    private Response exchange(Request request) {
+        if (multiplexed)
+            return exchangeStream(request, true);
+        return exchangeLocked(request);
+    }
+
+    /**
+     * Send a request and read the response, holding the connection for the
+     * whole exchange.
+     *
+     * @param request Request to send
+     * @return Server response
+     */
+    private synchronized Response exchangeLocked(Request request) {
+        aborted = false;
+        exchanging = Thread.currentThread();
+        try {
+            return exchangeOnce(request);
+        } finally {
+            exchanging = null;
+        }
+    }
+
+    /**
+     * Send a request and read the response. A kept-open connection that is
+     * found closed before the request is written is replaced once; failures
+     * after the write are left to the request policy. Caller holds the lock.
+     *
+     * @param request Request to send
+     * @return Server response
+     */
+    private Response exchangeOnce(Request request) {
+        // A kept-open connection may have been closed by the server while idle.
+        boolean reused = keepAlive && isConnected;
+        if (reused && System.nanoTime() - idleSince > STALE_CHECK_NANOS && isStale()) {
+            closeConnection();
+            reused = false;
+        }
+        if (!reused)
+            connect();
         if (isConnected) {
+            HashedWheelTimer.Timeout expiry = null;
+            Object roundTrip = EVENTS.begin(LifecycleEvents.ROUND_TRIP);
+            // Pass the caller's trace on, under a client span if tracing is on.
+            TraceContext trace = TraceContext.current();
+            Span span = Tracing.start(request.getCommand(), trace);
+            if (span != null)
+                trace = span.getContext();
+            String traceHeader = trace == null ? null : TraceContext.HEADER + "=" + trace;
+            boolean written = false;
             try {
                 // Send the command
-                PrintWriter socketOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(),
-                        StandardCharsets.UTF_8), true);
-                BufferedReader socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream(),
-                        StandardCharsets.UTF_8));
-                socketOut.println(command);
-                // Print the command data
-                if (data != null)
-                    for (String s : data)
-                        socketOut.println(s);
-                socketOut.println("END COMMAND");
+                long deadline = request.getDeadline();
+                if (deadline > 0) {
+                    // Give the server time to send the timeout response.
+                    Thread owner = Thread.currentThread();
+                    expiry = HashedWheelTimer.getShared().schedule(() -> abort(owner), deadline + 1000);
+                }
+                if (keepAlive)
+                    request.write(socketOut, "keepalive=1", "envelope=1", traceHeader);
+                else
+                    request.write(socketOut, "envelope=1", traceHeader);
                 socketOut.flush();
+                written = true;
                 // Get the response from the server
-                String line;
-                String response = "";
-                while ((line = socketIn.readLine()) != null)
-                    response += line;
-                // Close the connections
-                socketOut.close();
-                socketIn.close();
-                closeConnection();
+                Response response = Response.read(socketIn);
+                if (response == null) {
+                    closeConnection();
+                    throw new RuntimeException("Server closed the connection.");
+                }
+                if (keepAlive)
+                    idleSince = System.nanoTime();
+                else
+                    closeConnection();
+                EVENTS.commit(roundTrip, request.getCommand(), this, response.getBody().length,
+                        response.getStatus());
+                if (span != null)
+                    span.setAttribute("status", response.getStatus());
                 // Return the response
                 return response;
             } catch (IOException ex) {
+                closeConnection();
+                if (expiry != null && expiry.isExpired())
+                    throw new RuntimeException("No response before the deadline.");
+                // The server never saw the request, so it is safe to send again.
+                if (reused && !written && !aborted) {
+                    if (expiry != null)
+                        expiry.cancel();
+                    return exchangeOnce(request);
+                }
                 throw new RuntimeException("Failed to send command.");
+            } finally {
+                if (expiry != null)
+                    expiry.cancel();
+                if (span != null)
+                    span.setAttribute("kind", "client").setAttribute("peer", this).end();
             }
         } else
             return null;
     }
 
     /**
-     * Determine the connection quality.
+     * Check whether the kept-open connection was closed by the server. Any
+     * byte or end of stream before a request is sent means it cannot be used.
+     *
+     * @return True if the connection should be replaced
      */
-    public void pollQuality() {
-        // First the server must support the operation
-        // we are going to send to it. The "poll" command.
+    private boolean isStale() {
+        try {
+            int timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                socketIn.read();
+                return true;
+            } finally {
+                socket.setSoTimeout(timeout);
+            }
+        } catch (SocketTimeoutException ex) {
+            return false;
+        } catch (IOException ex) {
+            return true;
+        }
+    }
+
+    /**
+     * Subscribe to server topics with the drop policy and default queue.
+     *
+     * @param listener Receives pushed messages
+     * @param topics   Topics
+     * @return Subscription
+     */
+    public Subscription subscribe(Subscription.Listener listener, String... topics) {
+        return subscribe(listener, PushBroker.POLICY_DROP, PushBroker.QUEUE, topics);
+    }
+
+    /**
+     * Subscribe to server topics instead of polling. The subscription gets a
+     * stream of the shared connection when multiplexed, otherwise a
+     * connection of its own, so commands can still be sent meanwhile.
+     *
+     * @param listener Receives pushed messages
+     * @param policy   What the server does when the subscription falls a full
+     *                 queue behind, one of the PushBroker policies
+     * @param queue    Messages the server queues for the subscription
+     * @param topics   Topics
+     * @return Subscription
+     */
+    public Subscription subscribe(Subscription.Listener listener, String policy, int queue, String... topics) {
+        ArrayList<String> subscribed = new ArrayList<>(Arrays.asList(topics));
+        Request request = new Request(PushBroker.SUBSCRIBE, subscribed).setHeader(PushBroker.HEADER_POLICY, policy)
+                .setHeader(PushBroker.HEADER_QUEUE, Integer.toString(queue));
+        if (multiplexed) {
+            StreamMux current;
+            synchronized (this) {
+                current = mux != null && !mux.isClosed() ? mux : connectStreams();
+            }
+            StreamMux.Stream stream = null;
+            try {
+                stream = current.open();
+                OutputStream out = stream.getOutputStream();
+                request.write(out, "envelope=1");
+                out.close();
+                checkSubscribed(Response.read(stream.getInputStream()));
+                return new Subscription(subscribed, listener, stream).start();
+            } catch (IOException | RuntimeException ex) {
+                if (stream != null)
+                    stream.reset();
+                throw subscribeFailed(ex);
+            }
+        }
+        Socket opened = null;
+        PooledInputStream in = null;
         try {
-            long responseStart = System.currentTimeMillis();
-            // If this parse fails, the server doesn't support ping. No soup for you.
-            long responseEnd;
+            opened = openSocket();
+            in = new PooledInputStream(opened.getInputStream(), BufferPool.getDefault(), STREAM_BUFFER);
+            OutputStream out = new BufferedOutputStream(opened.getOutputStream());
+            request.write(out, "envelope=1");
+            out.flush();
+            checkSubscribed(Response.read(in));
+            return new Subscription(subscribed, listener, opened, in).start();
+        } catch (IOException | RuntimeException ex) {
+            if (in != null)
+                in.release();
             try {
-                responseEnd = Long.parseLong(sendCommand("ping", null));
-            } catch (NumberFormatException ex) {
-                ex.printStackTrace();
-                quality = -1;
-                return;
+                if (opened != null)
+                    opened.close();
+            } catch (IOException closeEx) {
+                // Already closed.
             }
-            // Calculate the difference between t
-            long difference = responseEnd - responseStart;
-            // Determine the connection quality based on the difference
-            // of the two timestamps.
-            // @todo this can be improved to become more precise.
-            if (difference < 10)
-                quality = 100;
-            else if (difference > 10 && difference < 50)
-                quality = 90;
-            else if (difference > 50 && difference < 100)
-                quality = 80;
-            else if (difference > 100 && difference < 200)
-                quality = 70;
-            else if (difference > 200 && difference < 500)
-                quality = 60;
-            else if (difference > 500 && difference < 1000)
-                quality = 50;
-            else if (difference > 1000 && difference < 2000)
-                quality = 40;
-            else if (difference > 2000 && difference < 5000)
-                quality = 30;
-            else if (difference > 5000 && difference < 10000)
-                quality = 20;
-            else if (difference > 10000 && difference < 20000)
-                quality = 10;
-            else
-                quality = 1;
-            // @todo check other factors that affect quality such as the local connection
+            throw subscribeFailed(ex);
+        }
+    }
+
+    /**
+     * Check the server's answer to a subscribe request.
+     *
+     * @param response Answer, null if the connection closed
+     */
+    private static void checkSubscribed(Response response) {
+        if (response == null)
+            throw new RuntimeException("Server closed the connection.");
+        if (response.getStatus() != Response.STATUS_OK)
+            throw new RuntimeException("Subscribe refused: " + response);
+    }
+
+    /**
+     * Wrap a subscribe failure.
+     *
+     * @param ex Failure
+     * @return Exception to throw
+     */
+    private static RuntimeException subscribeFailed(Exception ex) {
+        if (ex instanceof RuntimeException)
+            return (RuntimeException) ex;
+        return new RuntimeException("Subscribe failed.", ex);
+    }
+
+    /**
+     * Keep the connection open between commands instead of connecting for
+     * each one.
+     *
+     * @param keepAlive Keep alive
+     */
+    public synchronized void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        if (!keepAlive && isConnected)
+            closeConnection();
+    }
+
+    /**
+     * Determine the connection quality from several ping round trips.
+     */
+    public void pollQuality() {
+        pollQuality(PROBE_COUNT);
+    }
+
+    /**
+     * Determine the connection quality. The probes run over one kept-open
+     * connection so connect time is not counted, and the round trips are timed
+     * locally so the server's clock does not matter.
+     *
+     * @param probes Number of round trips to measure
+     */
+    public synchronized void pollQuality(int probes) {
+        boolean wasKeepAlive = keepAlive;
+        keepAlive = true;
+        try {
+            if (!isConnected)
+                connect();
+            for (int i = 0; i < probes; i++)
+                probe();
+            quality = rtt.getQuality();
         } catch (RuntimeException ex) {
             quality = -1;
+        } finally {
+            keepAlive = wasKeepAlive;
+            if (!keepAlive && isConnected)
+                closeConnection();
         }
     }
 
+    /**
+     * Probe the connection quality in the background on its own connection.
+     * The results feed the same RTT estimator as pollQuality().
+     *
+     * @param interval Time between probes in MS
+     */
+    public synchronized void startProbing(long interval) {
+        stopProbing();
+        jNetworkInterface prober = new jNetworkInterface(hostname, port, ssl);
+        prober.rtt = rtt;
+        prober.keepAlive = true;
+        probing = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "jNetworkInterface-probe-" + hostname + ":" + port);
+            t.setDaemon(true);
+            return t;
+        });
+        probing.scheduleWithFixedDelay(() -> {
+            synchronized (prober) {
+                try {
+                    prober.probe();
+                } catch (RuntimeException ex) {
+                    // Counted as a failure by the estimator.
+                }
+            }
+            synchronized (this) {
+                quality = rtt.getQuality();
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+        this.prober = prober;
+    }
+
+    /**
+     * Stop background probing.
+     */
+    public synchronized void stopProbing() {
+        if (probing != null) {
+            probing.shutdownNow();
+            probing = null;
+            synchronized (prober) {
+                if (prober.isConnected)
+                    prober.closeConnection();
+            }
+            prober = null;
+        }
+    }
+
+    /**
+     * Get the round trip time statistics for the server.
+     *
+     * @return RTT estimator
+     */
+    public RttEstimator getRttEstimator() {
+        return rtt;
+    }
+
+    /**
+     * Time one ping round trip and add it to the estimator.
+     */
+    private void probe() {
+        long start = System.nanoTime();
+        Response response;
+        try {
+            response = exchange(new Request("ping"));
+        } catch (RuntimeException ex) {
+            rtt.addFailure();
+            throw ex;
+        }
+        long elapsed = System.nanoTime() - start;
+        // If the ping fails, the server doesn't support ping. No soup for you.
+        if (!response.isSuccess()) {
+            rtt.addFailure();
+            throw new RuntimeException("Server does not support ping.");
+        }
+        rtt.addSample(elapsed);
+    }
+
     /**
      * Return the connection quality. 1 - 100 where
      * 1 is the worst possible connection.
      *
      * @return 1 - 100 integer value representing quality
      */
-    public int getConnectionQuality() {
+    public synchronized int getConnectionQuality() {
         return quality;
     }
 
+    /**
+     * Send a request on a stream of the shared connection, opening the
+     * connection if needed. Other threads' requests run alongside.
+     *
+     * @param request Request to send
+     * @param retry Try once more if a reused connection turns out to be closed
+     * @return Server response
+     */
+    private Response exchangeStream(Request request, boolean retry) {
+        StreamMux current;
+        boolean reused;
+        synchronized (this) {
+            reused = mux != null && !mux.isClosed();
+            current = reused ? mux : connectStreams();
+        }
+        StreamMux.Stream stream;
+        try {
+            stream = current.open();
+        } catch (IOException ex) {
+            if (retry && reused)
+                return exchangeStream(request, false);
+            throw new RuntimeException("Failed to send command.");
+        }
+        Thread owner = Thread.currentThread();
+        activeStreams.put(owner, stream);
+        HashedWheelTimer.Timeout expiry = null;
+        Object roundTrip = EVENTS.begin(LifecycleEvents.ROUND_TRIP);
+        TraceContext trace = TraceContext.current();
+        Span span = Tracing.start(request.getCommand(), trace);
+        if (span != null)
+            trace = span.getContext();
+        try {
+            long deadline = request.getDeadline();
+            if (deadline > 0)
+                expiry = HashedWheelTimer.getShared().schedule(stream::reset, deadline + 1000);
+            OutputStream out = stream.getOutputStream();
+            try {
+                request.write(out, "envelope=1", trace == null ? null : TraceContext.HEADER + "=" + trace);
+                out.close();
+            } catch (IOException ex) {
+                // The server may answer and reset a stream it will not read, such as a rejected one.
+                if (current.isClosed())
+                    throw ex;
+            }
+            Response response = Response.read(stream.getInputStream());
+            if (response == null)
+                throw new IOException("Stream ended without a response.");
+            EVENTS.commit(roundTrip, request.getCommand(), this, response.getBody().length, response.getStatus());
+            if (span != null)
+                span.setAttribute("status", response.getStatus());
+            return response;
+        } catch (IOException ex) {
+            stream.reset();
+            if (expiry != null && expiry.isExpired())
+                throw new RuntimeException("No response before the deadline.");
+            // A kept-open connection may have been closed by the server while idle.
+            if (retry && reused && current.isClosed() && activeStreams.get(owner) == stream) {
+                activeStreams.remove(owner);
+                return exchangeStream(request, false);
+            }
+            throw new RuntimeException("Failed to send command.");
+        } finally {
+            activeStreams.remove(owner, stream);
+            if (expiry != null)
+                expiry.cancel();
+            if (span != null)
+                span.setAttribute("kind", "client").setAttribute("peer", this).end();
+        }
+    }
+
+    /**
+     * Open the shared connection and switch it to streams. A reader thread
+     * hands incoming frames to the streams until the connection closes.
+     * Caller holds the lock.
+     *
+     * @return Streams on the new connection
+     */
+    private StreamMux connectStreams() {
+        if (isConnected)
+            closeConnection();
+        connect();
+        PooledInputStream in = socketIn;
+        PooledOutputStream out = socketOut;
+        try {
+            new Request(StreamMux.UPGRADE).setHeader(StreamMux.HEADER_WINDOW, Integer.toString(StreamMux.WINDOW))
+                    .write(out, "envelope=1");
+            out.flush();
+            Response response = Response.read(in);
+            if (response == null || response.getStatus() != Response.STATUS_OK) {
+                closeConnection();
+                throw new RuntimeException("Server does not support streams.");
+            }
+            int window = StreamMux.parseWindow(response.getHeader(StreamMux.HEADER_WINDOW));
+            if (window < 0)
+                throw new IOException("Server announced a bad stream window.");
+            // Streams can wait on slow commands, so only the server's idle timeout applies.
+            socket.setSoTimeout(0);
+            StreamMux current = new StreamMux(in, out, true, window);
+            // The reader thread owns the buffers from now on.
+            socketIn = null;
+            socketOut = null;
+            mux = current;
+            Thread reader = new Thread(() -> readStreams(current, in, out), "jNetworkInterface-streams-" + this);
+            reader.setDaemon(true);
+            reader.start();
+            return current;
+        } catch (IOException ex) {
+            closeConnection();
+            throw new RuntimeException("Connection could not be created.");
+        }
+    }
+
+    /**
+     * Reader thread loop for the shared connection.
+     *
+     * @param current Streams on the connection
+     * @param in Connection input
+     * @param out Connection output
+     */
+    private void readStreams(StreamMux current, PooledInputStream in, PooledOutputStream out) {
+        try {
+            while (!current.isClosed())
+                current.readFrame();
+        } catch (IOException ex) {
+            // The connection failed or was closed, which ends every stream.
+        } finally {
+            current.close();
+            in.release();
+            out.release();
+            synchronized (this) {
+                if (mux == current) {
+                    mux = null;
+                    closeConnection();
+                }
+            }
+        }
+    }
+
     /**
      * Close the socket connection.
      */
-    public void closeConnection() {
+    public synchronized void closeConnection() {
+        if (mux != null) {
+            // The reader thread notices the closed socket and releases the buffers.
+            mux.close();
+            mux = null;
+        }
         try {
             socket.close();
         } catch (IOException ex) {
             throw new RuntimeException("Connection already closed.");
+        } finally {
+            isConnected = false;
+            if (socketIn != null) {
+                socketIn.release();
+                socketOut.release();
+                socketIn = null;
+                socketOut = null;
+            }
+        }
+    }
+
+    /**
+     * Abandon the command a thread has in flight by closing its socket. Not
+     * synchronized since the thread sending the command holds the lock.
+     *
+     * @param owner Thread that sent the command
+     */
+    private void abort(Thread owner) {
+        if (owner == null)
+            return;
+        StreamMux.Stream stream = activeStreams.remove(owner);
+        if (stream != null) {
+            stream.reset();
+            return;
+        }
+        if (exchanging != owner)
+            return;
+        aborted = true;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ex) {
+                // Already closed.
+            }
         }
-        isConnected = false;
-        quality = -1;
     }
 
     /**
@@ -259,19 +965,19 @@ public class jNetworkInterface {
         return new String(Base64.getDecoder().decode(s));
     }
 
+    @Override
+    public String toString() {
+        return hostname + ":" + port;
+    }
+
     /**
      * Establish and create the socket connection.
      */
     private void connect() {
         try {
-            if (ssl) {
-                // Build an SSL connection instead of a normal socket connection
-                SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-                socket = sslSocketFactory.createSocket(hostname, port);
-            } else
-                socket = new Socket(hostname, port);
-            // Set the default timeout.
-            socket.setSoTimeout(jNetworkInterfaceServer.TIMEOUT);
+            socket = openSocket();
+            socketOut = new PooledOutputStream(socket.getOutputStream(), BufferPool.getDefault(), STREAM_BUFFER);
+            socketIn = new PooledInputStream(socket.getInputStream(), BufferPool.getDefault(), STREAM_BUFFER);
             isConnected = true;
         } catch (IOException ex) {
             isConnected = false;
@@ -280,17 +986,29 @@ public class jNetworkInterface {
     }
 
     /**
-     * Check if an object is serializable.
+     * Open a socket to the server with the default timeout.
      *
-     * @param obj Object to check
-     * @return Result
+     * @return Connected socket
+     * @throws IOException If the connection fails
      */
-    private boolean isSerializable(Object obj) {
-        try {
-            new ObjectOutputStream(new ByteArrayOutputStream()).writeObject(obj);
-            return true;
-        } catch (Exception ex) {
-            return false;
+    private Socket openSocket() throws IOException {
+        Object connecting = EVENTS.begin(LifecycleEvents.CONNECT);
+        Socket opened;
+        if (ssl) {
+            // Build an SSL connection instead of a normal socket connection
+            SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+            opened = sslSocketFactory.createSocket(hostname, port);
+            EVENTS.commit(connecting, null, this, 0, 0);
+            // Handshake now rather than on the first write, so it is timed on its own.
+            Object handshake = EVENTS.begin(LifecycleEvents.HANDSHAKE);
+            ((SSLSocket) opened).startHandshake();
+            EVENTS.commit(handshake, null, this, 0, 0);
+        } else {
+            opened = new Socket(hostname, port);
+            EVENTS.commit(connecting, null, this, 0, 0);
         }
+        // Set the default timeout.
+        opened.setSoTimeout(jNetworkInterfaceServer.TIMEOUT);
+        return opened;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,233 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Client that spreads commands across several jNetworkInterfaceServer
+ * instances. Endpoints that keep failing are ejected for a backoff period.
+ */
+public class jNetworkInterfaceBalancer {
+    /**
+     * Servers to send commands to.
+     */
+    private final List<Endpoint> endpoints;
+    /**
+     * Endpoint selection strategy.
+     */
+    private volatile LoadBalancingStrategy strategy;
+    /**
+     * Hedging and retry policy, null to send every command once.
+     */
+    private volatile RequestPolicy policy;
+
+    /**
+     * Class constructor.
+     * @param endpoints Servers to send commands to
+     */
+    public jNetworkInterfaceBalancer(List<Endpoint> endpoints) {
+        if (endpoints.isEmpty())
+            throw new IllegalArgumentException("At least one endpoint is required.");
+        this.endpoints = new ArrayList<>(endpoints);
+        this.strategy = new LoadBalancingStrategy.RoundRobin();
+    }
+
+    /**
+     * Class constructor for servers on the same host.
+     * @param hostname Server hostname
+     * @param ssl Use SSL
+     * @param ports Server ports
+     */
+    public jNetworkInterfaceBalancer(String hostname, boolean ssl, int... ports) {
+        this(buildEndpoints(hostname, ssl, ports));
+    }
+
+    /**
+     * Set the endpoint selection strategy.
+     * @param strategy Strategy
+     */
+    public void setStrategy(LoadBalancingStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Send a command to one of the servers.
+     * @param command Command to send
+     * @param data Data to send
+     * @return Server response
+     */
+    public String sendCommand(String command, ArrayList<String> data) {
+        return sendCommand(command, data, 0);
+    }
+
+    /**
+     * Send a command with a deadline to one of the servers.
+     * @param command Command to send
+     * @param data Data to send
+     * @param deadline Time limit in MS, 0 for none
+     * @return Server response
+     */
+    public String sendCommand(String command, ArrayList<String> data, long deadline) {
+        return sendRequest(command, data, deadline).getBodyString();
+    }
+
+    /**
+     * Send a command with a deadline to one of the servers and return the
+     * full response with its status.
+     * @param command Command to send
+     * @param data Data to send
+     * @param deadline Time limit in MS, 0 for none
+     * @return Server response
+     */
+    public Response sendRequest(String command, ArrayList<String> data, long deadline) {
+        return sendRequest(new Request(command, data).setDeadline(deadline));
+    }
+
+    /**
+     * Send a request to one of the servers and return the full response with
+     * its status.
+     * @param request Request to send
+     * @return Server response
+     */
+    public Response sendRequest(Request request) {
+        RequestPolicy current = policy;
+        if (current == null)
+            return select().sendRequest(request);
+        Endpoint primary = select();
+        // Hedge and retry on a different endpoint where there is one.
+        RequestPolicy.Attempt first = () -> primary.sendRequest(request);
+        RequestPolicy.Attempt hedge = () -> selectOther(primary).sendRequest(request);
+        return current.execute(request.getCommand(), new RequestPolicy.Attempt() {
+            private boolean retry;
+
+            @Override
+            public Response send() {
+                // Retries go through the hedge path so they pick another endpoint.
+                if (retry)
+                    return hedge.send();
+                retry = true;
+                return first.send();
+            }
+        }, hedge);
+    }
+
+    /**
+     * Send an object to a TypedCommand on one of the servers and decode the
+     * object it returns.
+     * @param command Command to send
+     * @param input Command input, encoded with the binary codec when possible
+     * @param outputType Expected output type
+     * @param <T> Expected output type
+     * @return Command output, null if the command returned nothing
+     */
+    public <T> T sendObject(String command, Object input, Class<T> outputType) {
+        try {
+            Response response = sendRequest(new Request(command).setObject(input));
+            if (!response.isSuccess())
+                throw new RuntimeException("Command failed: " + response);
+            return response.getObject(outputType);
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not encode or decode the command object.", ex);
+        }
+    }
+
+    /**
+     * Hedge and retry idempotent commands according to a policy.
+     * @param policy Request policy, null to send every command once
+     */
+    public void setRequestPolicy(RequestPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Get the request policy.
+     * @return Request policy or null
+     */
+    public RequestPolicy getRequestPolicy() {
+        return policy;
+    }
+
+    /**
+     * Select an endpoint with the current strategy. If every endpoint is
+     * ejected they are all considered, a guess beats failing outright.
+     * @return Endpoint
+     */
+    public Endpoint select() {
+        List<Endpoint> available = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isAvailable())
+                available.add(endpoint);
+        }
+        return strategy.select(available.isEmpty() ? endpoints : available);
+    }
+
+    /**
+     * Select an endpoint other than the given one, if there is another.
+     * @param exclude Endpoint to avoid
+     * @return Endpoint
+     */
+    public Endpoint selectOther(Endpoint exclude) {
+        List<Endpoint> available = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint != exclude && endpoint.isAvailable())
+                available.add(endpoint);
+        }
+        return available.isEmpty() ? select() : strategy.select(available);
+    }
+
+    /**
+     * Get the endpoints and their metrics.
+     * @return Endpoints
+     */
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    /**
+     * Close idle connections to every endpoint.
+     */
+    public void close() {
+        for (Endpoint endpoint : endpoints)
+            endpoint.close();
+    }
+
+    /**
+     * Build endpoints for servers on the same host.
+     * @param hostname Server hostname
+     * @param ssl Use SSL
+     * @param ports Server ports
+     * @return Endpoints
+     */
+    private static List<Endpoint> buildEndpoints(String hostname, boolean ssl, int... ports) {
+        List<Endpoint> list = new ArrayList<>();
+        for (int port : ports)
+            list.add(new Endpoint(hostname, port, ssl));
+        return list;
+    }
+}
@@ -25,11 +25,26 @@
 package jNetworking.jNetworkInterface;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketOption;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Jacob Gorney
@@ -62,6 +77,28 @@ public class jNetworkInterfaceServer implements Runnable {
      * Default socket timeout.
      */
     public static final int TIMEOUT = 30000;
+    /**
+     * Default time in MS to wait for in-flight commands on shutdown.
+     */
+    public static final long DRAIN_TIMEOUT = 10000;
+    /**
+     * Default listen backlog.
+     */
+    public static final int BACKLOG = 50;
+    /**
+     * Threads and queued connections for answering connections that are
+     * turned away. Connections beyond that are closed without an answer.
+     * Control commands on connections turned away for capacity are still run
+     * there, so ping and stats keep working when every worker is busy.
+     */
+    public static final int REJECT_THREADS = 2;
+    public static final int REJECT_QUEUE = 64;
+    /**
+     * Most subscriptions served at once. Subscriptions run on threads of
+     * their own, so they hold neither a connection worker nor a slot counted
+     * against the max threads.
+     */
+    public static final int MAX_SUBSCRIBERS = 256;
     /**
      * Server stopped flag.
      */
@@ -75,9 +112,71 @@ public class jNetworkInterfaceServer implements Runnable {
      */
     private int port;
     /**
-     * Main server listening socket.
+     * Acceptors listening for connections, each with its own worker group.
+     */
+    private List<jNetworkInterfaceServerAcceptor> acceptors;
+    /**
+     * Number of acceptor threads.
+     */
+    private int acceptorCount;
+    /**
+     * Bind one listening socket per acceptor with SO_REUSEPORT.
+     */
+    private boolean reusePort;
+    /**
+     * Listen backlog.
+     */
+    private int backlog;
+    /**
+     * TCP_NODELAY for client connections.
+     */
+    private boolean tcpNoDelay;
+    /**
+     * SO_KEEPALIVE for client connections.
+     */
+    private boolean keepAlive;
+    /**
+     * SO_RCVBUF size, 0 for the system default.
+     */
+    private int receiveBufferSize;
+    /**
+     * SO_SNDBUF size, 0 for the system default.
      */
-    private ServerSocket server;
+    private int sendBufferSize;
+    /**
+     * Time in MS a kept-open connection may wait for its next request.
+     */
+    private int idleTimeout;
+    /**
+     * Time in MS a client has to send a request once connected or once the
+     * request starts arriving.
+     */
+    private int readTimeout;
+    /**
+     * Time in MS a response may take to write.
+     */
+    private int writeTimeout;
+    /**
+     * Timer for connection timeouts, replaced on each run since shutdown
+     * stops it.
+     */
+    private volatile HashedWheelTimer timer;
+    /**
+     * Binary access log, null when off.
+     */
+    private volatile AccessLog accessLog;
+    /**
+     * Background sampler for the diagnostics command.
+     */
+    private DiagnosticsSampler diagnostics;
+    /**
+     * Request metrics.
+     */
+    private ServerMetrics metrics;
+    /**
+     * HTTP metrics endpoint, null unless started.
+     */
+    private MetricsExporter metricsExporter;
     /**
      * jNetworkInterfaceServer name.
      */
@@ -91,13 +190,74 @@ public class jNetworkInterfaceServer implements Runnable {
      */
     private int requests;
     /**
-     * Processing queue for the server.
+     * Per-client rate limiter.
+     */
+    private RateLimiter rateLimiter;
+    /**
+     * Pool connection buffers are borrowed from.
+     */
+    private volatile BufferPool bufferPool;
+    /**
+     * Scheduling weights by client address.
+     */
+    private Map<InetAddress, Integer> clientWeights;
+    /**
+     * Registered commands, replaced as a whole when commands are reloaded.
      */
-    private Queue<jNetworkInterfaceServerTask> taskQueue;
+    private volatile CommandRegistry registry;
     /**
-     * The current task thread.
+     * File of extra command mappings, null for none.
      */
-    private Thread taskThread;
+    private String commandsFile;
+    /**
+     * Plugin jars, null if there is no plugin directory.
+     */
+    private PluginManager pluginManager;
+    /**
+     * Live settings.
+     */
+    private ServerConfig config;
+    /**
+     * Startup warm-up.
+     */
+    private ServerWarmUp warmUp;
+    /**
+     * Time in MS from run() to accepting connections, -1 until then.
+     */
+    private long startupTime;
+    /**
+     * Topics clients subscribe to.
+     */
+    private PushBroker pushBroker;
+    /**
+     * Bounded executors that run commands, one per priority class.
+     */
+    private Map<String, ThreadPoolExecutor> executors;
+    /**
+     * Threads that serve the streams of multiplexed connections.
+     */
+    private ThreadPoolExecutor streamWorkers;
+    /**
+     * Threads that answer connections turned away by the rate limit or
+     * capacity checks.
+     */
+    private ThreadPoolExecutor rejectWorkers;
+    /**
+     * Threads that push to subscribers.
+     */
+    private ThreadPoolExecutor pushWorkers;
+    /**
+     * Configured thread counts by priority class.
+     */
+    private Map<String, Integer> priorityThreads;
+    /**
+     * Configured queue sizes by priority class.
+     */
+    private Map<String, Integer> priorityQueues;
+    /**
+     * Tasks that have been accepted and have not finished.
+     */
+    private Set<jNetworkInterfaceServerTask> activeTasks;
     /**
      * Maximum number of concurrent threads.
      */
@@ -124,12 +284,34 @@ public class jNetworkInterfaceServer implements Runnable {
         this.port = port;
         this.maxThreads = maxThreads;
         this.serverName = "jNetworkInterfaceServer 1.0.0";
-        this.taskQueue = new LinkedList<>();
+        this.activeTasks = ConcurrentHashMap.newKeySet();
+        this.rateLimiter = new RateLimiter(0, 1);
+        this.bufferPool = BufferPool.getDefault();
+        this.idleTimeout = TIMEOUT;
+        this.readTimeout = TIMEOUT;
+        this.writeTimeout = TIMEOUT;
+        this.timer = new HashedWheelTimer("jNetworkInterfaceServer-timer");
+        this.diagnostics = new DiagnosticsSampler(this);
+        this.metrics = new ServerMetrics(this);
+        this.clientWeights = new ConcurrentHashMap<>();
+        this.acceptors = Collections.emptyList();
+        this.acceptorCount = 1;
+        this.backlog = BACKLOG;
+        this.executors = Collections.emptyMap();
+        this.priorityThreads = new HashMap<>();
+        this.priorityQueues = new HashMap<>();
         // Build the logging object.
         if (LogLocation.getLocation() != null)
             logger = new ServerLogger(LogLocation.getLocation(), ServerLogger.LOG_ALL);
         else
             logger = new ServerLogger();
+        registry = new CommandRegistry(logger);
+        config = new ServerConfig(this);
+        warmUp = new ServerWarmUp(this);
+        startupTime = -1;
+        pushBroker = new PushBroker(logger);
+        pushBroker.setFeed("stats", this::formatStats);
+        pushBroker.setFeed("ping", () -> Long.toString(ping()));
         logger.write("Server object generated.", ServerLogger.LOG_NOTICE);
     }
 
@@ -143,62 +325,99 @@ public class jNetworkInterfaceServer implements Runnable {
         this.port = 8888;
         this.maxThreads = 50;
         this.serverName = "jNetworkInterfaceServer 1.0.0";
-        this.taskQueue = new LinkedList<>();
+        this.activeTasks = ConcurrentHashMap.newKeySet();
+        this.rateLimiter = new RateLimiter(0, 1);
+        this.bufferPool = BufferPool.getDefault();
+        this.idleTimeout = TIMEOUT;
+        this.readTimeout = TIMEOUT;
+        this.writeTimeout = TIMEOUT;
+        this.timer = new HashedWheelTimer("jNetworkInterfaceServer-timer");
+        this.diagnostics = new DiagnosticsSampler(this);
+        this.metrics = new ServerMetrics(this);
+        this.clientWeights = new ConcurrentHashMap<>();
+        this.acceptors = Collections.emptyList();
+        this.acceptorCount = 1;
+        this.backlog = BACKLOG;
+        this.executors = Collections.emptyMap();
+        this.priorityThreads = new HashMap<>();
+        this.priorityQueues = new HashMap<>();
         logger = new ServerLogger();
+        registry = new CommandRegistry(logger);
+        config = new ServerConfig(this);
+        warmUp = new ServerWarmUp(this);
+        startupTime = -1;
+        pushBroker = new PushBroker(logger);
+        pushBroker.setFeed("stats", this::formatStats);
+        pushBroker.setFeed("ping", () -> Long.toString(ping()));
         logger.write("Server object generated.", ServerLogger.LOG_NOTICE);
     }
 
     @Override
     public void run() {
-        buildSocket();
+        long started = System.nanoTime();
         // Set some stat tracking
         synchronized (this) {
             isStopped = false;
             serverStarted = new Date();
-            requests = 0;
+            startupTime = -1;
+            timer = new HashedWheelTimer("jNetworkInterfaceServer-timer");
+            executors = buildExecutors();
+            AtomicInteger count = new AtomicInteger();
+            streamWorkers = new ThreadPoolExecutor(0, Math.max(1, maxThreads), 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), r -> new Thread(r, "jNetworkInterfaceServer-stream-" +
+                    count.incrementAndGet()));
+            rejectWorkers = new ThreadPoolExecutor(REJECT_THREADS, REJECT_THREADS, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(REJECT_QUEUE), r -> new Thread(r, "jNetworkInterfaceServer-reject"));
+            AtomicInteger pushCount = new AtomicInteger();
+            pushWorkers = new ThreadPoolExecutor(0, MAX_SUBSCRIBERS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                    r -> new Thread(r, "jNetworkInterfaceServer-push-" + pushCount.incrementAndGet()));
         }
-        // The main loop to listen for connections
-        while (!isStopped()) {
-            // Check for stop
-            if (isStopped()) {
-                System.out.println("Server stopped.");
-                return;
-            }
-            try {
-                Socket client = server.accept();
-                client.setSoTimeout(TIMEOUT);
-                logger.write("Received request from client, attempting to process.", ServerLogger.LOG_NOTICE);
-                synchronized (this) {
-                    requests++;
-                }
-                // Add the request to the queue.
-                if (currentThreadCount == maxThreads || taskQueue.size() == maxThreads) {
-                    // Print an error response.
-                    logger.write("The maximum number of tasks has been exceeded. Max tasks: " +
-                            maxThreads, ServerLogger.LOG_WARN);
-                    // Throw max connection error
-                    new Thread(new jNetworkInterfaceServerTask(client, this, true)).start();
-                } else {
-                    synchronized (this) {
-                        taskQueue.add(new jNetworkInterfaceServerTask(client, this));
-                    }
-                    // Start the task thread if needed.
-                    if (taskThread == null || !taskThread.isAlive()) {
-                        // Build a new thread
-                        Runnable task = () -> {
-                            while (!taskQueue.isEmpty()) {
-                                new Thread(taskQueue.poll()).start();
-                            }
-                        };
-                        taskThread = new Thread(task);
-                        taskThread.start();
-                    }
-                }
-            } catch (IOException ex) {
-                logger.write("Could not process the request from the client connection.", ServerLogger.LOG_ERROR);
-                throw new RuntimeException("Could not process request sent from client connection.");
+        diagnostics.start();
+        pushBroker.start(timer);
+        // Warm up before listening so the first clients do not pay for it.
+        warmUp.run();
+        List<jNetworkInterfaceServerAcceptor> group = buildAcceptors();
+        boolean stopped;
+        synchronized (this) {
+            stopped = isStopped;
+            if (!stopped) {
+                requests = 0;
+                acceptors = group;
+                startupTime = (System.nanoTime() - started) / 1000000;
             }
         }
+        if (stopped) {
+            // Shut down during warm-up, so close what started after shutdown() ran.
+            for (jNetworkInterfaceServerAcceptor acceptor : group)
+                acceptor.close();
+            pushBroker.close();
+            closeResources();
+            return;
+        }
+        logger.write("Server ready in " + startupTime + " ms, JVM up " +
+                ManagementFactory.getRuntimeMXBean().getUptime() + " ms.", ServerLogger.LOG_NOTICE);
+        // The first acceptor runs on this thread, the rest get their own.
+        for (int i = 1; i < group.size(); i++)
+            new Thread(group.get(i), "jNetworkInterfaceServer-acceptor-" + i).start();
+        group.get(0).run();
+        System.out.println("Server stopped.");
+    }
+
+    /**
+     * Get the startup warm-up, to set the requests it sends. Changes take
+     * effect the next time the server is run.
+     * @return Warm-up
+     */
+    public ServerWarmUp getWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * Get the time from run() to accepting connections, including warm-up.
+     * @return Time in MS, -1 if the server is not accepting connections yet
+     */
+    public synchronized long getStartupTime() {
+        return startupTime;
     }
 
     /**
@@ -233,6 +452,421 @@ public class jNetworkInterfaceServer implements Runnable {
         if (threads < 0)
             return;
         maxThreads = threads;
+        // Resize the running worker groups in place.
+        for (jNetworkInterfaceServerAcceptor acceptor : acceptors)
+            acceptor.resize(threads / acceptors.size());
+        if (streamWorkers != null)
+            streamWorkers.setMaximumPoolSize(Math.max(1, threads));
+    }
+
+    /**
+     * Get the number of acceptor threads.
+     * @return Acceptor count
+     */
+    public synchronized int getAcceptorCount() {
+        return acceptorCount;
+    }
+
+    /**
+     * Set the number of acceptor threads. The max thread count is split
+     * between their worker groups. Takes effect on the next run().
+     * @param count Acceptor count
+     */
+    public synchronized void setAcceptorCount(int count) {
+        if (count < 1)
+            return;
+        acceptorCount = count;
+    }
+
+    /**
+     * Give each acceptor its own listening socket bound with SO_REUSEPORT so
+     * the kernel spreads connections across them. Ignored where the platform
+     * does not support the option. Takes effect on the next run().
+     * @param reuse Use SO_REUSEPORT
+     */
+    public synchronized void setReusePort(boolean reuse) {
+        reusePort = reuse;
+    }
+
+    /**
+     * Set the listen backlog. Takes effect on the next run().
+     * @param backlog Backlog size
+     */
+    public synchronized void setBacklog(int backlog) {
+        if (backlog < 1)
+            return;
+        this.backlog = backlog;
+    }
+
+    /**
+     * Set TCP_NODELAY on client connections.
+     * @param noDelay Disable Nagle's algorithm
+     */
+    public synchronized void setTcpNoDelay(boolean noDelay) {
+        tcpNoDelay = noDelay;
+    }
+
+    /**
+     * Set SO_KEEPALIVE on client connections.
+     * @param keepAlive Keep alive
+     */
+    public synchronized void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Set the socket receive buffer size, 0 for the system default.
+     * @param size Size in bytes
+     */
+    public synchronized void setReceiveBufferSize(int size) {
+        if (size < 0)
+            return;
+        receiveBufferSize = size;
+    }
+
+    /**
+     * Set the socket send buffer size, 0 for the system default.
+     * @param size Size in bytes
+     */
+    public synchronized void setSendBufferSize(int size) {
+        if (size < 0)
+            return;
+        sendBufferSize = size;
+    }
+
+    /**
+     * Set how long a kept-open connection may wait for its next request
+     * before it is closed.
+     * @param timeout Time in MS, 0 for no limit
+     */
+    public synchronized void setIdleTimeout(int timeout) {
+        if (timeout < 0)
+            return;
+        idleTimeout = timeout;
+    }
+
+    /**
+     * Set how long a client has to send a request, both after connecting and
+     * once the request starts arriving.
+     * @param timeout Time in MS, 0 for no limit
+     */
+    public synchronized void setReadTimeout(int timeout) {
+        if (timeout < 0)
+            return;
+        readTimeout = timeout;
+    }
+
+    /**
+     * Set how long a response may take to write before the connection is
+     * closed.
+     * @param timeout Time in MS, 0 for no limit
+     */
+    public synchronized void setWriteTimeout(int timeout) {
+        if (timeout < 0)
+            return;
+        writeTimeout = timeout;
+    }
+
+    /**
+     * Get the idle timeout.
+     * @return Time in MS, 0 for no limit
+     */
+    public synchronized int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Get the read timeout.
+     * @return Time in MS, 0 for no limit
+     */
+    public synchronized int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Get the write timeout.
+     * @return Time in MS, 0 for no limit
+     */
+    public synchronized int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * Size the bounded executor for a priority class. Commands that arrive
+     * while the executor and its queue are full are rejected instead of
+     * waiting, so one class cannot tie up the whole server. Takes effect on
+     * the next run().
+     * @param priority Priority class, see CommandRegistry
+     * @param threads Number of threads
+     * @param queueSize Number of commands that may wait for a thread
+     */
+    public synchronized void setPriorityPool(String priority, int threads, int queueSize) {
+        if (!CommandRegistry.isPriority(priority) || threads < 1 || queueSize < 0)
+            return;
+        priorityQueues.put(priority, queueSize);
+        setPriorityThreads(priority, threads);
+    }
+
+    /**
+     * Set the thread count for a priority class. A running executor is
+     * resized in place.
+     * @param priority Priority class
+     * @param threads Thread count
+     */
+    public synchronized void setPriorityThreads(String priority, int threads) {
+        if (!CommandRegistry.isPriority(priority) || threads < 1)
+            return;
+        priorityThreads.put(priority, threads);
+        ThreadPoolExecutor executor = executors.get(priority);
+        if (executor != null)
+            resizePool(executor, threads);
+    }
+
+    /**
+     * Get the thread count for a priority class.
+     * @param priority Priority class
+     * @return Thread count, 0 if it is decided when the server runs
+     */
+    public synchronized int getPriorityThreads(String priority) {
+        ThreadPoolExecutor executor = executors.get(priority);
+        if (executor != null)
+            return executor.getMaximumPoolSize();
+        return priorityThreads.getOrDefault(priority, 0);
+    }
+
+    /**
+     * Set the file of extra command mappings. Takes effect on reloadCommands().
+     * @param path YAML file in the commands.yaml format, null for none
+     */
+    public synchronized void setCommandsFile(String path) {
+        commandsFile = path;
+    }
+
+    /**
+     * @return File of extra command mappings, null for none
+     */
+    public synchronized String getCommandsFile() {
+        return commandsFile;
+    }
+
+    /**
+     * Reload the command mappings. The new registry replaces the old one in
+     * one step, so each request sees either the old or the new commands.
+     */
+    public void reloadCommands() {
+        PluginManager plugins = getPluginManager();
+        CommandRegistry fresh = new CommandRegistry(logger, getCommandsFile(),
+                plugins == null ? Collections.emptyMap() : plugins.getCommands());
+        registry = fresh;
+        logger.write("Commands reloaded, " + fresh.getEntries().size() + " registered.", ServerLogger.LOG_NOTICE);
+    }
+
+    /**
+     * Load command plugins from a directory of jars. The directory is scanned
+     * again whenever the config is reloaded.
+     * @param directory Plugin directory, null to unload every plugin
+     */
+    public synchronized void setPluginDirectory(String directory) {
+        if (pluginManager != null)
+            pluginManager.close();
+        pluginManager = directory == null ? null : new PluginManager(directory, logger);
+        reloadPlugins();
+    }
+
+    /**
+     * @return Plugin jars, null if there is no plugin directory
+     */
+    public synchronized PluginManager getPluginManager() {
+        return pluginManager;
+    }
+
+    /**
+     * Scan the plugin directory for new, changed and removed jars, then
+     * reload the commands.
+     */
+    public void reloadPlugins() {
+        PluginManager plugins = getPluginManager();
+        if (plugins != null)
+            plugins.scan();
+        reloadCommands();
+    }
+
+    /**
+     * Get the live settings, to watch a config file or apply changes.
+     * @return Config
+     */
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Get the topics clients subscribe to, to publish or add feeds. The stats
+     * and ping topics are fed every second while they have subscribers.
+     * @return Broker
+     */
+    public PushBroker getPushBroker() {
+        return pushBroker;
+    }
+
+    /**
+     * Push a message to every subscriber of a topic.
+     * @param topic Topic
+     * @param message UTF-8 message
+     * @return Subscribers the message was queued for
+     */
+    public int publish(String topic, String message) {
+        return pushBroker.publish(topic, message);
+    }
+
+    /**
+     * Format the figures the stats command returns: start time, requests,
+     * and buffers in use, pooled and allocated.
+     * @return Stats line
+     */
+    public String formatStats() {
+        BufferPool pool = getBufferPool();
+        return getStartTime() + "," + getRequests() + "," + pool.getInUse() + "," + pool.getPooled() + "," +
+                pool.getAllocated();
+    }
+
+    /**
+     * @return Server logger
+     */
+    protected ServerLogger getLogger() {
+        return logger;
+    }
+
+    /**
+     * Resize a pool in place. The core size may not pass the maximum, so the
+     * order depends on the direction.
+     * @param pool Pool
+     * @param size Thread count
+     */
+    static void resizePool(ThreadPoolExecutor pool, int size) {
+        if (size > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
+        } else {
+            pool.setCorePoolSize(size);
+            pool.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Limit each client address to a request rate. Requests over the limit are
+     * rejected with a rate limit error.
+     * @param requestsPerSecond Sustained requests per second, 0 to disable
+     * @param burst Requests a client may send at once
+     */
+    public void setRateLimit(double requestsPerSecond, int burst) {
+        rateLimiter.setLimit(requestsPerSecond, burst);
+    }
+
+    /**
+     * Set the pool connection buffers are borrowed from. Takes effect for new
+     * connections.
+     * @param bufferPool Heap buffer pool
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        if (bufferPool.isDirect())
+            throw new IllegalArgumentException("Socket streams need a heap buffer pool.");
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Get the pool connection buffers are borrowed from.
+     * @return Buffer pool
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Record every answered request in a binary access log. The server closes
+     * the log on shutdown.
+     * @param accessLog Access log, null to stop logging
+     */
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    /**
+     * Get the access log.
+     * @return Access log or null
+     */
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * Set the scheduling weight of a client. When work is queued, a client
+     * with weight n is served up to n tasks per turn. The default is 1.
+     * @param client Client address
+     * @param weight Weight
+     */
+    public void setClientWeight(InetAddress client, int weight) {
+        if (weight < 1)
+            clientWeights.remove(client);
+        else
+            clientWeights.put(client, weight);
+    }
+
+    /**
+     * Get the command registry.
+     * @return Registry
+     */
+    protected CommandRegistry getCommandRegistry() {
+        return registry;
+    }
+
+    /**
+     * Get the executor for a priority class.
+     * @param priority Priority class
+     * @return Executor
+     */
+    protected synchronized ThreadPoolExecutor getExecutor(String priority) {
+        ThreadPoolExecutor executor = executors.get(priority);
+        return executor == null ? executors.get(CommandRegistry.PRIORITY_NORMAL) : executor;
+    }
+
+    /**
+     * Get the threads that serve the streams of multiplexed connections.
+     * @return Stream workers
+     */
+    protected synchronized ThreadPoolExecutor getStreamWorkers() {
+        return streamWorkers;
+    }
+
+    /**
+     * Get the threads that push to subscribers.
+     * @return Push workers
+     */
+    protected synchronized ThreadPoolExecutor getPushWorkers() {
+        return pushWorkers;
+    }
+
+    /**
+     * Get the threads that answer connections turned away at accept.
+     * @return Reject workers
+     */
+    protected synchronized ThreadPoolExecutor getRejectWorkers() {
+        return rejectWorkers;
+    }
+
+    /**
+     * Get the per-client rate limiter.
+     * @return Rate limiter
+     */
+    protected RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Get the client scheduling weights.
+     * @return Weights by address
+     */
+    protected Map<InetAddress, Integer> getClientWeights() {
+        return clientWeights;
     }
 
     /**
@@ -252,15 +886,187 @@ public class jNetworkInterfaceServer implements Runnable {
     }
 
     /**
-     * Stop the server.
+     * Stop the server. New connections are refused immediately, tasks already
+     * accepted keep running. Use shutdown() to wait for them.
      */
     public synchronized void stop() {
         isStopped = true;
         serverStarted = null;
         requests = 0;
+        for (jNetworkInterfaceServerAcceptor acceptor : acceptors)
+            acceptor.close();
         logger.write("jNetworkInterfaceServer stopped.", ServerLogger.LOG_NOTICE);
     }
 
+    /**
+     * Gracefully shut the server down using the default drain timeout.
+     * @return Number of tasks that were cut off
+     */
+    public int shutdown() {
+        return shutdown(DRAIN_TIMEOUT);
+    }
+
+    /**
+     * Gracefully shut the server down. Stops accepting connections, closes
+     * connections that have not sent a command yet and waits up to the timeout
+     * for in-flight commands to finish. Anything still running after that is
+     * cut off and logged.
+     * @param timeout Time in MS to wait for in-flight commands
+     * @return Number of tasks that were cut off
+     */
+    public int shutdown(long timeout) {
+        stop();
+        // Subscribers never finish on their own.
+        pushBroker.close();
+        List<jNetworkInterfaceServerAcceptor> group;
+        synchronized (this) {
+            group = acceptors;
+        }
+        // Before run() has started accepting there is nothing to drain.
+        int cutOff = 0;
+        if (!group.isEmpty()) {
+            logger.write("Draining " + activeTasks.size() + " task(s).", ServerLogger.LOG_NOTICE);
+            // Idle connections have no work in flight, so there is nothing to wait for.
+            for (jNetworkInterfaceServerTask task : activeTasks) {
+                if (task.isIdle())
+                    task.abort();
+            }
+            for (jNetworkInterfaceServerAcceptor acceptor : group)
+                acceptor.getWorkers().shutdown();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            try {
+                for (jNetworkInterfaceServerAcceptor acceptor : group)
+                    acceptor.getWorkers().awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            // Report and close whatever did not make the deadline.
+            for (jNetworkInterfaceServerTask task : activeTasks) {
+                if (task.isIdle())
+                    continue;
+                boolean queued = false;
+                for (jNetworkInterfaceServerAcceptor acceptor : group)
+                    queued |= acceptor.getWorkers().getQueue().contains(task);
+                logger.write("Task cut off by shutdown: " + task + (queued ? " (queued)" : ""), ServerLogger.LOG_WARN);
+                task.abort();
+                cutOff++;
+            }
+            for (jNetworkInterfaceServerAcceptor acceptor : group)
+                acceptor.getWorkers().shutdownNow();
+        }
+        closeResources();
+        logger.write("jNetworkInterfaceServer shut down. Tasks cut off: " + cutOff, ServerLogger.LOG_NOTICE);
+        return cutOff;
+    }
+
+    /**
+     * Stop the executors, timer and background services of a run. Safe to
+     * call more than once.
+     */
+    private void closeResources() {
+        synchronized (this) {
+            for (ThreadPoolExecutor executor : executors.values())
+                executor.shutdownNow();
+            if (streamWorkers != null)
+                streamWorkers.shutdownNow();
+            if (rejectWorkers != null)
+                rejectWorkers.shutdownNow();
+            if (pushWorkers != null)
+                pushWorkers.shutdownNow();
+        }
+        activeTasks.clear();
+        timer.stop();
+        diagnostics.stop();
+        config.stop();
+        synchronized (this) {
+            if (pluginManager != null)
+                pluginManager.close();
+            if (metricsExporter != null)
+                metricsExporter.stop();
+            metricsExporter = null;
+        }
+        AccessLog log = accessLog;
+        if (log != null)
+            log.close();
+    }
+
+    /**
+     * Get the request metrics.
+     * @return Metrics
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Serve the metrics over HTTP at /metrics in the Prometheus text format.
+     * The endpoint is stopped on shutdown.
+     * @param port Port to listen on, 0 for any free port
+     * @return Port the endpoint listens on
+     * @throws IOException If the port cannot be bound
+     */
+    public synchronized int startMetricsExporter(int port) throws IOException {
+        if (metricsExporter == null) {
+            metricsExporter = new MetricsExporter(metrics, port);
+            metricsExporter.start();
+            logger.write("Metrics served on port " + metricsExporter.getPort() + ".", ServerLogger.LOG_NOTICE);
+        }
+        return metricsExporter.getPort();
+    }
+
+    /**
+     * Get the diagnostics sampler, to read samples or change the interval.
+     * @return Sampler
+     */
+    public DiagnosticsSampler getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Get the number of tasks accepted and not yet finished.
+     * @return In-flight tasks
+     */
+    public int getInFlight() {
+        return activeTasks.size();
+    }
+
+    /**
+     * Get the number of tasks and commands waiting for a thread.
+     * @return Queue depth
+     */
+    public synchronized int getQueueDepth() {
+        int depth = 0;
+        for (jNetworkInterfaceServerAcceptor acceptor : acceptors)
+            depth += acceptor.getWorkers().getQueue().size();
+        for (ThreadPoolExecutor executor : executors.values())
+            depth += executor.getQueue().size();
+        return depth;
+    }
+
+    /**
+     * Get the timer for connection timeouts.
+     * @return Timer
+     */
+    protected HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Track a task that has been handed to a worker group.
+     * @param task Accepted task
+     */
+    protected void taskAccepted(jNetworkInterfaceServerTask task) {
+        activeTasks.add(task);
+    }
+
+    /**
+     * Remove a finished task from the active task set.
+     * @param task Finished task
+     */
+    protected void taskFinished(jNetworkInterfaceServerTask task) {
+        activeTasks.remove(task);
+    }
+
     /**
      * Stop accepting command requests from the server.
      */
@@ -318,15 +1124,143 @@ public class jNetworkInterfaceServer implements Runnable {
     }
 
     /**
-     * Build the socket connection.
+     * Count a request received by an acceptor.
+     */
+    protected synchronized void countRequest() {
+        requests++;
+    }
+
+    /**
+     * Determine if every worker slot is in use.
+     * @return Capacity status
+     */
+    protected synchronized boolean isAtCapacity() {
+        return currentThreadCount >= maxThreads;
+    }
+
+    /**
+     * Apply the configured socket options to a client connection.
+     * @param client Client socket
+     * @throws IOException
+     */
+    protected void configureSocket(Socket client) throws IOException {
+        boolean noDelay;
+        boolean alive;
+        int receive;
+        int send;
+        synchronized (this) {
+            noDelay = tcpNoDelay;
+            alive = keepAlive;
+            receive = receiveBufferSize;
+            send = sendBufferSize;
+        }
+        // Reads block until the task's timer closes the socket.
+        client.setSoTimeout(0);
+        client.setTcpNoDelay(noDelay);
+        client.setKeepAlive(alive);
+        if (receive > 0)
+            client.setReceiveBufferSize(receive);
+        if (send > 0)
+            client.setSendBufferSize(send);
+    }
+
+    /**
+     * Build the acceptors and their listening sockets.
+     * @return Acceptors
+     */
+    private synchronized List<jNetworkInterfaceServerAcceptor> buildAcceptors() {
+        SocketOption<Boolean> reuseOption = reusePort ? findReusePortOption() : null;
+        if (reusePort && reuseOption == null)
+            logger.write("SO_REUSEPORT is not supported, acceptors will share one socket.", ServerLogger.LOG_WARN);
+        int groupSize = maxThreads / acceptorCount;
+        List<jNetworkInterfaceServerAcceptor> group = new ArrayList<>();
+        ServerSocket shared = null;
+        for (int i = 0; i < acceptorCount; i++) {
+            ServerSocket listener;
+            if (reuseOption != null)
+                listener = buildSocket(reuseOption);
+            else {
+                if (shared == null)
+                    shared = buildSocket(null);
+                listener = shared;
+            }
+            group.add(new jNetworkInterfaceServerAcceptor(this, listener, groupSize, logger));
+        }
+        return group;
+    }
+
+    /**
+     * Build the bounded command executors. Control commands get a small pool
+     * of their own, bulk commands get a quarter of the max thread count and
+     * everything else shares the rest.
+     * @return Executors by priority class
+     */
+    private Map<String, ThreadPoolExecutor> buildExecutors() {
+        int threads = Math.max(1, maxThreads);
+        Map<String, ThreadPoolExecutor> pools = new HashMap<>();
+        pools.put(CommandRegistry.PRIORITY_CONTROL, buildExecutor(CommandRegistry.PRIORITY_CONTROL, 2, threads));
+        pools.put(CommandRegistry.PRIORITY_NORMAL, buildExecutor(CommandRegistry.PRIORITY_NORMAL, threads, threads));
+        pools.put(CommandRegistry.PRIORITY_BULK, buildExecutor(CommandRegistry.PRIORITY_BULK,
+                Math.max(1, threads / 4), Math.max(1, threads / 4)));
+        return pools;
+    }
+
+    /**
+     * Build one bounded executor.
+     * @param priority Priority class
+     * @param threads Default thread count
+     * @param queueSize Default queue size
+     * @return Executor
      */
-    private synchronized void buildSocket() {
+    private ThreadPoolExecutor buildExecutor(String priority, int threads, int queueSize) {
+        int size = priorityThreads.getOrDefault(priority, threads);
+        int queue = priorityQueues.getOrDefault(priority, queueSize);
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS,
+                queue == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queue),
+                r -> new Thread(r, "jNetworkInterfaceServer-" + priority + "-" + count.incrementAndGet()));
+    }
+
+    /**
+     * Build a listening socket.
+     * @param reuseOption SO_REUSEPORT option to enable, or null
+     * @return Listening socket
+     */
+    private ServerSocket buildSocket(SocketOption<Boolean> reuseOption) {
         try {
-            server = new ServerSocket(port);
+            ServerSocket listener;
+            if (reuseOption != null) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channel.setOption(reuseOption, true);
+                listener = channel.socket();
+            } else
+                listener = new ServerSocket();
+            // Buffer sizes above 64K must be set before bind to be advertised.
+            if (receiveBufferSize > 0)
+                listener.setReceiveBufferSize(receiveBufferSize);
+            listener.bind(new InetSocketAddress(port), backlog);
             logger.write("Server started.", ServerLogger.LOG_NOTICE);
+            return listener;
         } catch (IOException ex) {
             logger.write("Server socket could not be initialized.", ServerLogger.LOG_ERROR);
             throw new RuntimeException("Server socket could not be initialized.");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Look up SO_REUSEPORT. It is only exposed on JDK 9+ and some platforms.
+     * @return Socket option or null if unsupported
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePortOption() {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            for (SocketOption<?> option : channel.supportedOptions()) {
+                if (option.name().equals("SO_REUSEPORT"))
+                    return (SocketOption<Boolean>) option;
+            }
+        } catch (IOException ex) {
+            // Treat as unsupported.
+        }
+        return null;
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Jacob Gorney
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package jNetworking.jNetworkInterface;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts connections from one listening socket and hands them to its own
+ * worker group. The server runs one or more of these.
+ */
+class jNetworkInterfaceServerAcceptor implements Runnable {
+    /**
+     * A reference back to the server.
+     */
+    private jNetworkInterfaceServer serverRef;
+    /**
+     * Listening socket, possibly shared with other acceptors.
+     */
+    private ServerSocket listener;
+    /**
+     * Worker group that processes the tasks accepted here.
+     */
+    private ThreadPoolExecutor workers;
+    /**
+     * Number of workers in the group.
+     */
+    private volatile int groupSize;
+    /**
+     * Server logger.
+     */
+    private ServerLogger logger;
+    /**
+     * Lifecycle events.
+     */
+    private LifecycleEvents events = LifecycleEvents.get();
+
+    /**
+     * Class constructor.
+     * @param server Server that owns the acceptor
+     * @param listener Listening socket
+     * @param groupSize Number of worker threads
+     * @param logger Server logger
+     */
+    jNetworkInterfaceServerAcceptor(jNetworkInterfaceServer server, ServerSocket listener, int groupSize,
+                                    ServerLogger logger) {
+        this.serverRef = server;
+        this.listener = listener;
+        this.groupSize = Math.max(1, groupSize);
+        this.logger = logger;
+        this.workers = new ThreadPoolExecutor(this.groupSize, this.groupSize, 60, TimeUnit.SECONDS,
+                new FairTaskQueue(server.getClientWeights()));
+    }
+
+    @Override
+    public void run() {
+        while (!serverRef.isStopped()) {
+            try {
+                // Keep this loop short, socket setup and logging happen on the worker.
+                Socket client = listener.accept();
+                Object accepted = events.begin(LifecycleEvents.ACCEPT);
+                serverRef.countRequest();
+                serverRef.getMetrics().connectionAccepted();
+                if (!serverRef.getRateLimiter().tryAcquire(client.getInetAddress())) {
+                    reject(new jNetworkInterfaceServerTask(client, serverRef, false, true));
+                } else if (serverRef.isAtCapacity() || workers.getQueue().size() >= groupSize) {
+                    logger.write("The maximum number of tasks has been exceeded. Max tasks: " +
+                            serverRef.getMaxThreads(), ServerLogger.LOG_WARN);
+                    // Throw max connection error
+                    reject(new jNetworkInterfaceServerTask(client, serverRef, true));
+                } else {
+                    jNetworkInterfaceServerTask task = new jNetworkInterfaceServerTask(client, serverRef);
+                    serverRef.taskAccepted(task);
+                    Object queued = events.begin(LifecycleEvents.ENQUEUE);
+                    workers.execute(task);
+                    events.commit(queued, null, client.getInetAddress(), workers.getQueue().size(), 0);
+                }
+                events.commit(accepted, null, client.getInetAddress(), 0, 0);
+            } catch (IOException ex) {
+                // Closing the listening socket is how stop() breaks out of accept().
+                if (serverRef.isStopped())
+                    break;
+                logger.write("Could not process the request from the client connection.", ServerLogger.LOG_ERROR);
+                throw new RuntimeException("Could not process request sent from client connection.");
+            }
+        }
+    }
+
+    /**
+     * Hand a turned away connection to the reject workers, which answer it
+     * with an error. When they are backed up the connection is closed
+     * instead, so rejected clients cannot tie up more threads.
+     * @param task Rejecting task
+     */
+    private void reject(jNetworkInterfaceServerTask task) {
+        try {
+            serverRef.getRejectWorkers().execute(task);
+        } catch (RejectedExecutionException ex) {
+            task.abort();
+        }
+    }
+
+    /**
+     * Resize the worker group. Running tasks are not interrupted.
+     * @param size Number of worker threads
+     */
+    void resize(int size) {
+        groupSize = Math.max(1, size);
+        jNetworkInterfaceServer.resizePool(workers, groupSize);
+    }
+
+    /**
+     * Get the worker group.
+     * @return Worker pool
+     */
+    ThreadPoolExecutor getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Close the listening socket.
+     */
+    void close() {
+        try {
+            listener.close();
+        } catch (IOException ex) {
+            logger.write("Server socket could not be closed.", ServerLogger.LOG_ERROR);
+        }
+    }
+}
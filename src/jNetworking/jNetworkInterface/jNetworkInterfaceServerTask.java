@@ -24,14 +24,16 @@
 
 package jNetworking.jNetworkInterface;
 
-import com.esotericsoftware.yamlbeans.YamlReader;
-
 import java.io.*;
-import java.lang.reflect.*;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Class responsible for processing the commands sent to the server.
@@ -49,6 +51,50 @@ public class jNetworkInterfaceServerTask implements Runnable {
      * Invalid command response code.
      */
     public static final String RESPONSE_INVALID = "INVALID";
+    /**
+     * Max capacity response.
+     */
+    public static final String RESPONSE_CAPACITY = "Error: Server has reached maximum capacity.";
+    /**
+     * Line that ends a response on a keep-alive connection when the client
+     * did not ask for the response envelope.
+     */
+    public static final String END_RESPONSE = "END RESPONSE";
+    /**
+     * Response sent when a command runs past its deadline.
+     */
+    public static final String RESPONSE_TIMEOUT = "TIMEOUT";
+    /**
+     * Size of the pooled connection buffers.
+     */
+    private static final int STREAM_BUFFER = 8192;
+    /**
+     * Timeout names.
+     */
+    private static final String TIMEOUT_IDLE = "idle";
+    private static final String TIMEOUT_READ = "read";
+    private static final String TIMEOUT_WRITE = "write";
+    /**
+     * Time in MS between checks for a deadline or a disconnected client
+     * while a command runs.
+     */
+    private static final long CANCEL_POLL = 50;
+    /**
+     * Time in MS a connection turned away at accept has to send its request.
+     */
+    private static final long REJECT_READ_TIMEOUT = 1000;
+    /**
+     * Paused server response.
+     */
+    public static final String RESPONSE_PAUSED = "Error: Server is paused.";
+    /**
+     * Rate limited response.
+     */
+    public static final String RESPONSE_RATE_LIMITED = "Error: Too many requests.";
+    /**
+     * Response to a request body in the java codec.
+     */
+    public static final String RESPONSE_CODEC_REFUSED = "Error: The java codec is not accepted for requests.";
     /**
      * Socket to process.
      */
@@ -61,10 +107,68 @@ public class jNetworkInterfaceServerTask implements Runnable {
      * Max thread indicator.
      */
     private boolean isMaxThreads;
+    /**
+     * Rate limit indicator. Rate limited tasks are rejected like max thread
+     * tasks; on a kept-open connection it is set again for each request.
+     */
+    private boolean isRateLimited;
     /**
      * Server logger object.
      */
     private ServerLogger logger;
+    /**
+     * Waiting for the first line of the request.
+     */
+    private volatile boolean isReading;
+    /**
+     * Command being processed, empty until it has been read.
+     */
+    private volatile String command = "";
+    /**
+     * Headers sent on the request line as key=value pairs.
+     */
+    private Map<String, String> headers = new HashMap<>();
+    /**
+     * Number of requests answered on this connection.
+     */
+    private int served;
+    /**
+     * Set when the server closed the connection out from under the task.
+     */
+    private volatile boolean isAborted;
+    /**
+     * Timeout that closed the connection, null if none did.
+     */
+    private volatile String expired;
+    /**
+     * Times the current command started and finished running.
+     */
+    private volatile long execStarted;
+    private volatile long execFinished;
+    /**
+     * Lifecycle events.
+     */
+    private LifecycleEvents events = LifecycleEvents.get();
+    /**
+     * Dequeue event started when the task was queued, null if not recorded.
+     */
+    private Object queuedEvent;
+    /**
+     * Stream this task serves, null for a connection task.
+     */
+    private StreamMux.Stream stream;
+    /**
+     * Parser for the connection's requests, null for a stream task.
+     */
+    private volatile RequestParser requestIn;
+    /**
+     * Task that owns the connection, for a stream task.
+     */
+    private jNetworkInterfaceServerTask connection;
+    /**
+     * Streams on this connection once the client has switched to them.
+     */
+    private volatile StreamMux mux;
 
     /**
      * Class constructor that takes an open socket connection.
@@ -75,6 +179,7 @@ public class jNetworkInterfaceServerTask implements Runnable {
         socket = s;
         serverRef = server;
         isMaxThreads = false;
+        queuedEvent = events.begin(LifecycleEvents.DEQUEUE);
         if (LogLocation.getLocation() != null)
             logger = new ServerLogger(LogLocation.getLocation(), ServerLogger.LOG_ALL);
         else
@@ -82,7 +187,21 @@ public class jNetworkInterfaceServerTask implements Runnable {
     }
 
     public jNetworkInterfaceServerTask(Socket s, jNetworkInterfaceServer server, boolean isMaxThreads) {
-        this.isMaxThreads = isMaxThreads;
+        this(s, server, isMaxThreads, false);
+    }
+
+    /**
+     * Class constructor for a task that is rejected before it runs.
+     *
+     * @param s Socket
+     * @param server Server
+     * @param isMaxThreads Rejected because the server is at capacity
+     * @param isRateLimited Rejected because the client exceeded its rate limit
+     */
+    public jNetworkInterfaceServerTask(Socket s, jNetworkInterfaceServer server, boolean isMaxThreads,
+                                       boolean isRateLimited) {
+        this.isMaxThreads = isMaxThreads || isRateLimited;
+        this.isRateLimited = isRateLimited;
         socket = s;
         serverRef = server;
         if (LogLocation.getLocation() != null)
@@ -91,118 +210,853 @@ public class jNetworkInterfaceServerTask implements Runnable {
             logger = new ServerLogger();
     }
 
+    /**
+     * Class constructor for one stream of a multiplexed connection.
+     *
+     * @param connection Task that owns the connection
+     * @param stream Stream to serve
+     * @param isMaxThreads Rejected because the server is at capacity
+     * @param isRateLimited Rejected because the client exceeded its rate limit
+     */
+    jNetworkInterfaceServerTask(jNetworkInterfaceServerTask connection, StreamMux.Stream stream,
+                                boolean isMaxThreads, boolean isRateLimited) {
+        this(connection.socket, connection.serverRef, isMaxThreads, isRateLimited);
+        this.connection = connection;
+        this.stream = stream;
+    }
+
     @Override
     public void run() {
-        performCommand();
+        events.commit(queuedEvent, null, socket.getInetAddress(), 0, 0);
+        try {
+            if (stream != null)
+                performStream();
+            else
+                performCommand();
+        } finally {
+            serverRef.taskFinished(this);
+        }
+    }
+
+    /**
+     * Determine if the task is waiting on a client that has not sent a request.
+     * @return Idle status
+     */
+    protected boolean isIdle() {
+        if (!isReading)
+            return false;
+        try {
+            return socket.getInputStream().available() == 0;
+        } catch (IOException ex) {
+            return true;
+        }
+    }
+
+    /**
+     * Close the connection without sending a response.
+     */
+    protected void abort() {
+        isAborted = true;
+        if (stream != null) {
+            stream.reset();
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Already closed.
+        }
+    }
+
+    /**
+     * Get the address of the client.
+     * @return Client address
+     */
+    public InetAddress getClientAddress() {
+        return socket.getInetAddress();
+    }
+
+    @Override
+    public String toString() {
+        return socket.getRemoteSocketAddress() + (stream == null ? "" : " stream " + stream.getId()) +
+                (command.isEmpty() ? "" : " '" + command + "'");
     }
 
     /**
      * Perform a server command.
      */
     private void performCommand() {
-        if (!isMaxThreads && !serverRef.isPaused())
+        RequestParser socketIn = null;
+        PooledOutputStream socketOut = null;
+        boolean counted = !isMaxThreads && !serverRef.isPaused();
+        if (counted)
             serverRef.incrementResources();
         try {
-            BufferedReader socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream(),
-                    StandardCharsets.UTF_8));
-            String command = "";
-            ArrayList<String> data = new ArrayList<>();
-            // Read the data
-            String line;
-            while ((line = socketIn.readLine()) != null) {
-                // This is the first check so it must be a command
-                if (command.isEmpty())
-                    // Read command first
-                    command = line.toLowerCase().trim();
-                else {
-                    // Break the reader loop and process the response
-                    if (line.equals("END COMMAND"))
-                        break;
-                    // Append data
-                    data.add(line);
+            serverRef.configureSocket(socket);
+            if (!isMaxThreads)
+                logger.write("Received request from client, attempting to process.", ServerLogger.LOG_NOTICE);
+            BufferPool pool = serverRef.getBufferPool();
+            socketIn = new RequestParser(socket.getInputStream(), pool, STREAM_BUFFER);
+            requestIn = socketIn;
+            headers = socketIn.getHeaders();
+            socketOut = new PooledOutputStream(socket.getOutputStream(), pool, STREAM_BUFFER);
+            boolean keepAlive;
+            // Connections turned away at accept get one answer and are closed.
+            boolean rejected = isMaxThreads || isRateLimited;
+            do {
+                command = "";
+                // Wait for the request
+                isReading = true;
+                HashedWheelTimer.Timeout timeout = served > 0 ?
+                        arm(TIMEOUT_IDLE, serverRef.getIdleTimeout()) : arm(TIMEOUT_READ, getReadTimeout());
+                boolean arrived;
+                try {
+                    arrived = socketIn.await();
+                } finally {
+                    disarm(timeout);
                 }
-            }
-            // Send a normal server command.
-            sendCommand(command, data);
-            // This is commented out because the sendCommand closes the
-            // socket anyways and the GC will take care of the rest.
+                isReading = false;
+                // A keep-alive client hanging up between requests is not an error.
+                if (!arrived && served > 0)
+                    break;
+                // Parse the request in place
+                timeout = arm(TIMEOUT_READ, getReadTimeout());
+                Object lookup = events.begin(LifecycleEvents.LOOKUP);
+                try {
+                    if (!socketIn.next(serverRef.getCommandRegistry()))
+                        headers.clear();
+                } finally {
+                    disarm(timeout);
+                }
+                command = socketIn.getCommand();
+                events.commit(lookup, command, socket.getInetAddress(),
+                        socketIn.getDataBytes() + socketIn.getBodyLength(), 0);
+                // The first request was limited at accept, later ones on a kept-open connection here.
+                if (served > 0)
+                    isRateLimited = !serverRef.getRateLimiter().tryAcquire(socket.getInetAddress());
+                keepAlive = !rejected && "1".equals(headers.get("keepalive"));
+                if (!isMaxThreads && !isRateLimited && command.equals(StreamMux.UPGRADE)) {
+                    served++;
+                    serveStreams(socketOut);
+                    break;
+                }
+                if (!isMaxThreads && !isRateLimited && !serverRef.isPaused() &&
+                        command.equals(PushBroker.SUBSCRIBE)) {
+                    served++;
+                    if (detachPush(socketIn, socketOut)) {
+                        // The push worker owns the connection and its buffers now.
+                        socketIn = null;
+                        socketOut = null;
+                        return;
+                    }
+                    break;
+                }
+                // Send a normal server command.
+                ServerMetrics metrics = serverRef.getMetrics();
+                metrics.requestStarted();
+                try {
+                    sendCommand(socketIn, socketOut, keepAlive);
+                } finally {
+                    metrics.requestEnded();
+                }
+                served++;
+            } while (keepAlive && !serverRef.isStopped());
+            // Close the connections
+            socketOut.close();
+            socket.close();
         } catch (IOException ex) {
             // ex.printStackTrace();
-            if (!isMaxThreads && !serverRef.isPaused())
-                serverRef.decrementResources();
+            if (isAborted)
+                return;
+            if (expired != null) {
+                if (!expired.equals(TIMEOUT_IDLE))
+                    logger.write("Closed " + socket.getRemoteSocketAddress() + " after the " + expired + " timeout.",
+                            ServerLogger.LOG_WARN);
+                return;
+            }
+            if (isReading && served > 0) {
+                // Keep-alive connection sat idle past the socket timeout.
+                abort();
+                return;
+            }
             logger.write("Could not execute command.", ServerLogger.LOG_ERROR);
             throw new RuntimeException("Could not execute command.");
+        } finally {
+            // Buffers go back to the pool on the thread that used them.
+            if (socketIn != null)
+                socketIn.release();
+            if (socketOut != null)
+                socketOut.release();
+            if (counted)
+                serverRef.decrementResources();
+        }
+    }
+
+    /**
+     * Serve one stream of a multiplexed connection: read its request, run
+     * the command and answer on the stream.
+     */
+    private void performStream() {
+        RequestParser streamIn = null;
+        boolean counted = !isMaxThreads && !serverRef.isPaused();
+        if (counted)
+            serverRef.incrementResources();
+        try {
+            streamIn = new RequestParser(stream.getInputStream(), serverRef.getBufferPool(), STREAM_BUFFER);
+            headers = streamIn.getHeaders();
+            // Rejected streams are answered by the connection's reader, which
+            // cannot wait for the request.
+            if (!isMaxThreads) {
+                HashedWheelTimer.Timeout timeout = arm(TIMEOUT_READ, serverRef.getReadTimeout());
+                Object lookup = events.begin(LifecycleEvents.LOOKUP);
+                try {
+                    if (!streamIn.next(serverRef.getCommandRegistry()))
+                        headers.clear();
+                } finally {
+                    disarm(timeout);
+                }
+                command = streamIn.getCommand();
+                events.commit(lookup, command, socket.getInetAddress(),
+                        streamIn.getDataBytes() + streamIn.getBodyLength(), 0);
+            }
+            if (!isMaxThreads && !serverRef.isPaused() && command.equals(PushBroker.SUBSCRIBE)) {
+                if (detachPush(streamIn, stream.getOutputStream())) {
+                    streamIn = null;
+                    return;
+                }
+            } else {
+                ServerMetrics metrics = serverRef.getMetrics();
+                metrics.requestStarted();
+                try {
+                    sendCommand(streamIn, stream.getOutputStream(), false);
+                } finally {
+                    metrics.requestEnded();
+                }
+            }
+            stream.getOutputStream().close();
+            if (isMaxThreads)
+                stream.reset();
+        } catch (IOException ex) {
+            stream.reset();
+            if (!isAborted && expired == null)
+                logger.write("Stream " + stream.getId() + " from " + socket.getRemoteSocketAddress() +
+                        " failed: " + ex.getMessage(), ServerLogger.LOG_WARN);
+        } finally {
+            if (streamIn != null)
+                streamIn.release();
+            if (counted)
+                serverRef.decrementResources();
+            // A draining server closes the connection once its last stream is done.
+            StreamMux current = connection.mux;
+            if (serverRef.isStopped() && current != null && current.getStreamCount() == 0)
+                connection.abort();
+        }
+    }
+
+    /**
+     * Switch the connection to streams and read frames until it closes.
+     * Each stream the client opens is served by a task of its own. A bad
+     * window is refused with 400 and the connection is closed.
+     * @param socketOut Connection output
+     * @throws IOException If the connection fails
+     */
+    private void serveStreams(PooledOutputStream socketOut) throws IOException {
+        int window = StreamMux.parseWindow(headers.get(StreamMux.HEADER_WINDOW));
+        if (window < 0) {
+            new Response(Response.STATUS_NO_COMMAND, "Stream window must be 1 to " + StreamMux.MAX_WINDOW + " bytes.")
+                    .write(socketOut);
+            socketOut.flush();
+            return;
+        }
+        Response accepted = new Response(Response.STATUS_OK, StreamMux.UPGRADE)
+                .setHeader(StreamMux.HEADER_WINDOW, Integer.toString(StreamMux.WINDOW));
+        accepted.write(socketOut);
+        socketOut.flush();
+        PooledInputStream frames = new PooledInputStream(socket.getInputStream(), serverRef.getBufferPool(),
+                STREAM_BUFFER);
+        StreamMux current = new StreamMux(frames, socketOut, false, window);
+        mux = current;
+        logger.write("Client " + socket.getRemoteSocketAddress() + " switched to streams.", ServerLogger.LOG_NOTICE);
+        try {
+            while (!current.isClosed()) {
+                // Only a connection without open streams is idle.
+                isReading = current.getStreamCount() == 0;
+                HashedWheelTimer.Timeout timeout = isReading ? arm(TIMEOUT_IDLE, serverRef.getIdleTimeout()) : null;
+                StreamMux.Stream opened;
+                try {
+                    opened = current.readFrame();
+                } finally {
+                    disarm(timeout);
+                }
+                isReading = false;
+                if (opened != null)
+                    startStream(opened);
+            }
+        } finally {
+            current.close();
+            frames.release();
+        }
+    }
+
+    /**
+     * Hand a new stream to a stream worker. Streams over the rate limit or
+     * the server's capacity are answered by a reject worker, since writing
+     * the answer can wait on window credit that only this thread reads.
+     * @param opened Stream
+     */
+    private void startStream(StreamMux.Stream opened) {
+        serverRef.countRequest();
+        boolean limited = !serverRef.getRateLimiter().tryAcquire(socket.getInetAddress());
+        if (!limited && !serverRef.isAtCapacity()) {
+            jNetworkInterfaceServerTask task = new jNetworkInterfaceServerTask(this, opened, false, false);
+            serverRef.taskAccepted(task);
+            try {
+                serverRef.getStreamWorkers().execute(task);
+                return;
+            } catch (RejectedExecutionException ex) {
+                serverRef.taskFinished(task);
+            }
+        }
+        if (!limited)
+            logger.write("The maximum number of tasks has been exceeded. Max tasks: " + serverRef.getMaxThreads(),
+                    ServerLogger.LOG_WARN);
+        try {
+            serverRef.getRejectWorkers().execute(new jNetworkInterfaceServerTask(this, opened, true, limited));
+        } catch (RejectedExecutionException ex) {
+            // Too many answers are already waiting, so just drop the stream.
+            opened.reset();
+        }
+    }
+
+    /**
+     * Hand a subscription to a push worker, so it holds neither this worker
+     * nor a capacity slot while it lasts. The push worker closes the
+     * connection or stream and releases its buffers when it ends.
+     * @param request Parsed subscribe request
+     * @param out Connection or stream output
+     * @return False if every push worker is busy and the client was told so
+     * @throws IOException If the refusal cannot be written
+     */
+    private boolean detachPush(RequestParser request, OutputStream out) throws IOException {
+        try {
+            serverRef.getPushWorkers().execute(() -> pushDetached(request, out));
+            return true;
+        } catch (RejectedExecutionException ex) {
+            logger.write("No capacity left for subscriptions.", ServerLogger.LOG_WARN);
+            HashedWheelTimer.Timeout timeout = arm(TIMEOUT_WRITE, serverRef.getWriteTimeout());
+            try {
+                new Response(Response.STATUS_CAPACITY, RESPONSE_CAPACITY).write(out);
+                out.flush();
+            } finally {
+                disarm(timeout);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Serve a subscription on a push worker, then close it.
+     * @param request Parsed subscribe request
+     * @param out Connection or stream output
+     */
+    private void pushDetached(RequestParser request, OutputStream out) {
+        try {
+            servePush(request, out);
+            out.close();
+            if (stream == null)
+                socket.close();
+        } catch (IOException ex) {
+            if (!isAborted && expired != null)
+                logger.write("Closed " + this + " after the " + expired + " timeout.", ServerLogger.LOG_WARN);
+            abort();
+        } finally {
+            request.release();
+            if (out instanceof PooledOutputStream)
+                ((PooledOutputStream) out).release();
+        }
+    }
+
+    /**
+     * Answer a subscribe request, then push the subscribed topics until the
+     * client leaves, falls too far behind or the server shuts down.
+     * Everything queued between writes goes out with one flush.
+     * @param request Parsed subscribe request, one topic per data line
+     * @param out Connection or stream output
+     * @throws IOException If a write times out
+     */
+    private void servePush(RequestParser request, OutputStream out) throws IOException {
+        long parsed = System.nanoTime();
+        PushBroker broker = serverRef.getPushBroker();
+        String policy = headers.getOrDefault(PushBroker.HEADER_POLICY, PushBroker.POLICY_DROP).toLowerCase();
+        PushBroker.Subscriber subscriber = null;
+        Response answer;
+        try {
+            String queue = headers.getOrDefault(PushBroker.HEADER_QUEUE, Integer.toString(PushBroker.QUEUE));
+            subscriber = broker.subscribe(toString(), request.getData(), policy, Integer.parseInt(queue));
+            answer = new Response(Response.STATUS_OK, "Subscribed to " + String.join(",", subscriber.getTopics()) +
+                    ".").setHeader(PushBroker.HEADER_POLICY, policy).setHeader(PushBroker.HEADER_QUEUE, queue)
+                    .setHeader("heartbeat", Long.toString(PushBroker.HEARTBEAT));
+        } catch (NumberFormatException ex) {
+            answer = new Response(Response.STATUS_NO_COMMAND, "Error: Invalid queue size.");
+        } catch (IllegalArgumentException ex) {
+            answer = new Response(Response.STATUS_NO_COMMAND, "Error: " + ex.getMessage());
+        } catch (IllegalStateException ex) {
+            // The broker closes when the server shuts down.
+            answer = new Response(Response.STATUS_CAPACITY, RESPONSE_CAPACITY);
+        }
+        try {
+            HashedWheelTimer.Timeout timeout = arm(TIMEOUT_WRITE, serverRef.getWriteTimeout());
+            try {
+                answer.write(out);
+                out.flush();
+            } finally {
+                disarm(timeout);
+            }
+            serverRef.getMetrics().requestFinished(PushBroker.SUBSCRIBE, answer.getStatus(),
+                    System.nanoTime() - parsed, request.getDataBytes(), answer.getBody().length);
+            if (subscriber == null)
+                return;
+            while (true) {
+                List<byte[]> batch = subscriber.take(PushBroker.HEARTBEAT);
+                if (batch == null)
+                    break;
+                int dropped = subscriber.takeDropped();
+                // A quiet subscriber may have hung up without a word.
+                if (batch.isEmpty() && dropped == 0 && isClientGone()) {
+                    abort();
+                    return;
+                }
+                timeout = arm(TIMEOUT_WRITE, serverRef.getWriteTimeout());
+                try {
+                    // Heartbeat, or word of what the drop policy discarded.
+                    if (batch.isEmpty() || dropped > 0) {
+                        Response notice = new Response(Response.STATUS_EMPTY, (byte[]) null);
+                        if (dropped > 0)
+                            notice.setHeader(PushBroker.HEADER_DROPPED, Integer.toString(dropped));
+                        notice.write(out);
+                    }
+                    for (byte[] message : batch)
+                        out.write(message);
+                    out.flush();
+                } finally {
+                    disarm(timeout);
+                }
+            }
+            if (subscriber.isEvicted())
+                abort();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            // A stalled write is reported by the caller, a client that left is not an error.
+            if (expired != null)
+                throw ex;
+            abort();
+        } finally {
+            if (subscriber != null) {
+                broker.unsubscribe(subscriber);
+                logger.write(this + " unsubscribed.", ServerLogger.LOG_NOTICE);
+            }
         }
     }
 
     /**
      * Process a normal server command.
-     * @param command Command to execute
-     * @param data Data to process
+     * @param request Parsed request
+     * @param socketOut Response stream
+     * @param keepAlive Mark the end of the response so the connection can be reused
      * @throws IOException
      */
-    private void sendCommand(String command, ArrayList<String> data) throws IOException {
+    private void sendCommand(RequestParser request, OutputStream socketOut, boolean keepAlive)
+            throws IOException {
         // Build the response
-        String responseData;
+        long parsed = System.nanoTime();
+        long arrived = System.currentTimeMillis();
+        execStarted = execFinished = 0;
+        // Continue the caller's trace, under a server span if tracing is on.
+        TraceContext parent = TraceContext.parse(headers.get(TraceContext.HEADER));
+        Span span = Tracing.start(command, parent, parsed);
+        TraceContext trace = span != null ? span.getContext() : parent;
+        Response response;
         // Check for server stats, version, and name commands. These are defaults
         if (serverRef.isPaused() && !command.equals("unpause")) {
             logger.write("Server is paused.", ServerLogger.LOG_WARN);
-            responseData = "Error: Server is paused.";
-        } else if (isMaxThreads) {
-            // Handle max thread error
+            response = new Response(Response.STATUS_PAUSED, RESPONSE_PAUSED);
+        } else if (isRateLimited) {
+            logger.write("Client " + socket.getInetAddress() + " exceeded its rate limit.", ServerLogger.LOG_WARN);
+            response = new Response(Response.STATUS_RATE_LIMITED, RESPONSE_RATE_LIMITED);
+        } else if (isMaxThreads && !isControl(request)) {
+            // Handle max thread error, control commands still run on the reject workers
             logger.write("Server has reached maximum capacity..", ServerLogger.LOG_WARN);
-            responseData = "Error: Server has reached maximum capacity.";
+            response = new Response(Response.STATUS_CAPACITY, RESPONSE_CAPACITY);
         } else if (command.equals("")) {
             logger.write("Server did not receive a command.", ServerLogger.LOG_WARN);
-            responseData = "Error: No command.";
-        } else if (command.equals("stats")) {
-            logger.write("Executing command '" + command.toLowerCase() + "'", ServerLogger.LOG_NOTICE);
-            responseData = serverRef.getStartTime().toString() + "," + serverRef.getRequests();
-        } else if (command.equals("version")) {
-            logger.write("Executing command '" + command.toLowerCase() + "'.", ServerLogger.LOG_NOTICE);
-            responseData = "jNetworkInterfaceServer " + jNetworkInterfaceServer.VERSION_MAJOR + "." +
-                    jNetworkInterfaceServer.VERSION_MINOR + "." +
-                    jNetworkInterfaceServer.VERSION_REVISION;
-        } else if (command.equals("pause")) {
-            serverRef.pause();
-            logger.write("Server paused.", ServerLogger.LOG_NOTICE);
-            responseData = "Server paused.";
-        } else if (command.equals("unpause")) {
-            serverRef.unpause();
-            logger.write("Server unpaused.", ServerLogger.LOG_NOTICE);
-            responseData = "Server Unpaused.";
+            response = new Response(Response.STATUS_NO_COMMAND, "Error: No command.");
+        } else if (request.getBodyLength() > 0 && Codecs.get(headers.get("codec")) instanceof SerializableCodec) {
+            // Deserializing would build whatever object graph the client chose.
+            logger.write("Refused a serialized request body from " + socket.getInetAddress() + ".",
+                    ServerLogger.LOG_WARN);
+            response = new Response(Response.STATUS_NO_COMMAND, RESPONSE_CODEC_REFUSED);
         } else {
-            try {
-                // Create the command
-                // Get the command
-                YamlReader reader = new YamlReader(
-                        new InputStreamReader(getClass().getResourceAsStream("commands.yaml"), StandardCharsets.UTF_8));
-                Map map = (Map)reader.read();
-                // Load the command
-                String classCommand = command.toLowerCase().trim();
-                String className = (String)map.get(classCommand);
-                Class<?> commandObj = Class.forName("jNetworking.jNetworkInterface.Commands." + className);
-                Constructor<?> cs = commandObj.getConstructor();
-                Command cmd = (Command) cs.newInstance();
-                // Execute the command
-                logger.write("Executing command '" + command.toLowerCase() + "'.", ServerLogger.LOG_NOTICE);
-                cmd.setup(data, socket);
-                responseData = cmd.run();
-            } catch (Exception ex) {
-                // ex.printStackTrace();
-                logger.write("Error executing command '" + command.toLowerCase() + "'", ServerLogger.LOG_ERROR);
-                responseData = RESPONSE_INVALID;
+            CommandRegistry.Entry entry = request.getEntry();
+            if (entry != null && CommandRegistry.isAdmin(entry.getName()) && !serverRef.getConfig()
+                    .isAuthorized(socket.getInetAddress(), headers.get(ServerConfig.HEADER_TOKEN))) {
+                // Answered like an unknown command so the admin commands stay hidden.
+                logger.write("Refused admin command '" + command + "' from " + socket.getInetAddress() + ".",
+                        ServerLogger.LOG_WARN);
+                response = new Response(Response.STATUS_INVALID, RESPONSE_INVALID);
+            } else if (entry == null) {
+                logger.write("Error executing command '" + command + "'", ServerLogger.LOG_ERROR);
+                response = new Response(Response.STATUS_INVALID, RESPONSE_INVALID);
+            } else {
+                // Run on the executor for the command's priority class so slow
+                // commands cannot hold up cheap ones.
+                Object instance = null;
+                // Set by whichever of the command and this thread releases the plugin.
+                AtomicBoolean claimed = new AtomicBoolean(true);
+                try {
+                    instance = entry.isBuiltIn() ? null : entry.newInstance();
+                    if (!PluginManager.acquire(instance))
+                        throw new ClassNotFoundException(entry.getName() + " was unloaded.");
+                    claimed.set(false);
+                    Object command = instance;
+                    // Only decode what the command will read, before the buffer is reused.
+                    ArrayList<String> data = entry.isBuiltIn() || instance instanceof Command ?
+                            request.getData() : null;
+                    byte[] body = instance instanceof TypedCommand ? request.getBody() : null;
+                    Future<Response> result = serverRef.getExecutor(entry.getPriority()).submit(() -> {
+                        // A command cancelled before it started leaves the release to the connection.
+                        if (!claimed.compareAndSet(false, true))
+                            return null;
+                        execStarted = System.nanoTime();
+                        Object execute = events.begin(LifecycleEvents.EXECUTE);
+                        TraceContext previous = TraceContext.setCurrent(trace);
+                        Response ran = null;
+                        try {
+                            ran = runCommand(entry, command, data, body);
+                            return ran;
+                        } finally {
+                            PluginManager.release(command);
+                            execFinished = System.nanoTime();
+                            TraceContext.setCurrent(previous);
+                            events.commit(execute, entry.getName(), socket.getInetAddress(),
+                                    ran == null ? 0 : ran.getBody().length,
+                                    ran == null ? Response.STATUS_ERROR : ran.getStatus());
+                        }
+                    });
+                    response = awaitCommand(result, getTimeout(entry));
+                } catch (RejectedExecutionException ex) {
+                    logger.write("No capacity left for '" + entry.getPriority() + "' commands.",
+                            ServerLogger.LOG_WARN);
+                    response = new Response(Response.STATUS_CAPACITY, RESPONSE_CAPACITY);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    response = new Response(Response.STATUS_ERROR, RESPONSE_ERROR);
+                } catch (ExecutionException | ReflectiveOperationException ex) {
+                    logger.write("Error executing command '" + command + "'", ServerLogger.LOG_ERROR);
+                    response = new Response(Response.STATUS_ERROR, RESPONSE_INVALID);
+                } finally {
+                    if (claimed.compareAndSet(false, true))
+                        PluginManager.release(instance);
+                }
             }
         }
         // Write the response
-        PrintWriter socketOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(),
-                StandardCharsets.UTF_8), true);
-        socketOut.println(responseData);
-        // Close the connections
-        socketOut.close();
-        socket.close();
-        if (!isMaxThreads && !serverRef.isPaused())
-            serverRef.decrementResources();
+        HashedWheelTimer.Timeout timeout = arm(TIMEOUT_WRITE, serverRef.getWriteTimeout());
+        Object write = events.begin(LifecycleEvents.WRITE);
+        long writing = System.nanoTime();
+        try {
+            if (stream != null || "1".equals(headers.get("envelope"))) {
+                response.write(socketOut);
+            } else {
+                // Bare body for clients that predate the envelope.
+                socketOut.write(response.getBody());
+                socketOut.write('\n');
+                if (keepAlive)
+                    PooledOutputStream.writeUtf8(socketOut, END_RESPONSE + "\n");
+            }
+            socketOut.flush();
+        } finally {
+            disarm(timeout);
+        }
+        events.commit(write, command, socket.getInetAddress(), response.getBody().length, response.getStatus());
+        if (span != null)
+            endSpan(span, parsed, writing, response.getStatus());
+        // Unregistered names are folded into one label so clients cannot create series.
+        String label = request.getEntry() != null ? command :
+                command.isEmpty() ? ServerMetrics.COMMAND_NONE : ServerMetrics.COMMAND_UNKNOWN;
+        serverRef.getMetrics().requestFinished(label, response.getStatus(), System.nanoTime() - parsed,
+                request.getDataBytes() + request.getBodyLength(), response.getBody().length);
+        AccessLog log = serverRef.getAccessLog();
+        if (log != null) {
+            long started = execStarted;
+            long finished = execFinished;
+            log.record(new AccessLog.Record(arrived, socket.getInetAddress(), command,
+                    request.getDataCount(), request.getDataBytes(), request.getBodyLength(),
+                    started == 0 ? 0 : started - parsed, started == 0 || finished == 0 ? 0 : finished - started,
+                    response.getStatus(), response.getBody().length));
+        }
+    }
+
+    /**
+     * Record the phase spans of a request and end its server span.
+     * @param span Server span
+     * @param parsed Time the request was parsed
+     * @param writing Time the response write started
+     * @param status Response status
+     */
+    private void endSpan(Span span, long parsed, long writing, int status) {
+        long written = System.nanoTime();
+        long started = execStarted;
+        long finished = execFinished;
+        TraceContext context = span.getContext();
+        if (started != 0) {
+            Tracing.record("queue", context, parsed, started);
+            if (finished != 0)
+                Tracing.record("execute", context, started, finished);
+        }
+        Tracing.record("write", context, writing, written);
+        span.setAttribute("kind", "server").setAttribute("client", socket.getInetAddress())
+                .setAttribute("status", status).end(written);
+    }
+
+    /**
+     * Get the time allowed to read a request. Connections turned away at
+     * accept get a short one, so slow clients cannot hold the reject workers.
+     * @return Time in MS, 0 for no limit
+     */
+    private long getReadTimeout() {
+        long timeout = serverRef.getReadTimeout();
+        if (isMaxThreads || isRateLimited)
+            return timeout <= 0 ? REJECT_READ_TIMEOUT : Math.min(timeout, REJECT_READ_TIMEOUT);
+        return timeout;
+    }
+
+    /**
+     * Close the connection if it is still blocked on I/O after a delay.
+     * @param kind Timeout name for the log
+     * @param delay Time in MS, 0 for no limit
+     * @return Timeout or null if there is no limit
+     */
+    private HashedWheelTimer.Timeout arm(String kind, long delay) {
+        if (delay <= 0)
+            return null;
+        return serverRef.getTimer().schedule(() -> {
+            expired = kind;
+            // A stream that stalls only costs its own stream.
+            if (stream != null) {
+                stream.reset();
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Already closed.
+            }
+        }, delay);
+    }
+
+    /**
+     * Cancel a timeout from arm().
+     * @param timeout Timeout or null
+     */
+    private static void disarm(HashedWheelTimer.Timeout timeout) {
+        if (timeout != null)
+            timeout.cancel();
+    }
+
+    /**
+     * Wait for a command to finish. The command is cancelled if it runs past
+     * the timeout or if the client hangs up while it runs.
+     * @param result Pending command result
+     * @param timeout Time limit in MS, 0 for none
+     * @return Response
+     * @throws InterruptedException
+     * @throws ExecutionException If the command failed
+     */
+    private Response awaitCommand(Future<Response> result, long timeout) throws InterruptedException,
+            ExecutionException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            long wait = CANCEL_POLL;
+            if (timeout > 0)
+                wait = Math.max(0, Math.min(wait, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            try {
+                return result.get(wait, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                if (timeout > 0 && System.nanoTime() - deadline >= 0) {
+                    result.cancel(true);
+                    logger.write("Command '" + command + "' timed out after " + timeout + " ms.",
+                            ServerLogger.LOG_WARN);
+                    return new Response(Response.STATUS_TIMEOUT, RESPONSE_TIMEOUT);
+                }
+                if (isClientGone()) {
+                    result.cancel(true);
+                    logger.write("Client disconnected, command '" + command + "' cancelled.", ServerLogger.LOG_WARN);
+                    abort();
+                    return new Response(Response.STATUS_ERROR, RESPONSE_ERROR);
+                }
+            }
+        }
+    }
+
+    /**
+     * Determine if a request is for a control-class command, which is served
+     * even when the connection was turned away for capacity.
+     * @param request Parsed request
+     * @return True for control commands
+     */
+    private static boolean isControl(RequestParser request) {
+        CommandRegistry.Entry entry = request.getEntry();
+        return entry != null && CommandRegistry.PRIORITY_CONTROL.equals(entry.getPriority());
+    }
+
+    /**
+     * Get the time limit for a command, the tighter of the client's deadline
+     * header and the command's own timeout.
+     * @param entry Command entry
+     * @return Time limit in MS, 0 for none
+     */
+    private long getTimeout(CommandRegistry.Entry entry) {
+        long timeout = entry.getTimeout();
+        String deadline = headers.get("deadline");
+        if (deadline != null) {
+            try {
+                long requested = Long.parseLong(deadline);
+                if (requested > 0 && (timeout == 0 || requested < timeout))
+                    timeout = requested;
+            } catch (NumberFormatException ex) {
+                logger.write("Invalid deadline '" + deadline + "'.", ServerLogger.LOG_WARN);
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * Check whether the client closed its end of the connection. A client
+     * may pipeline its next request while it waits, so anything read is
+     * kept in the parser's buffer for that request.
+     * @return True if the client is gone
+     */
+    private boolean isClientGone() {
+        if (stream != null)
+            return stream.isReset();
+        RequestParser parser = requestIn;
+        if (parser == null)
+            return false;
+        try {
+            socket.setSoTimeout(1);
+            return parser.isEnded();
+        } catch (SocketTimeoutException ex) {
+            return false;
+        } catch (IOException ex) {
+            return true;
+        } finally {
+            try {
+                socket.setSoTimeout(0);
+            } catch (IOException ex) {
+                // Socket is closed, nothing to restore.
+            }
+        }
+    }
+
+    /**
+     * Run a built-in or registered command.
+     * @param entry Command entry
+     * @param instance Command instance, null for built-ins
+     * @param data Data lines for a Command
+     * @param body Body for a TypedCommand
+     * @return Response
+     * @throws Exception If the command fails
+     */
+    private Response runCommand(CommandRegistry.Entry entry, Object instance, ArrayList<String> data, byte[] body)
+            throws Exception {
+        String command = entry.getName();
+        logger.write("Executing command '" + command + "'.", ServerLogger.LOG_NOTICE);
+        switch (command) {
+            case "stats":
+                return textResponse(serverRef.formatStats());
+            case "diagnostics":
+                return textResponse(serverRef.getDiagnostics().format());
+            case "config":
+                return textResponse(configure(data));
+            case "reload":
+                serverRef.getConfig().load();
+                return textResponse("Reloaded.");
+            case "plugins":
+                PluginManager plugins = serverRef.getPluginManager();
+                return textResponse(plugins == null ? "" : plugins.format());
+            case "version":
+                return textResponse("jNetworkInterfaceServer " + jNetworkInterfaceServer.VERSION_MAJOR + "." +
+                        jNetworkInterfaceServer.VERSION_MINOR + "." +
+                        jNetworkInterfaceServer.VERSION_REVISION);
+            case "pause":
+                serverRef.pause();
+                logger.write("Server paused.", ServerLogger.LOG_NOTICE);
+                return textResponse("Server paused.");
+            case "unpause":
+                serverRef.unpause();
+                logger.write("Server unpaused.", ServerLogger.LOG_NOTICE);
+                return textResponse("Server Unpaused.");
+            default:
+                if (instance instanceof TypedCommand)
+                    return runTypedCommand((TypedCommand<?, ?>) instance, body);
+                Command cmd = (Command) instance;
+                cmd.setup(data, socket);
+                return textResponse(cmd.run());
+        }
+    }
+
+    /**
+     * Apply key=value settings sent to the config command.
+     * @param data Settings, none to only list the current ones
+     * @return Current settings, or the settings that were refused
+     */
+    private String configure(ArrayList<String> data) {
+        ServerConfig config = serverRef.getConfig();
+        StringBuilder refused = new StringBuilder();
+        for (String line : data) {
+            int split = line.indexOf('=');
+            String error = split < 0 ? "Expected key=value, got '" + line + "'." :
+                    config.apply(line.substring(0, split).trim(), line.substring(split + 1));
+            if (error != null)
+                refused.append(refused.length() == 0 ? "" : "\n").append(error);
+        }
+        return refused.length() == 0 ? config.format() : refused.toString();
+    }
+
+    /**
+     * Run a command that takes and returns objects. The input is decoded and
+     * the output encoded with the codec named in the request, the binary codec
+     * if the request has none.
+     * @param cmd Command
+     * @param body Encoded input, null for none
+     * @return Response with the codec header set
+     * @throws Exception If the input cannot be decoded or the command fails
+     */
+    private <I> Response runTypedCommand(TypedCommand<I, ?> cmd, byte[] body) throws Exception {
+        String name = headers.get("codec");
+        Codec codec = Codecs.get(name == null ? BinaryCodec.NAME : name);
+        if (codec == null)
+            throw new IOException("Unknown codec '" + name + "'.");
+        I input = body == null ? null : codec.decode(body, cmd.getInputType());
+        Object output = cmd.run(input, socket);
+        if (output == null)
+            return new Response(Response.STATUS_EMPTY, RESPONSE_EMPTY);
+        // Answer in the request's codec unless it cannot hold the output.
+        if (!codec.supports(output))
+            codec = Codecs.forValue(output);
+        return new Response(Response.STATUS_OK, codec.encode(output)).setHeader("codec", codec.getName());
+    }
+
+    /**
+     * Wrap a text command result.
+     * @param body Result, null for none
+     * @return Response
+     */
+    private static Response textResponse(String body) {
+        if (body == null)
+            return new Response(Response.STATUS_EMPTY, RESPONSE_EMPTY);
+        return new Response(Response.STATUS_OK, body);
     }
 
     /**